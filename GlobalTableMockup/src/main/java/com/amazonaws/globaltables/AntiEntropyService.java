@@ -0,0 +1,248 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Page;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+
+public class AntiEntropyService {
+
+	/**
+	 * Finds and repairs items that replication missed, e.g. because of clock skew against the
+	 * watermarks or a write that failed part way through a batch. Each replica's items are summarized
+	 * in a Merkle tree, built from a scan of just the keys and version vectors at a small share of
+	 * the replica's read capacity. Replicas are then compared by exchanging tree digests, and only
+	 * the items in leaves that differ are compared and repaired through the replication engine
+	 * (which resolves any conflicts). When replicas agree, a comparison costs a single digest.
+	 */
+
+	// time between anti-entropy rounds (milliseconds)
+	private static final long ANTI_ENTROPY_INTERVAL = 1000*60*60L;  // 1 hour
+
+	// fraction of a replica's provisioned read capacity that building its tree may use
+	private static final double CAPACITY_FRACTION = 0.1;
+
+	// items read per page when building a tree
+	private static final int SCAN_PAGE_SIZE = 100;
+
+	private GlobalMetadata gmd;
+	private ReplicationEngine re;
+	private int depth;
+
+	// most recent tree of each replica (keyed by table name and region)
+	private Map<String, MerkleTree> trees;
+
+	// tables that are checked in the background
+	private Set<String> tables;
+
+	private ScheduledExecutorService scheduler;
+
+	// counters for reporting
+	private long digestBytes;
+	private long numRepaired;
+
+	public AntiEntropyService(GlobalMetadata gmd, ReplicationEngine re) {
+		this.gmd = gmd;
+		this.re = re;
+		this.depth = MerkleTree.DEFAULT_DEPTH;
+		this.trees = new HashMap<String, MerkleTree>();
+		this.tables = new HashSet<String>();
+		this.scheduler = null;
+		this.digestBytes = 0;
+		this.numRepaired = 0;
+	}
+
+	/*
+	 * Set the depth of the trees (more leaves mean fewer items compared per divergent leaf)
+	 */
+	public synchronized AntiEntropyService withDepth(int depth) {
+		this.depth = depth;
+		trees.clear();
+		return this;
+	}
+
+	public synchronized AntiEntropyService withTable(String tableName) {
+		tables.add(tableName);
+		return this;
+	}
+
+	public synchronized long getDigestBytes() {
+		return digestBytes;
+	}
+
+	public synchronized long getNumRepaired() {
+		return numRepaired;
+	}
+
+	public synchronized MerkleTree getTree(String tableName, Regions region) {
+		return trees.get(treeKey(tableName, region));
+	}
+
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "anti-entropy");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			for (String tableName : listTables()) {
+				try {
+					synchronize(tableName);
+				} catch (RuntimeException e) {
+					System.out.println("Anti-entropy for " + tableName + " failed: " + e.getMessage());
+				}
+			}
+		}, ANTI_ENTROPY_INTERVAL, ANTI_ENTROPY_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/*
+	 * Rebuild the trees of all readable replicas of the table, compare every pair,
+	 * and repair the items that differ. Returns the number of items repaired.
+	 */
+	public synchronized int synchronize(String tableName) {
+		List<Regions> regions = new ArrayList<Regions>(gmd.listReadableRegions(tableName));
+		for (Regions region : regions) {
+			buildTree(tableName, region);
+		}
+		int repaired = 0;
+		for (int i = 0; i < regions.size(); i++) {
+			for (int j = i + 1; j < regions.size(); j++) {
+				repaired += synchronizePair(tableName, regions.get(i), regions.get(j));
+			}
+		}
+		numRepaired += repaired;
+		return repaired;
+	}
+
+	/*
+	 * Build the tree of one replica from a scan of its keys and version vectors
+	 */
+	public synchronized MerkleTree buildTree(String tableName, Regions region) {
+		Table table = new DynamoDB(ReplicationEngine.getReplicationClient(region)).getTable(tableName);
+		TableSchema schema = TableSchemaCache.getSharedCache().getSchema(tableName, region);
+		ReplicationThrottle throttle = new ReplicationThrottle(CAPACITY_FRACTION);
+		throttle.setProvisionedCapacity(schema.getReadCapacityUnits());
+		Set<String> prunedRegions = gmd.getPrunableRegions(tableName);
+
+		List<String> keyNames = new ArrayList<String>();
+		keyNames.add(schema.getHashKeyName());
+		if (schema.hasRangeKey()) {
+			keyNames.add(schema.getRangeKeyName());
+		}
+		ScanSpec scanSpec = new ScanSpec()
+				.withConsistentRead(true)
+				.withMaxPageSize(SCAN_PAGE_SIZE)
+				.withProjectionExpression(SystemAttributes.getVersionProjection(keyNames))
+				.withNameMap(SystemAttributes.getVersionProjectionNames(keyNames))
+				.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+
+		MerkleTree tree = new MerkleTree(depth);
+		for (Page<Item, ScanOutcome> page : table.scan(scanSpec).pages()) {
+			for (Item item : page) {
+				VersionVector version = SystemAttributes.hasVersion(item) ? SystemAttributes.getVersion(item) : new VersionVector();
+				tree.put(schema.getPrimaryKey(item), version.prune(prunedRegions));
+			}
+			ConsumedCapacity consumed = page.getLowLevelResult().getScanResult().getConsumedCapacity();
+			if (consumed != null && consumed.getCapacityUnits() != null) {
+				throttle.acquire(consumed.getCapacityUnits());  // pace the next page
+			}
+		}
+		trees.put(treeKey(tableName, region), tree);
+		return tree;
+	}
+
+	/*
+	 * Compare the trees of two replicas and repair the items in the leaves that differ
+	 */
+	private int synchronizePair(String tableName, Regions one, Regions two) {
+		MerkleTree oneTree = trees.get(treeKey(tableName, one));
+		MerkleTree twoTree = trees.get(treeKey(tableName, two));
+		MerkleTree.Diff diff = oneTree.diff(twoTree);
+		digestBytes += diff.getDigestBytes();
+
+		// Compare the item digests within the differing leaves
+		List<String> keys = new ArrayList<String>();
+		for (int leaf : diff.getLeaves()) {
+			Map<String, Long> oneItems = oneTree.getLeafItems(leaf);
+			Map<String, Long> twoItems = twoTree.getLeafItems(leaf);
+			digestBytes += (oneItems.size() + twoItems.size()) * MerkleTree.DIGEST_SIZE;
+			Set<String> leafKeys = new HashSet<String>(oneItems.keySet());
+			leafKeys.addAll(twoItems.keySet());
+			for (String key : leafKeys) {
+				if (!oneItems.containsKey(key) || !oneItems.get(key).equals(twoItems.get(key))) {
+					keys.add(key);
+				}
+			}
+		}
+		if (keys.isEmpty()) {
+			return 0;
+		}
+		System.out.println("Anti-entropy found " + keys.size() + " items of " + tableName
+				+ " that differ between " + one + " and " + two);
+
+		// Repair in both directions, letting the replication engine keep the newer or winning version
+		Table oneTable = new DynamoDB(ReplicationEngine.getReplicationClient(one)).getTable(tableName);
+		Table twoTable = new DynamoDB(ReplicationEngine.getReplicationClient(two)).getTable(tableName);
+		int repaired = 0;
+		for (String key : keys) {
+			PrimaryKey primaryKey = oneTree.getPrimaryKey(key);
+			if (primaryKey == null) {
+				primaryKey = twoTree.getPrimaryKey(key);  // missing from the first replica
+			}
+			Item oneItem = oneTable.getItem(new GetItemSpec().withPrimaryKey(primaryKey).withConsistentRead(true));
+			Item twoItem = twoTable.getItem(new GetItemSpec().withPrimaryKey(primaryKey).withConsistentRead(true));
+			if (oneItem != null) {
+				repaired += re.repairItems(tableName, two, one, Collections.singletonList(oneItem));
+			}
+			if (twoItem != null) {
+				repaired += re.repairItems(tableName, one, two, Collections.singletonList(twoItem));
+			}
+		}
+		
+		// The repaired replicas' trees are kept for the other pairs of this round, which may then
+		// compare items that were already repaired (the engine leaves those as they are),
+		// and are rebuilt at the start of the next round
+		return repaired;
+	}
+
+	private synchronized List<String> listTables() {
+		return new ArrayList<String>(tables);
+	}
+
+	static String keyString(PrimaryKey key) {
+		return new Item().withPrimaryKey(key).toJSON();
+	}
+
+	private static String treeKey(String tableName, Regions region) {
+		return tableName + ":" + region.getName();
+	}
+
+}
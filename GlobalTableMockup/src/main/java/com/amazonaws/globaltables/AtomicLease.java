@@ -0,0 +1,79 @@
+package com.amazonaws.globaltables;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import com.amazonaws.regions.Regions;
+
+public class AtomicLease {
+
+	/**
+	 * A lease that is shared by concurrent threads.
+	 * The current lease is an immutable snapshot, so reading it takes a single volatile read
+	 * and no locks, and operations replace it using compare-and-set.
+	 */
+
+	private final AtomicReference<Lease> lease;
+
+	public AtomicLease() {
+		this(new Lease());
+	}
+
+	public AtomicLease(Lease initial) {
+		lease = new AtomicReference<Lease>(initial);
+	}
+
+	public Lease get() {
+		return lease.get();
+	}
+
+	public void set(Lease newLease) {
+		lease.set(newLease);
+	}
+
+	/*
+	 * Replace the lease only if it is still the expected one
+	 */
+	public boolean compareAndSet(Lease expected, Lease newLease) {
+		return lease.compareAndSet(expected, newLease);
+	}
+
+	public boolean renew(Regions owner) {
+		return update(current -> current.renew(owner)) != null;
+	}
+
+	public boolean release(Regions owner) {
+		return update(current -> current.release(owner)) != null;
+	}
+
+	public boolean acquire(Regions owner) {
+		return update(current -> current.acquire(owner)) != null;
+	}
+
+	/*
+	 * Returns true if the given region took over immediately,
+	 * or false if it became the next owner
+	 */
+	public boolean take(Regions owner) {
+		Lease taken = update(current -> current.take(owner));
+		return taken.getOwner() == owner;
+	}
+
+	/*
+	 * Apply the operation until it is installed without interference, returning the new lease,
+	 * or null if the operation is not allowed on the current lease
+	 */
+	private Lease update(UnaryOperator<Lease> operation) {
+		while (true) {
+			Lease current = lease.get();
+			Lease next = operation.apply(current);
+			if (next == null) {
+				return null;
+			}
+			if (lease.compareAndSet(current, next)) {
+				return next;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.amazonaws.globaltables;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+public class AttributeMergeResolver implements ConflictResolver {
+
+	/**
+	 * Resolves conflicts attribute by attribute rather than picking one whole item.
+	 * Attributes written in only one version are kept, string and number sets are unioned,
+	 * and other attributes present in both versions take the value of the version chosen by
+	 * the base resolver (master wins by default). The merged item carries a version vector
+	 * that dominates both versions. Because missing attributes are filled in from the other
+	 * version, an attribute removed by one update can reappear after a conflicting update.
+	 */
+
+	// decides which version's value is kept for attributes that cannot be merged
+	private final ConflictResolver baseResolver;
+
+	public AttributeMergeResolver() {
+		this(new MasterWinsResolver());
+	}
+
+	public AttributeMergeResolver(ConflictResolver baseResolver) {
+		this.baseResolver = baseResolver;
+	}
+
+	public Item resolveConflict(VersionedItem source, VersionedItem target, Regions master) {
+		Item baseWinner = baseResolver.resolveConflict(source, target, master);
+		if (source.isDeleted() || target.isDeleted()) {
+			return baseWinner;  // a delete either wins or loses as a whole
+		}
+		boolean sourceWins = baseWinner != null;
+		VersionedItem winner = sourceWins ? source : target;
+		VersionedItem loser = sourceWins ? target : source;
+
+		Map<String, Object> merged = winner.getItem().asMap();
+		boolean changed = false;
+		for (Map.Entry<String, Object> attribute : loser.getItem().asMap().entrySet()) {
+			String name = attribute.getKey();
+			Object winnerValue = merged.get(name);
+			if (winnerValue == null) {
+				merged.put(name, attribute.getValue());
+				changed = true;
+			} else if (isMergeableSet(winnerValue) && isMergeableSet(attribute.getValue())) {
+				Set<Object> union = new LinkedHashSet<Object>((Set<?>) winnerValue);
+				if (union.addAll((Set<?>) attribute.getValue())) {
+					merged.put(name, union);
+					changed = true;
+				}
+			}
+		}
+		if (!changed) {  // nothing to merge, so the winner is kept as is
+			return sourceWins ? source.getItem() : null;
+		}
+
+		Item mergedItem = Item.fromMap(merged);
+		SystemAttributes.setVersion(mergedItem, source.getVersion().merge(target.getVersion()));
+		return mergedItem;
+	}
+
+	/*
+	 * Returns true for string and number sets, whose union is well defined
+	 */
+	private static boolean isMergeableSet(Object value) {
+		if (!(value instanceof Set)) {
+			return false;
+		}
+		for (Object element : (Set<?>) value) {
+			return element instanceof String || element instanceof BigDecimal;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.amazonaws.globaltables;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+public class ConditionalWriteOutcome {
+
+	/**
+	 * Result of a conditional write through the router, which either was written or conflicted
+	 * with the item's current state at the master. A conflict carries the item as it was read
+	 * after the write failed, so that an optimistic client can apply its change to the current
+	 * item and retry with the current version, without a read of its own.
+	 */
+
+	private final boolean written;
+
+	// version written, or on conflict the current version (null if the item does not exist)
+	private final VersionVector version;
+
+	// on conflict, the current item (null if the item does not exist or was deleted)
+	private final Item currentItem;
+
+	private ConditionalWriteOutcome(boolean written, VersionVector version, Item currentItem) {
+		this.written = written;
+		this.version = version;
+		this.currentItem = currentItem;
+	}
+
+	public static ConditionalWriteOutcome written(VersionVector version) {
+		return new ConditionalWriteOutcome(true, version, null);
+	}
+
+	public static ConditionalWriteOutcome conflict(Item storedItem) {
+		if (storedItem == null) {
+			return new ConditionalWriteOutcome(false, null, null);
+		}
+		VersionVector version = SystemAttributes.hasVersion(storedItem) ? SystemAttributes.getVersion(storedItem) : null;
+		Item currentItem = SystemAttributes.isDeleted(storedItem) ? null : storedItem;
+		return new ConditionalWriteOutcome(false, version, currentItem);
+	}
+
+	public boolean isWritten() {
+		return written;
+	}
+
+	public boolean isConflict() {
+		return !written;
+	}
+
+	public VersionVector getVersion() {
+		return version;
+	}
+
+	public Item getCurrentItem() {
+		return currentItem;
+	}
+
+}
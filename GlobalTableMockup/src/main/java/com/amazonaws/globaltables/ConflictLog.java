@@ -0,0 +1,175 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.ScanFilter;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+public class ConflictLog {
+
+	/**
+	 * A durable log of the conflicts detected by replication, stored in a DynamoDB table in one region.
+	 * Conflicts are buffered and written in batches. A conflict whose resolution was deferred is
+	 * logged as pending and logged again, under the same id, once it has been resolved, so that
+	 * pending conflicts can be found and resubmitted after a restart. A conflict that DynamoDB rejects
+	 * as invalid is dropped, so that it cannot hold back the conflicts buffered after it.
+	 */
+
+	public static final String CONFLICT_LOG_TABLE = "GlobalTableConflicts";
+	static final String CONFLICT_KEY = "ConflictId";
+
+	// maximum number of items in a BatchWriteItem request
+	private static final int MAX_BATCH_SIZE = 25;
+
+	// error code of a request that DynamoDB rejects as invalid, e.g. an item over the size limit
+	private static final String VALIDATION_ERROR = "ValidationException";
+
+	private final Regions region;
+	private final DynamoDB ddb;
+
+	// backs off before writing items left unprocessed by a batch write
+	private final ReplicationThrottle throttle;
+
+	// logged conflicts that have not yet been written
+	private final List<Item> buffer;
+
+	private long numRecorded;
+
+	public ConflictLog(Regions region) {
+		this.region = region;
+		this.ddb = new DynamoDB(DynamoDBClients.get(region));
+		this.throttle = new ReplicationThrottle(1.0);
+		this.buffer = new ArrayList<Item>();
+		this.numRecorded = 0;
+	}
+
+	/*
+	 * Create the log table if it does not exist
+	 */
+	public void createStore() {
+		ControlPlane cp = new ControlPlane();
+		cp.createRegionReplica(CONFLICT_LOG_TABLE, CONFLICT_KEY, region);
+	}
+
+	public Regions getRegion() {
+		return region;
+	}
+
+	public synchronized long getNumRecorded() {
+		return numRecorded;
+	}
+
+	/*
+	 * Add a conflict to the log, writing the buffered conflicts once there is a full batch
+	 */
+	public synchronized void record(ConflictRecord conflict, PrimaryKey key) {
+		buffer.add(conflict.toItem(key));
+		numRecorded++;
+		if (buffer.size() >= MAX_BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	/*
+	 * Write all buffered conflicts.
+	 * Conflicts stay buffered if a write fails, or is still left unprocessed after backing off
+	 * ReplicationThrottle.MAX_RETRIES times, so that a later flush writes them,
+	 * unless the write was rejected as invalid. A throttled log therefore cannot hold up
+	 * the caller (e.g. replication) for longer than the bounded backoff.
+	 * Returns true if no conflicts remain buffered.
+	 */
+	public synchronized boolean flush() {
+		while (!buffer.isEmpty()) {
+			List<Item> batch = buffer.subList(0, Math.min(MAX_BATCH_SIZE, buffer.size()));
+			TableWriteItems writeItems = new TableWriteItems(CONFLICT_LOG_TABLE)
+					.withItemsToPut(new ArrayList<Item>(batch));
+			BatchWriteItemOutcome outcome;
+			try {
+				outcome = ddb.batchWriteItem(writeItems);
+			} catch (AmazonServiceException e) {
+				if (!VALIDATION_ERROR.equals(e.getErrorCode())) {
+					throw e;
+				}
+				// one bad item fails the whole batch, so write the items one at a time
+				putEach(batch);
+				batch.clear();
+				continue;
+			}
+			Map<String, List<WriteRequest>> unprocessed = outcome.getUnprocessedItems();
+			int attempt = 0;
+			while (unprocessed != null && !unprocessed.isEmpty()) {
+				if (attempt >= ReplicationThrottle.MAX_RETRIES || Thread.currentThread().isInterrupted()) {
+					// keep only the unprocessed conflicts buffered, ahead of the rest
+					keepUnprocessed(batch, unprocessed);
+					return false;
+				}
+				throttle.onThrottle(attempt++);
+				unprocessed = ddb.batchWriteItemUnprocessed(unprocessed).getUnprocessedItems();
+			}
+			throttle.onSuccess();
+			batch.clear();
+		}
+		return true;
+	}
+
+	/*
+	 * Remove the conflicts that were written from the batch, leaving those that are still unprocessed
+	 */
+	private static void keepUnprocessed(List<Item> batch, Map<String, List<WriteRequest>> unprocessed) {
+		Set<String> unprocessedIds = new HashSet<String>();
+		for (List<WriteRequest> requests : unprocessed.values()) {
+			for (WriteRequest request : requests) {
+				unprocessedIds.add(request.getPutRequest().getItem().get(CONFLICT_KEY).getS());
+			}
+		}
+		batch.removeIf(item -> !unprocessedIds.contains(item.getString(CONFLICT_KEY)));
+	}
+
+	/*
+	 * Write items one at a time, dropping those rejected as invalid
+	 */
+	private void putEach(List<Item> items) {
+		Table table = ddb.getTable(CONFLICT_LOG_TABLE);
+		for (Item item : items) {
+			try {
+				table.putItem(item);
+			} catch (AmazonServiceException e) {
+				if (!VALIDATION_ERROR.equals(e.getErrorCode())) {
+					throw e;
+				}
+				System.out.println("Dropped conflict " + item.getString(CONFLICT_KEY) + " from the conflict log: " + e.getErrorMessage());
+			}
+		}
+	}
+
+	/*
+	 * Get the conflicts whose resolution is still pending
+	 */
+	public List<ConflictRecord> getPending() {
+		Table table = ddb.getTable(CONFLICT_LOG_TABLE);
+		ItemCollection<ScanOutcome> scanResults = table.scan(
+				new ScanFilter(ConflictRecord.RESOLUTION).eq(ConflictRecord.PENDING));
+		List<ConflictRecord> pending = new ArrayList<ConflictRecord>();
+		Iterator<Item> iterator = scanResults.iterator();
+		while (iterator.hasNext()) {
+			pending.add(ConflictRecord.fromItem(iterator.next()));
+		}
+		return pending;
+	}
+
+}
@@ -0,0 +1,237 @@
+package com.amazonaws.globaltables;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+
+public class ConflictRecord {
+
+	/**
+	 * A conflict detected while replicating an item: both versions, where they came from,
+	 * and how the conflict was resolved (or that its resolution is still pending).
+	 * The versions are logged in their native form; if they are too large to fit in an item of the
+	 * conflict log, only their origins and version vectors are logged.
+	 */
+
+	// how a conflict was resolved
+	public static final String PENDING = "pending";
+	public static final String SOURCE_WON = "source";
+	public static final String TARGET_WON = "target";
+	public static final String MERGED = "merged";
+
+	// attributes of a conflict in the conflict log
+	private static final String TABLE_NAME = "TableName";
+	private static final String ITEM_KEY = "ItemKey";
+	private static final String SOURCE_REGION = "SourceRegion";
+	private static final String TARGET_REGION = "TargetRegion";
+	private static final String SOURCE_ITEM = "SourceItem";
+	private static final String TARGET_ITEM = "TargetItem";
+	private static final String SOURCE_ORIGIN = "SourceOrigin";
+	private static final String TARGET_ORIGIN = "TargetOrigin";
+	private static final String SOURCE_VERSION = "SourceVersion";
+	private static final String TARGET_VERSION = "TargetVersion";
+	static final String RESOLUTION = "Resolution";
+	private static final String DETECTED_TIME = "DetectedTime";
+	private static final String RESOLVED_TIME = "ResolvedTime";
+	private static final String TRUNCATED = "Truncated";
+
+	// maximum combined size of the two versions logged with a conflict (bytes), leaving room in
+	// the 400 KB item limit for the other attributes
+	private static final int MAX_VERSIONS_SIZE = 350 * 1024;
+
+	private final String conflictId;
+	private final String tableName;
+	private final Regions sourceRegion;
+	private final Regions targetRegion;
+	private final Item sourceItem;  // null if not logged
+	private final Item targetItem;  // null if not logged
+	private final String sourceOrigin;
+	private final String targetOrigin;
+	private final Map<String,?> sourceVersion;
+	private final Map<String,?> targetVersion;
+	private final long detectedTime;
+	private PrimaryKey itemKey;  // null unless read from the log
+	private String resolution;
+	private long resolvedTime;
+
+	public ConflictRecord(String tableName, Regions sourceRegion, Regions targetRegion, Item sourceItem, Item targetItem) {
+		this(null, tableName, sourceRegion, targetRegion, sourceItem, targetItem,
+				SystemAttributes.getOrigin(sourceItem), SystemAttributes.getOrigin(targetItem),
+				new LinkedHashMap<String,Integer>(SystemAttributes.getVersion(sourceItem).toMap()),
+				new LinkedHashMap<String,Integer>(SystemAttributes.getVersion(targetItem).toMap()),
+				System.currentTimeMillis());
+	}
+
+	private ConflictRecord(String conflictId, String tableName, Regions sourceRegion, Regions targetRegion,
+			Item sourceItem, Item targetItem, String sourceOrigin, String targetOrigin,
+			Map<String,?> sourceVersion, Map<String,?> targetVersion, long detectedTime) {
+		this.conflictId = (conflictId != null) ? conflictId
+				: tableName + "/" + targetRegion.getName() + "/" + detectedTime + "/" + UUID.randomUUID();
+		this.tableName = tableName;
+		this.sourceRegion = sourceRegion;
+		this.targetRegion = targetRegion;
+		this.sourceItem = sourceItem;
+		this.targetItem = targetItem;
+		this.sourceOrigin = sourceOrigin;
+		this.targetOrigin = targetOrigin;
+		this.sourceVersion = sourceVersion;
+		this.targetVersion = targetVersion;
+		this.detectedTime = detectedTime;
+		this.itemKey = null;
+		this.resolution = PENDING;
+		this.resolvedTime = 0;
+	}
+
+	/*
+	 * Record the resolution, given the item that was written to the target (null if none)
+	 */
+	public ConflictRecord resolvedBy(Item winner) {
+		return resolvedBy(winner, sourceItem);
+	}
+
+	/*
+	 * Record the resolution, given the item that was written to the target (null if none)
+	 * and the source version it was resolved from, e.g. one read again because it was not logged
+	 */
+	public ConflictRecord resolvedBy(Item winner, Item source) {
+		if (winner == null) {
+			resolution = TARGET_WON;
+		} else if (winner == source) {
+			resolution = SOURCE_WON;
+		} else {
+			resolution = MERGED;
+		}
+		resolvedTime = System.currentTimeMillis();
+		return this;
+	}
+
+	public String getConflictId() {
+		return conflictId;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public Regions getSourceRegion() {
+		return sourceRegion;
+	}
+
+	public Regions getTargetRegion() {
+		return targetRegion;
+	}
+
+	public Item getSourceItem() {
+		return sourceItem;
+	}
+
+	public Item getTargetItem() {
+		return targetItem;
+	}
+
+	/*
+	 * Whether the versions were too large to be logged, in which case
+	 * the source and target items of a record read from the log are null
+	 */
+	public boolean isTruncated() {
+		return sourceItem == null || targetItem == null;
+	}
+
+	/*
+	 * Key of the conflicting item, for a record read from the log
+	 */
+	public PrimaryKey getItemKey() {
+		return itemKey;
+	}
+
+	public String getResolution() {
+		return resolution;
+	}
+
+	public boolean isPending() {
+		return PENDING.equals(resolution);
+	}
+
+	public long getDetectedTime() {
+		return detectedTime;
+	}
+
+	public long getResolvedTime() {
+		return resolvedTime;
+	}
+
+	/*
+	 * Encoding as an item of the conflict log
+	 */
+
+	Item toItem(PrimaryKey key) {
+		Item item = new Item()
+				.withString(ConflictLog.CONFLICT_KEY, conflictId)
+				.withString(TABLE_NAME, tableName)
+				.withMap(ITEM_KEY, new Item().withPrimaryKey(key).asMap())
+				.withString(SOURCE_REGION, sourceRegion.getName())
+				.withString(TARGET_REGION, targetRegion.getName())
+				.withString(SOURCE_ORIGIN, sourceOrigin)
+				.withString(TARGET_ORIGIN, targetOrigin)
+				.withMap(SOURCE_VERSION, sourceVersion)
+				.withMap(TARGET_VERSION, targetVersion)
+				.withString(RESOLUTION, resolution)
+				.withLong(DETECTED_TIME, detectedTime);
+		if (!isTruncated() && sourceItem.toJSON().length() + targetItem.toJSON().length() <= MAX_VERSIONS_SIZE) {
+			item.withMap(SOURCE_ITEM, sourceItem.asMap())
+				.withMap(TARGET_ITEM, targetItem.asMap());
+		} else {
+			item.withBoolean(TRUNCATED, true);
+		}
+		if (!isPending()) {
+			item.withLong(RESOLVED_TIME, resolvedTime);
+		}
+		return item;
+	}
+
+	static ConflictRecord fromItem(Item item) {
+		ConflictRecord conflict = new ConflictRecord(item.getString(ConflictLog.CONFLICT_KEY),
+				item.getString(TABLE_NAME),
+				Regions.fromName(item.getString(SOURCE_REGION)),
+				Regions.fromName(item.getString(TARGET_REGION)),
+				decodeItem(item, SOURCE_ITEM),
+				decodeItem(item, TARGET_ITEM),
+				item.getString(SOURCE_ORIGIN),
+				item.getString(TARGET_ORIGIN),
+				item.getRawMap(SOURCE_VERSION),
+				item.getRawMap(TARGET_VERSION),
+				item.getLong(DETECTED_TIME));
+		conflict.resolution = item.getString(RESOLUTION);
+		conflict.resolvedTime = item.isPresent(RESOLVED_TIME) ? item.getLong(RESOLVED_TIME) : 0;
+		conflict.itemKey = decodeKey(item);
+		return conflict;
+	}
+
+	/*
+	 * Versions logged before they were stored natively are JSON strings
+	 */
+	private static Item decodeItem(Item item, String attrName) {
+		if (!item.isPresent(attrName)) {
+			return null;
+		}
+		if (item.get(attrName) instanceof String) {
+			return Item.fromJSON(item.getString(attrName));
+		}
+		return Item.fromMap(item.getRawMap(attrName));
+	}
+
+	private static PrimaryKey decodeKey(Item item) {
+		Item keyItem = (item.get(ITEM_KEY) instanceof String) ? Item.fromJSON(item.getString(ITEM_KEY))
+				: Item.fromMap(item.getRawMap(ITEM_KEY));
+		PrimaryKey key = new PrimaryKey();
+		for (Map.Entry<String,Object> attr : keyItem.attributes()) {
+			key.addComponent(attr.getKey(), attr.getValue());
+		}
+		return key;
+	}
+
+}
@@ -0,0 +1,179 @@
+package com.amazonaws.globaltables;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+
+public class ConflictRepairer {
+
+	/**
+	 * Resolves conflicts on a pool of worker threads instead of in the replication loop,
+	 * so that an expensive resolver does not hold back replication. When resolution is deferred,
+	 * the target keeps its version until a worker resolves the conflict against the target's
+	 * current version and writes the result, provided the target has not changed in the meantime.
+	 * Deferred conflicts are logged as pending, so that they can be resubmitted if the process stops
+	 * before they are repaired or if their repair fails; the pending record is written before the
+	 * conflict is queued, so that replication does not move past a conflict that is not durable.
+	 * A repairer therefore requires a conflict log, without which a deferred conflict would be lost.
+	 * A conflict whose versions were too large to log is repaired from the source's current version.
+	 */
+
+	private static final int DEFAULT_WORKERS = 4;
+
+	// number of times a repair is retried after the target item changed underneath it
+	private static final int MAX_REPAIR_RETRIES = 5;
+
+	private final GlobalMetadata gmd;
+	private final ConflictResolver resolver;
+	private final ConflictLog log;
+	private final ExecutorService workers;
+
+	private final AtomicInteger numPending;
+	private final AtomicLong numRepaired;
+	private final AtomicLong numFailed;
+
+	public ConflictRepairer(GlobalMetadata gmd, ConflictResolver resolver, ConflictLog log) {
+		this(gmd, resolver, log, DEFAULT_WORKERS);
+	}
+
+	public ConflictRepairer(GlobalMetadata gmd, ConflictResolver resolver, ConflictLog log, int numWorkers) {
+		if (log == null) {
+			throw new IllegalArgumentException("Deferred conflicts require a conflict log");
+		}
+		this.gmd = gmd;
+		this.resolver = resolver;
+		this.log = log;
+		this.workers = Executors.newFixedThreadPool(numWorkers, r -> {
+			Thread thread = new Thread(r, "conflict-repair");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.numPending = new AtomicInteger(0);
+		this.numRepaired = new AtomicLong(0);
+		this.numFailed = new AtomicLong(0);
+	}
+
+	/*
+	 * Log a conflict as pending and queue it for resolution by a worker
+	 */
+	public void submit(ConflictRecord conflict, PrimaryKey key) {
+		log.record(conflict, key);
+		if (!log.flush()) {
+			// the record stays buffered, and resubmitPending picks it up once a later flush writes it
+			throw new AmazonClientException("Conflict " + conflict.getConflictId() + " could not be logged as pending yet");
+		}
+		numPending.incrementAndGet();
+		workers.execute(() -> {
+			try {
+				repair(conflict, key);
+				numRepaired.incrementAndGet();
+			} catch (RuntimeException e) {
+				// the conflict stays pending in the log, so resubmitPending retries it
+				numFailed.incrementAndGet();
+				System.out.println("Repair of conflict " + conflict.getConflictId() + " failed: " + e.getMessage());
+			} finally {
+				numPending.decrementAndGet();
+			}
+		});
+	}
+
+	/*
+	 * Queue the conflicts that the log still lists as pending, e.g. after a restart.
+	 * Returns the number of conflicts queued.
+	 */
+	public int resubmitPending() {
+		List<ConflictRecord> pending = log.getPending();
+		for (ConflictRecord conflict : pending) {
+			submit(conflict, conflict.getItemKey());
+		}
+		return pending.size();
+	}
+
+	public int getNumPending() {
+		return numPending.get();
+	}
+
+	public long getNumRepaired() {
+		return numRepaired.get();
+	}
+
+	public long getNumFailed() {
+		return numFailed.get();
+	}
+
+	/*
+	 * Wait for queued repairs to finish and stop the workers.
+	 * Returns false if repairs were still running when the timeout expired.
+	 */
+	public boolean shutdown(long timeoutMillis) throws InterruptedException {
+		workers.shutdown();
+		boolean done = workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		log.flush();
+		return done;
+	}
+
+	private void repair(ConflictRecord conflict, PrimaryKey key) {
+		String tableName = conflict.getTableName();
+		Regions target = conflict.getTargetRegion();
+		Table targetTable = new DynamoDB(ReplicationEngine.getReplicationClient(target)).getTable(tableName);
+		Item sourceItem = conflict.getSourceItem();
+		if (sourceItem == null) {
+			// the logged conflict did not include the versions, so resolve the source's current version
+			Table sourceTable = new DynamoDB(ReplicationEngine.getReplicationClient(conflict.getSourceRegion())).getTable(tableName);
+			sourceItem = sourceTable.getItem(new GetItemSpec()
+					.withPrimaryKey(key)
+					.withConsistentRead(true));
+			if (sourceItem == null) {
+				log.record(conflict.resolvedBy(null), key);
+				return;
+			}
+		}
+		for (int attempt = 0; ; attempt++) {
+			Set<String> prunedRegions = gmd.getPrunableRegions(tableName);
+			VersionedItem source = new VersionedItem(sourceItem, prunedRegions);
+			
+			// Resolve against the target's current version, which may have changed since the conflict was detected
+			Item storedItem = targetTable.getItem(new GetItemSpec()
+					.withPrimaryKey(key)
+					.withConsistentRead(true));
+			Item winner = resolver.resolve(Collections.singletonList(source),
+					Collections.singletonList(VersionedItem.decode(storedItem, prunedRegions)), gmd.getMaster(tableName)).get(0);
+			if (winner != null) {
+				if (winner != source.getItem()) {
+					SystemAttributes.setLocalUpdate(winner, target);
+				}
+				PutItemSpec putSpec = new PutItemSpec()
+						.withItem(winner)
+						.withConditionExpression(SystemAttributes.getUnchangedCondition(storedItem))
+						.withNameMap(SystemAttributes.getUnchangedNames())
+						.withValueMap(SystemAttributes.getUnchangedValues(storedItem));
+				try {
+					targetTable.putItem(putSpec);
+				} catch (ConditionalCheckFailedException e) {
+					if (attempt >= MAX_REPAIR_RETRIES) {
+						throw e;
+					}
+					continue;
+				}
+			}
+			log.record(conflict.resolvedBy(winner, sourceItem), key);
+			return;
+		}
+	}
+
+}
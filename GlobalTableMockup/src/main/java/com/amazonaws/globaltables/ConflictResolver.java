@@ -1,53 +1,47 @@
 package com.amazonaws.globaltables;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.document.Item;
 
-public class ConflictResolver {
+public interface ConflictResolver {
+
+	/**
+	 * Decides which version of each item a target replica keeps when items are replicated to it.
+	 * The replication engine resolves a whole batch of items in one call, and the items' system
+	 * attributes are decoded once into VersionedItems, so comparing versions needs no parsing.
+	 * Items whose versions are ordered are handled here; a resolver only decides conflicts,
+	 * that is, pairs of concurrent versions.
+	 */
 
-	public ConflictResolver() {
-	}
-	
 	/*
-	 * Returns true if the two items are conflicting versions
-	 */	
-	public boolean isConflict(Item one, Item two) {
-		boolean conflicted = true;
-		if (one == null || two == null) {
-			return false;
-		}
-		VersionVector oneVersion = SystemAttributes.getVersion(one);
-		VersionVector twoVersion = SystemAttributes.getVersion(two);
-		if (oneVersion.dominates(twoVersion) || twoVersion.dominates(oneVersion)) {
-			conflicted = false;
+	 * Resolve each source item against the version stored at the target (null if none).
+	 * Returns, for each pair, the item to write to the target, or null to keep the target's version.
+	 */
+	default List<Item> resolve(List<VersionedItem> sources, List<VersionedItem> targets, Regions master) {
+		List<Item> results = new ArrayList<Item>(sources.size());
+		for (int i = 0; i < sources.size(); i++) {
+			VersionedItem source = sources.get(i);
+			VersionedItem target = targets.get(i);
+			if (target == null) {  // new item
+				results.add(source.getItem());
+			} else if (target.dominates(source)) {  // target already has this version or a newer one
+				results.add(null);
+			} else if (source.dominates(target)) {  // no conflict
+				results.add(source.getItem());
+			} else {
+				results.add(resolveConflict(source, target, master));
+			}
 		}
-		return conflicted;
+		return results;
 	}
-	
-	/*
-	 * Returns true if the first item should be chosen as the winner when conflicting with the second item
-	 */	
-	public boolean isWinner(Item one, Item two, Regions master) {
-		boolean oneWins = false;;
-		VersionVector oneVersion = SystemAttributes.getVersion(one);
-		VersionVector twoVersion = SystemAttributes.getVersion(two);
-		String oneOrigin = SystemAttributes.getOrigin(one);
-		String twoOrigin = SystemAttributes.getOrigin(two);
-		Long oneTimestamp = SystemAttributes.getTimestamp(one);
-		Long twoTimestamp = SystemAttributes.getTimestamp(two);
 
-		if (oneVersion.dominates(twoVersion)) {  // no conflict
-			oneWins = true;
-		} else if (twoVersion.dominates(oneVersion)) {  // no conflict
-			oneWins = false;
-		} else if (oneOrigin.equals(master.getName())) {  // master update wins
-			oneWins = true;
-		} else if (twoOrigin.equals(master.getName())) {  // master update wins
-			oneWins = false;
-		} else {
-			oneWins = oneTimestamp > twoTimestamp;  // latest timestamp wins
-		}
-		return oneWins;
-	}
+	/*
+	 * Returns the item to write for two concurrent versions, or null to keep the target's version.
+	 * An item that merges both versions must carry a version that dominates both.
+	 */
+	Item resolveConflict(VersionedItem source, VersionedItem target, Regions master);
 
 }
@@ -1,14 +1,21 @@
 package com.amazonaws.globaltables;
 
+import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
 
 /**
- * Adds support for eventually consistent writes
+ * Adds support for eventually consistent writes and for optimistic writes
+ * that expect a given version of the item
  */
 
 public class ConsistentPutItemSpec extends PutItemSpec {
 
 	private Boolean isConsistent = true;
+	
+	// version the item must have for the write to succeed (if checked)
+	private boolean isVersionChecked = false;
+	private VersionVector expectedVersion = null;
 
 	public ConsistentPutItemSpec() {
 		// does nothing
@@ -22,5 +29,47 @@ public class ConsistentPutItemSpec extends PutItemSpec {
 		isConsistent = consistentWrite;
 		return this;
 	}
+	
+	public boolean isVersionChecked() {
+		return isVersionChecked;
+	}
+	
+	public VersionVector getExpectedVersion() {
+		return expectedVersion;
+	}
+	
+	/*
+	 * Write only if the item has the given version, or does not exist if the version is null
+	 * (a deleted item still has the version of its tombstone)
+	 */
+	public ConsistentPutItemSpec withExpectedVersion(VersionVector version) {
+		isVersionChecked = true;
+		expectedVersion = version;
+		return this;
+	}
+	
+	/*
+	 * Copy of this spec and its item, to which a router adds system attributes and conditions
+	 * without changing the caller's spec
+	 */
+	public ConsistentPutItemSpec copy() {
+		ConsistentPutItemSpec copy = new ConsistentPutItemSpec();
+		copy.withItem((getItem() == null) ? null : Item.fromMap(getItem().asMap()))
+				.withExpected(getExpected())
+				.withConditionExpression(getConditionExpression())
+				.withNameMap(getNameMap())
+				.withValueMap(getValueMap());
+		PutItemRequest request = copy.getRequest();
+		request.setConditionalOperator(getConditionalOperator());
+		request.setReturnValues(getReturnValues());
+		request.setReturnConsumedCapacity(getReturnConsumedCapacity());
+		request.setReturnItemCollectionMetrics(getReturnItemCollectionMetrics());
+		copy.setProgressListener(getProgressListener());
+		copy.setRequestMetricCollector(getRequestMetricCollector());
+		copy.isConsistent = isConsistent;
+		copy.isVersionChecked = isVersionChecked;
+		copy.expectedVersion = expectedVersion;
+		return copy;
+	}
 
 }
@@ -1,18 +1,26 @@
 package com.amazonaws.globaltables;
 
+import java.util.ArrayList;
+
+import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
 import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
 
 /**
- * Adds support for eventually consistent writes
+ * Adds support for eventually consistent writes and for optimistic writes
+ * that expect a given version of the item
  */
 
 public class ConsistentUpdateItemSpec extends UpdateItemSpec{
 
 	private Boolean isConsistent = true;
 	
-	private String keyValue = null;
-
+	// version the item must have for the write to succeed (if checked)
+	private boolean isVersionChecked = false;
+	private VersionVector expectedVersion = null;
+	
 	public ConsistentUpdateItemSpec() {
 		// does nothing
 	}
@@ -26,19 +34,80 @@ public class ConsistentUpdateItemSpec extends UpdateItemSpec{
 		return this;
 	}
 	
+	public boolean isVersionChecked() {
+		return isVersionChecked;
+	}
+	
+	public VersionVector getExpectedVersion() {
+		return expectedVersion;
+	}
+	
 	/*
-	 * NOTE: UpdateItemSpec allows clients to set the primary key but provides no way to get it.
-	 * So, this adds a getPrimaryKey method.
+	 * Write only if the item has the given version, or does not exist if the version is null
+	 * (a deleted item still has the version of its tombstone)
 	 */
+	public ConsistentUpdateItemSpec withExpectedVersion(VersionVector version) {
+		isVersionChecked = true;
+		expectedVersion = version;
+		return this;
+	}
+	
+	/*
+	 * Copy of this spec and its list of updates, to which a router adds system attributes
+	 * and conditions without changing the caller's spec
+	 */
+	public ConsistentUpdateItemSpec copy() {
+		ConsistentUpdateItemSpec copy = new ConsistentUpdateItemSpec()
+				.withPrimaryKey(getKeyComponents().toArray(new KeyAttribute[0]));
+		if (getAttributeUpdate() != null) {
+			copy.withAttributeUpdate(new ArrayList<AttributeUpdate>(getAttributeUpdate()));
+		}
+		copy.withExpected(getExpected())
+				.withUpdateExpression(getUpdateExpression())
+				.withConditionExpression(getConditionExpression())
+				.withNameMap(getNameMap())
+				.withValueMap(getValueMap());
+		UpdateItemRequest request = copy.getRequest();
+		request.setConditionalOperator(getConditionalOperator());
+		request.setReturnValues(getReturnValues());
+		request.setReturnConsumedCapacity(getReturnConsumedCapacity());
+		request.setReturnItemCollectionMetrics(getReturnItemCollectionMetrics());
+		copy.setProgressListener(getProgressListener());
+		copy.setRequestMetricCollector(getRequestMetricCollector());
+		copy.isConsistent = isConsistent;
+		copy.isVersionChecked = isVersionChecked;
+		copy.expectedVersion = expectedVersion;
+		return copy;
+	}
 	
-	public ConsistentUpdateItemSpec withPrimaryKey(String hashKeyName, String hashKeyValue) {
-		keyValue = hashKeyValue;
+	/*
+	 * NOTE: UpdateItemSpec allows clients to set the primary key but only returns its components.
+	 * So, this adds a getPrimaryKey method, and the setters return this class for chaining.
+	 */
+	
+	public ConsistentUpdateItemSpec withPrimaryKey(String hashKeyName, Object hashKeyValue) {
 		super.withPrimaryKey(hashKeyName, hashKeyValue);
 		return this;
 	}
 	
-	public String getPrimaryKeyValue() {
-		return keyValue;
+	public ConsistentUpdateItemSpec withPrimaryKey(String hashKeyName, Object hashKeyValue,
+			String rangeKeyName, Object rangeKeyValue) {
+		super.withPrimaryKey(hashKeyName, hashKeyValue, rangeKeyName, rangeKeyValue);
+		return this;
+	}
+	
+	public ConsistentUpdateItemSpec withPrimaryKey(PrimaryKey primaryKey) {
+		super.withPrimaryKey(primaryKey);
+		return this;
+	}
+	
+	public ConsistentUpdateItemSpec withPrimaryKey(KeyAttribute... components) {
+		super.withPrimaryKey(components);
+		return this;
+	}
+	
+	public PrimaryKey getPrimaryKey() {
+		return new PrimaryKey(getKeyComponents().toArray(new KeyAttribute[0]));
 	}
 
 }
@@ -4,7 +4,6 @@ import java.util.Set;
 
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.DeleteTableRequest;
@@ -12,6 +11,10 @@ import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.StreamSpecification;
+import com.amazonaws.services.dynamodbv2.model.StreamViewType;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableRequest;
 import com.amazonaws.services.dynamodbv2.util.TableUtils;
 
 public class ControlPlane {
@@ -21,7 +24,7 @@ public class ControlPlane {
 	}
 	
 	public void createAllReplicas(String tableName, String keyAttribute) {
-		GlobalMetadata gmd = new GlobalMetadata();
+		GlobalMetadata gmd = GlobalMetadata.getInstance();
 		Set<Regions> regionSet = gmd.listRegions(tableName);
 		for (Regions region : regionSet) {
 			createRegionReplica(tableName, keyAttribute, region);						
@@ -29,10 +32,6 @@ public class ControlPlane {
 	}
 
 	public boolean createRegionReplica(String tableName, String keyAttribute, Regions region) {
-		AmazonDynamoDB ddb = AmazonDynamoDBClientBuilder.standard()
-				.withRegion(region)
-				.build();
-		
 		// create regional table if not already exists
 		CreateTableRequest createTableRequest = new CreateTableRequest()
         		.withTableName(tableName)
@@ -45,7 +44,28 @@ public class ControlPlane {
 				.withProvisionedThroughput(new ProvisionedThroughput()
 					.withReadCapacityUnits(1L)
 					.withWriteCapacityUnits(1L));
+        return createRegionReplica(createTableRequest, region);
+	}
+	
+	/*
+	 * Create a regional table with the same key schema (hash and range keys) as an existing replica
+	 */
+	public boolean createRegionReplica(String tableName, TableSchema schema, Regions region) {
+		CreateTableRequest createTableRequest = new CreateTableRequest()
+        		.withTableName(tableName)
+        		.withKeySchema(schema.getKeySchema())
+        		.withAttributeDefinitions(schema.getKeyAttributeDefinitions())
+				.withProvisionedThroughput(new ProvisionedThroughput()
+					.withReadCapacityUnits(Math.max(1L, schema.getReadCapacityUnits()))
+					.withWriteCapacityUnits(Math.max(1L, schema.getWriteCapacityUnits())));
+        return createRegionReplica(createTableRequest, region);
+	}
+	
+	private boolean createRegionReplica(CreateTableRequest createTableRequest, Regions region) {
+		AmazonDynamoDB ddb = DynamoDBClients.get(region);
+		String tableName = createTableRequest.getTableName();
         boolean created = TableUtils.createTableIfNotExists(ddb, createTableRequest);
+        TableSchemaCache.getSharedCache().invalidate(tableName, region);
 
         // Wait for the table to move into active state
         if (created) {
@@ -60,13 +80,52 @@ public class ControlPlane {
         return created;
 	}
 	
+	/*
+	 * Enable the regional table's stream of new item images if it is not already enabled
+	 */
+	public boolean enableStream(String tableName, Regions region) {
+		AmazonDynamoDB ddb = DynamoDBClients.get(region);
+		if (getStreamArn(tableName, region) != null) {
+			return false;
+		}
+		UpdateTableRequest updateTableRequest = new UpdateTableRequest()
+				.withTableName(tableName)
+				.withStreamSpecification(new StreamSpecification()
+					.withStreamEnabled(true)
+					.withStreamViewType(StreamViewType.NEW_IMAGE));
+		ddb.updateTable(updateTableRequest);
+		try {
+			TableUtils.waitUntilActive(ddb, tableName);
+		} 
+		catch (InterruptedException e) {
+			System.out.println("Got interrupted while waiting for stream to be enabled.");
+			System.out.println("Exception: " + e.getMessage());
+		}
+		return true;
+	}
+	
+	/*
+	 * Returns the ARN of the regional table's stream, or null if it has no stream or cannot be described
+	 */
+	public String getStreamArn(String tableName, Regions region) {
+		try {
+			TableDescription table = DynamoDBClients.get(region).describeTable(tableName).getTable();
+			StreamSpecification streamSpecification = table.getStreamSpecification();
+			if (streamSpecification == null || !Boolean.TRUE.equals(streamSpecification.isStreamEnabled())) {
+				return null;
+			}
+			return table.getLatestStreamArn();
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+	
 	public boolean deleteRegionReplica(String tableName, Regions region) {
-		AmazonDynamoDB ddb = AmazonDynamoDBClientBuilder.standard()
-				.withRegion(region)
-				.build();
+		AmazonDynamoDB ddb = DynamoDBClients.get(region);
 		DeleteTableRequest deleteTableRequest = new DeleteTableRequest()
         		.withTableName(tableName);
         boolean deleted = TableUtils.deleteTableIfExists(ddb, deleteTableRequest);
+        TableSchemaCache.getSharedCache().invalidate(tableName, region);
         return deleted;
 	}
 	
@@ -0,0 +1,42 @@
+package com.amazonaws.globaltables;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+public class CrdtResolver implements ConflictResolver {
+
+	/**
+	 * Resolves conflicts by merging the conflict-free replicated attributes of both versions,
+	 * so that concurrent counter, set, and map updates are all kept. Other attributes take
+	 * the values of the version chosen by the base resolver (master wins by default).
+	 * Items without replicated attributes are resolved by the base resolver alone.
+	 */
+
+	private final ConflictResolver baseResolver;
+
+	public CrdtResolver() {
+		this(new MasterWinsResolver());
+	}
+
+	public CrdtResolver(ConflictResolver baseResolver) {
+		this.baseResolver = baseResolver;
+	}
+
+	public Item resolveConflict(VersionedItem source, VersionedItem target, Regions master) {
+		Item winner = baseResolver.resolveConflict(source, target, master);
+		if (source.isDeleted() || target.isDeleted()) {
+			return winner;  // a delete either wins or loses as a whole
+		}
+		CrdtState sourceState = CrdtState.fromItem(source.getItem());
+		CrdtState targetState = CrdtState.fromItem(target.getItem());
+		if (sourceState.isEmpty() && targetState.isEmpty()) {
+			return winner;
+		}
+
+		Item merged = Item.fromMap(((winner == null) ? target.getItem() : winner).asMap());
+		sourceState.merge(targetState).applyTo(merged);
+		SystemAttributes.setVersion(merged, source.getVersion().merge(target.getVersion()));
+		return merged;
+	}
+
+}
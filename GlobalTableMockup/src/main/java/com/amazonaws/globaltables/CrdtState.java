@@ -0,0 +1,191 @@
+package com.amazonaws.globaltables;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+public class CrdtState {
+
+	/**
+	 * The conflict-free replicated attributes of an item: counters (PNCounter), string sets (ORSet),
+	 * and maps of registers (LWWMap). Each attribute's value is stored as an ordinary attribute,
+	 * so that it is read as usual, and its replicated state is stored with the other system attributes.
+	 * When replicas update an item concurrently, its states are merged attribute by attribute.
+	 */
+
+	// key in each attribute's encoded state that names its type
+	static final String TYPE = "type";
+
+	// attribute name -> PNCounter, ORSet, or LWWMap
+	private final Map<String, Object> attributes;
+
+	// item whose plain attributes seed the state of attributes that are not yet replicated,
+	// and the region that updates them (or null if new attributes start empty)
+	private Item seedItem;
+	private Regions seedRegion;
+
+	public CrdtState() {
+		attributes = new HashMap<String, Object>();
+		seedItem = null;
+		seedRegion = null;
+	}
+
+	public static CrdtState fromItem(Item item) {
+		return fromItem(item, null);
+	}
+
+	/*
+	 * Decode the item's replicated state for an update in the given region. An attribute that is
+	 * not yet replicated starts from its plain value in the item, as if the region had made it,
+	 * so that the first update does not discard it. (If regions start replicating an attribute
+	 * concurrently, a counter counts its plain value once for each of them.)
+	 */
+	@SuppressWarnings("unchecked")
+	public static CrdtState fromItem(Item item, Regions region) {
+		CrdtState state = new CrdtState();
+		if (region != null) {
+			state.seedItem = item;
+			state.seedRegion = region;
+		}
+		if (!SystemAttributes.hasCrdtState(item)) {
+			return state;
+		}
+		for (Map.Entry<String, Object> attribute : SystemAttributes.getCrdtState(item).entrySet()) {
+			Map<String, Object> encoded = (Map<String, Object>) attribute.getValue();
+			String type = (String) encoded.get(TYPE);
+			if (PNCounter.TYPE.equals(type)) {
+				state.attributes.put(attribute.getKey(), PNCounter.fromMap(encoded));
+			} else if (ORSet.TYPE.equals(type)) {
+				state.attributes.put(attribute.getKey(), ORSet.fromMap(encoded));
+			} else if (LWWMap.TYPE.equals(type)) {
+				state.attributes.put(attribute.getKey(), LWWMap.fromMap(encoded));
+			}
+		}
+		return state;
+	}
+
+	public boolean isEmpty() {
+		return attributes.isEmpty();
+	}
+
+	/*
+	 * Get the attribute's state, starting a new one if the attribute is not yet replicated
+	 */
+
+	public PNCounter getCounter(String attributeName) {
+		return getAttribute(attributeName, PNCounter.class, () -> {
+			PNCounter counter = new PNCounter();
+			if (hasSeed(attributeName)) {
+				Object value = seedItem.get(attributeName);
+				if (!(value instanceof Number)) {
+					throw new IllegalArgumentException("Attribute " + attributeName + " is not a number");
+				}
+				counter.add(seedRegion, ((Number) value).longValue());
+			}
+			return counter;
+		});
+	}
+
+	public ORSet getSet(String attributeName) {
+		return getAttribute(attributeName, ORSet.class, () -> {
+			ORSet set = new ORSet();
+			if (hasSeed(attributeName)) {
+				for (String element : seedItem.getStringSet(attributeName)) {
+					set.add(seedRegion, element);
+				}
+			}
+			return set;
+		});
+	}
+
+	public LWWMap getMap(String attributeName) {
+		return getAttribute(attributeName, LWWMap.class, () -> {
+			LWWMap map = new LWWMap();
+			if (hasSeed(attributeName)) {
+				for (Map.Entry<String, Object> entry : seedItem.getRawMap(attributeName).entrySet()) {
+					map.put(entry.getKey(), entry.getValue(), seedRegion);
+				}
+			}
+			return map;
+		});
+	}
+
+	private boolean hasSeed(String attributeName) {
+		return seedItem != null && seedItem.isPresent(attributeName) && !seedItem.isNull(attributeName);
+	}
+
+	private <T> T getAttribute(String attributeName, Class<T> type, Supplier<T> initial) {
+		Object attribute = attributes.get(attributeName);
+		if (attribute == null) {
+			T created = initial.get();
+			attributes.put(attributeName, created);
+			return created;
+		}
+		if (!type.isInstance(attribute)) {
+			throw new IllegalArgumentException("Attribute " + attributeName + " is not a " + type.getSimpleName());
+		}
+		return type.cast(attribute);
+	}
+
+	/*
+	 * Merge the states of two versions of an item, attribute by attribute
+	 */
+	public CrdtState merge(CrdtState other) {
+		CrdtState merged = new CrdtState();
+		merged.attributes.putAll(this.attributes);
+		for (Map.Entry<String, Object> attribute : other.attributes.entrySet()) {
+			Object mine = this.attributes.get(attribute.getKey());
+			Object theirs = attribute.getValue();
+			if (mine == null) {
+				merged.attributes.put(attribute.getKey(), theirs);
+			} else if (mine instanceof PNCounter && theirs instanceof PNCounter) {
+				merged.attributes.put(attribute.getKey(), ((PNCounter) mine).merge((PNCounter) theirs));
+			} else if (mine instanceof ORSet && theirs instanceof ORSet) {
+				merged.attributes.put(attribute.getKey(), ((ORSet) mine).merge((ORSet) theirs));
+			} else if (mine instanceof LWWMap && theirs instanceof LWWMap) {
+				merged.attributes.put(attribute.getKey(), ((LWWMap) mine).merge((LWWMap) theirs));
+			}
+		}
+		return merged;
+	}
+
+	/*
+	 * Write the attributes' values and their replicated state into the item
+	 */
+	public void applyTo(Item item) {
+		Map<String, Object> encoded = new HashMap<String, Object>();
+		for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+			String name = attribute.getKey();
+			Object value = attribute.getValue();
+			if (value instanceof PNCounter) {
+				item.withLong(name, ((PNCounter) value).value());
+				encoded.put(name, ((PNCounter) value).toMap());
+			} else if (value instanceof ORSet) {
+				Set<String> elements = ((ORSet) value).value();
+				if (elements.isEmpty()) {  // DynamoDB does not store empty sets
+					item.removeAttribute(name);
+				} else {
+					item.withStringSet(name, elements);
+				}
+				encoded.put(name, ((ORSet) value).toMap());
+			} else if (value instanceof LWWMap) {
+				item.withMap(name, ((LWWMap) value).value());
+				encoded.put(name, ((LWWMap) value).toMap());
+			}
+		}
+		SystemAttributes.setCrdtState(item, encoded);
+	}
+
+	static void putLongs(Map<String, Long> longs, Map<String, Object> numbers) {
+		if (numbers != null) {
+			for (Map.Entry<String, Object> number : numbers.entrySet()) {
+				longs.put(number.getKey(), ((Number) number.getValue()).longValue());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,320 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.GetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Page;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+
+public class DivergenceChecker {
+
+	/**
+	 * Measures how far the replicas of a table have diverged by reading the same keys at every
+	 * replica and comparing their versions the way the conflict resolver does. It can check a
+	 * random sample of keys, cheaply and repeatedly as a probe of replication health, or every key
+	 * with a parallel scan of each replica. Reads are paced by the capacity they consume, so a check
+	 * uses a bounded share of each replica's read capacity. Divergent items can optionally be
+	 * repaired through a replication engine.
+	 */
+
+	// default fraction of a replica's provisioned read capacity that checks may use
+	private static final double DEFAULT_CAPACITY_FRACTION = 0.05;
+
+	// default number of segments scanned in parallel by a full check
+	private static final int DEFAULT_THREADS = 4;
+
+	// sampled keys are taken from random segments of a scan divided into this many segments
+	private static final int SAMPLE_SEGMENTS = 1024;
+
+	// maximum number of segments scanned to collect a sample
+	private static final int MAX_SAMPLE_SCANS = 20;
+
+	/*
+	 * Receives every report produced by a probe
+	 */
+	public interface Listener {
+		void reported(DivergenceReport report);
+	}
+
+	private GlobalMetadata gmd;
+	private ReplicationEngine repairEngine;  // null if divergent items are only reported
+	private double capacityFraction;
+	private int numThreads;
+	private Listener listener;
+
+	// read throttles (keyed by table name and region)
+	private Map<String, ReplicationThrottle> throttles;
+
+	// latest report of each table
+	private Map<String, DivergenceReport> lastReports;
+
+	private ScheduledExecutorService scheduler;
+
+	public DivergenceChecker(GlobalMetadata gmd) {
+		this.gmd = gmd;
+		this.repairEngine = null;
+		this.capacityFraction = DEFAULT_CAPACITY_FRACTION;
+		this.numThreads = DEFAULT_THREADS;
+		this.listener = null;
+		this.throttles = new ConcurrentHashMap<String, ReplicationThrottle>();
+		this.lastReports = new ConcurrentHashMap<String, DivergenceReport>();
+		this.scheduler = null;
+	}
+
+	/*
+	 * Repair divergent items through the given engine, which resolves any conflicts
+	 */
+	public DivergenceChecker withRepair(ReplicationEngine re) {
+		this.repairEngine = re;
+		return this;
+	}
+
+	public DivergenceChecker withCapacityFraction(double fraction) {
+		this.capacityFraction = fraction;
+		throttles.clear();
+		return this;
+	}
+
+	public DivergenceChecker withThreads(int numThreads) {
+		this.numThreads = numThreads;
+		return this;
+	}
+
+	public DivergenceChecker withListener(Listener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	public DivergenceReport getLastReport(String tableName) {
+		return lastReports.get(tableName);
+	}
+
+	/*
+	 * Check the given number of keys, taken from random parts of random replicas
+	 */
+	public DivergenceReport checkSample(String tableName, int sampleSize) {
+		List<Regions> regions = new ArrayList<Regions>(gmd.listReadableRegions(tableName));
+		DivergenceReport report = new DivergenceReport(tableName, gmd.listReadableRegions(tableName), true);
+		Set<String> prunedRegions = gmd.getPrunableRegions(tableName);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int numChecked = 0;
+		for (int scan = 0; scan < MAX_SAMPLE_SCANS && numChecked < sampleSize; scan++) {
+			Regions region = regions.get(random.nextInt(regions.size()));
+			int segment = random.nextInt(SAMPLE_SEGMENTS);
+			for (PrimaryKey key : scanKeys(tableName, region, segment, SAMPLE_SEGMENTS, sampleSize - numChecked)) {
+				checkKey(tableName, key, regions, prunedRegions, report);
+				numChecked++;
+			}
+		}
+		return finish(report);
+	}
+
+	/*
+	 * Check every key of every replica, scanning segments of the replicas in parallel
+	 */
+	public DivergenceReport checkAll(String tableName) {
+		List<Regions> regions = new ArrayList<Regions>(gmd.listReadableRegions(tableName));
+		DivergenceReport report = new DivergenceReport(tableName, gmd.listReadableRegions(tableName), false);
+		Set<String> prunedRegions = gmd.getPrunableRegions(tableName);
+
+		// A key found at several replicas is checked only once
+		Set<String> checkedKeys = ConcurrentHashMap.newKeySet();
+		ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<?>> segments = new ArrayList<Future<?>>();
+			for (Regions region : regions) {
+				for (int segment = 0; segment < numThreads; segment++) {
+					final int scanSegment = segment;
+					segments.add(workers.submit(() -> {
+						for (PrimaryKey key : scanKeys(tableName, region, scanSegment, numThreads, Integer.MAX_VALUE)) {
+							if (checkedKeys.add(AntiEntropyService.keyString(key))) {
+								checkKey(tableName, key, regions, prunedRegions, report);
+							}
+						}
+					}));
+				}
+			}
+			for (Future<?> segment : segments) {
+				segment.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Divergence check of " + tableName + " failed", e.getCause());
+		} finally {
+			workers.shutdownNow();
+		}
+		return finish(report);
+	}
+
+	/*
+	 * Check a sample of the table's keys at regular intervals, keeping the latest report
+	 */
+	public synchronized void startProbe(String tableName, int sampleSize, long intervalMillis) {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "divergence-probe");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				checkSample(tableName, sampleSize);
+			} catch (RuntimeException e) {
+				System.out.println("Divergence probe of " + tableName + " failed: " + e.getMessage());
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	private DivergenceReport finish(DivergenceReport report) {
+		report.finish();
+		lastReports.put(report.getTableName(), report);
+		if (listener != null) {
+			listener.reported(report);
+		}
+		return report;
+	}
+
+	/*
+	 * Read the key at every replica and classify it as consistent, missing, conflicting, or stale
+	 */
+	private void checkKey(String tableName, PrimaryKey key, List<Regions> regions, Set<String> prunedRegions, DivergenceReport report) {
+		List<Regions> holders = new ArrayList<Regions>();
+		List<VersionedItem> versions = new ArrayList<VersionedItem>();
+		for (Regions region : regions) {
+			Item item = read(tableName, region, key);
+			if (item != null) {
+				holders.add(region);
+				versions.add(new VersionedItem(item, prunedRegions));
+			}
+		}
+		if (versions.isEmpty()) {  // deleted since it was scanned
+			report.recordConsistent();
+			return;
+		}
+
+		long lastUpdate = 0;
+		boolean conflicting = false;
+		boolean stale = false;
+		for (VersionedItem one : versions) {
+			lastUpdate = Math.max(lastUpdate, one.getTimestamp());
+			for (VersionedItem two : versions) {
+				if (one.conflictsWith(two)) {
+					conflicting = true;
+				} else if (!one.dominates(two)) {
+					stale = true;
+				}
+			}
+		}
+		String keyString = AntiEntropyService.keyString(key);
+		if (versions.size() < regions.size()) {
+			report.recordMissing(keyString, lastUpdate);
+		} else if (conflicting) {
+			report.recordConflicting(keyString, lastUpdate);
+		} else if (stale) {
+			report.recordStale(keyString, lastUpdate);
+		} else {
+			report.recordConsistent();
+			return;
+		}
+
+		// Copy each version to the other replicas, where the engine keeps whichever version is newer or wins
+		if (repairEngine != null) {
+			for (int i = 0; i < holders.size(); i++) {
+				for (Regions target : regions) {
+					if (target != holders.get(i)) {
+						repairEngine.repairItems(tableName, target, holders.get(i),
+								Collections.singletonList(versions.get(i).getItem()));
+					}
+				}
+			}
+		}
+	}
+
+	private Item read(String tableName, Regions region, PrimaryKey key) {
+		Table table = new DynamoDB(DynamoDBClients.get(region)).getTable(tableName);
+		GetItemSpec getSpec = new GetItemSpec()
+				.withPrimaryKey(key)
+				.withConsistentRead(true)
+				.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+		GetItemOutcome outcome = table.getItemOutcome(getSpec);
+		pace(tableName, region, outcome.getGetItemResult().getConsumedCapacity());
+		return outcome.getItem();
+	}
+
+	/*
+	 * Scan up to the given number of keys from one segment of a replica
+	 */
+	private List<PrimaryKey> scanKeys(String tableName, Regions region, int segment, int totalSegments, int maxKeys) {
+		Table table = new DynamoDB(DynamoDBClients.get(region)).getTable(tableName);
+		TableSchema schema = TableSchemaCache.getSharedCache().getSchema(tableName, region);
+		List<String> keyNames = new ArrayList<String>();
+		keyNames.add(schema.getHashKeyName());
+		if (schema.hasRangeKey()) {
+			keyNames.add(schema.getRangeKeyName());
+		}
+		ScanSpec scanSpec = new ScanSpec()
+				.withSegment(segment)
+				.withTotalSegments(totalSegments)
+				.withMaxPageSize(Math.min(maxKeys, 100))
+				.withProjectionExpression(SystemAttributes.getVersionProjection(keyNames))
+				.withNameMap(SystemAttributes.getVersionProjectionNames(keyNames))
+				.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+		List<PrimaryKey> keys = new ArrayList<PrimaryKey>();
+		for (Page<Item, ScanOutcome> page : table.scan(scanSpec).pages()) {
+			pace(tableName, region, page.getLowLevelResult().getScanResult().getConsumedCapacity());
+			for (Item item : page) {
+				keys.add(schema.getPrimaryKey(item));
+				if (keys.size() >= maxKeys) {
+					return keys;
+				}
+			}
+		}
+		return keys;
+	}
+
+	/*
+	 * Charge consumed capacity to the replica's throttle, which delays later reads if need be
+	 */
+	private void pace(String tableName, Regions region, ConsumedCapacity consumed) {
+		if (consumed == null || consumed.getCapacityUnits() == null) {
+			return;
+		}
+		ReplicationThrottle throttle = throttles.computeIfAbsent(tableName + ":" + region.getName(), k -> {
+			ReplicationThrottle newThrottle = new ReplicationThrottle(capacityFraction);
+			newThrottle.setProvisionedCapacity(TableSchemaCache.getSharedCache().getSchema(tableName, region).getReadCapacityUnits());
+			return newThrottle;
+		});
+		throttle.acquire(consumed.getCapacityUnits());
+	}
+
+}
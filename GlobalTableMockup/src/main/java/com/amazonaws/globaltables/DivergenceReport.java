@@ -0,0 +1,150 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.regions.Regions;
+
+public class DivergenceReport {
+
+	/**
+	 * Outcome of comparing items across the replicas of a table: how many items were checked,
+	 * how many were missing at some replica, stale at some replica, or in conflict, and how long
+	 * the oldest divergent item has been divergent (the time since its latest update).
+	 */
+
+	// number of divergent keys that are listed in a report
+	private static final int MAX_LISTED_KEYS = 100;
+
+	private final String tableName;
+	private final Set<Regions> regions;
+	private final boolean sampled;
+	private final long startTime;
+	private long endTime;
+
+	private long numChecked;
+	private long numMissing;
+	private long numStale;
+	private long numConflicting;
+	private long oldestDivergenceAge;
+	private final List<String> divergentKeys;
+
+	DivergenceReport(String tableName, Set<Regions> regions, boolean sampled) {
+		this.tableName = tableName;
+		this.regions = regions;
+		this.sampled = sampled;
+		this.startTime = System.currentTimeMillis();
+		this.endTime = 0;
+		this.numChecked = 0;
+		this.numMissing = 0;
+		this.numStale = 0;
+		this.numConflicting = 0;
+		this.oldestDivergenceAge = 0;
+		this.divergentKeys = new ArrayList<String>();
+	}
+
+	synchronized void recordConsistent() {
+		numChecked++;
+	}
+
+	synchronized void recordMissing(String key, long lastUpdate) {
+		numChecked++;
+		numMissing++;
+		recordDivergent(key, lastUpdate);
+	}
+
+	synchronized void recordStale(String key, long lastUpdate) {
+		numChecked++;
+		numStale++;
+		recordDivergent(key, lastUpdate);
+	}
+
+	synchronized void recordConflicting(String key, long lastUpdate) {
+		numChecked++;
+		numConflicting++;
+		recordDivergent(key, lastUpdate);
+	}
+
+	private void recordDivergent(String key, long lastUpdate) {
+		oldestDivergenceAge = Math.max(oldestDivergenceAge, System.currentTimeMillis() - lastUpdate);
+		if (divergentKeys.size() < MAX_LISTED_KEYS) {
+			divergentKeys.add(key);
+		}
+	}
+
+	synchronized void finish() {
+		endTime = System.currentTimeMillis();
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public Set<Regions> getRegions() {
+		return regions;
+	}
+
+	/*
+	 * Returns true if a sample of keys was checked rather than the whole table
+	 */
+	public boolean isSampled() {
+		return sampled;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public synchronized long getEndTime() {
+		return endTime;
+	}
+
+	public synchronized long getNumChecked() {
+		return numChecked;
+	}
+
+	public synchronized long getNumMissing() {
+		return numMissing;
+	}
+
+	public synchronized long getNumStale() {
+		return numStale;
+	}
+
+	public synchronized long getNumConflicting() {
+		return numConflicting;
+	}
+
+	public synchronized long getNumDivergent() {
+		return numMissing + numStale + numConflicting;
+	}
+
+	/*
+	 * Fraction of the checked items that were divergent
+	 */
+	public synchronized double getDivergentFraction() {
+		return (numChecked == 0) ? 0 : (double) getNumDivergent() / numChecked;
+	}
+
+	/*
+	 * Time since the latest update of the oldest divergent item (milliseconds), or 0 if none diverged
+	 */
+	public synchronized long getOldestDivergenceAge() {
+		return oldestDivergenceAge;
+	}
+
+	/*
+	 * Keys (as JSON) of up to the first hundred divergent items
+	 */
+	public synchronized List<String> getDivergentKeys() {
+		return new ArrayList<String>(divergentKeys);
+	}
+
+	public synchronized String toString() {
+		return "Divergence of " + tableName + " across " + regions + (sampled ? " (sampled)" : "")
+				+ ": " + numChecked + " checked, " + numMissing + " missing, " + numStale + " stale, "
+				+ numConflicting + " conflicting, oldest divergent for " + oldestDivergenceAge + " ms";
+	}
+
+}
@@ -0,0 +1,30 @@
+package com.amazonaws.globaltables;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+
+public class DynamoDBClients {
+
+	/**
+	 * DynamoDB clients shared by all components in this process, one per region.
+	 * Clients are thread-safe and hold connection pools, so building one per router,
+	 * lease store, or control-plane call only adds startup time and connections.
+	 * A client is built when its region is first used.
+	 */
+
+	private static final Map<Regions, AmazonDynamoDB> clients = new ConcurrentHashMap<Regions, AmazonDynamoDB>();
+
+	private DynamoDBClients() {
+	}
+
+	public static AmazonDynamoDB get(Regions region) {
+		return clients.computeIfAbsent(region, r -> AmazonDynamoDBClientBuilder.standard()
+				.withRegion(r)
+				.build());
+	}
+
+}
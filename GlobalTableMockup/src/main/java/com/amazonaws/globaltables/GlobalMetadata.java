@@ -6,6 +6,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
@@ -30,6 +35,7 @@ import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
 import com.amazonaws.services.dynamodbv2.model.PutItemResult;
 import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
@@ -48,23 +54,71 @@ public class GlobalMetadata {
 	private static final String METADATA_KEY = "Tablename";
 	private static final String METADATA_REGIONS = "Regions";
 	private static final String METADATA_MASTER = "Master";
+	private static final String METADATA_BOOTSTRAPPING = "Bootstrapping";  // regions not yet readable
+	private static final String METADATA_VERSION = "Version";  // incremented on every change
+	private static final String METADATA_RETIRED = "Retired";  // removed regions still present in version vectors
+	private static final String METADATA_RETIRED_ACKS = "RetiredAcks:";  // + region: replicas that have all its updates
+	private static final String METADATA_RETIRED_COMPACTED = "RetiredCompacted:";  // + region: replicas whose vectors were compacted
+	private static final String METADATA_BACKFILL = "Backfill:";  // + target:source: progress of a backfill or repair
 	
-	// Note: Leases are not currently stored in the metadata table.
-	private Map<String,Lease> leaseTable;
+	// Time between checks of the versions of watched entries, if the metadata table has no stream (milliseconds)
+	private static final long WATCH_INTERVAL = 1000L;  // 1 second
+	
+	/*
+	 * Receives changes to the metadata of a watched table
+	 */
+	public interface MetadataListener {
+		void metadataChanged(String tableName, long version);
+	}
+	
+	// Listeners and last known version of each watched table, and the number of threads
+	// waiting for a change to each table (a table is watched while it has either)
+	private Map<String, List<MetadataListener>> listeners;
+	private Map<String, Long> watchedVersions;
+	private Map<String, Integer> waiters;
+	private ScheduledExecutorService watcher;
+	
+	// Reads the metadata table's stream, through which changes made elsewhere are pushed (if it has one)
+	private MetadataStream metadataStream;
+	
+	// Leases are stored in the metadata table, except for the metadata table's own lease
+	private LeaseStore leaseStore;
+	private AtomicLease metadataLease;
 
 	// Metadata is itself stored as a global table and hence is accessed using a GRR
 	private GlobalRequestRouter mdTable;
+	
+	// Replicates the metadata table incrementally (created when first needed)
+	private ReplicationEngine metadataReplicator;
+
+	// Metadata shared by all components in this process (created when first needed)
+	private static GlobalMetadata sharedMetadata = null;
 
+	/*
+	 * Constructing metadata makes no calls to DynamoDB, and clients connect when first used.
+	 * The metadata table itself is created by createMetadataStore or bootstrapMetadata.
+	 */
 	public GlobalMetadata() {
-        // Create metadata table if it does not exist
-        createMetadataTableStore(METADATA_MASTER_REGION);
-        
-        // Create lease table (which should really be stored in the metadata table)
-        leaseTable = new HashMap<String,Lease>();
-        leaseTable.put(METADATA_TABLE_NAME, new Lease(METADATA_MASTER_REGION));
+        // Leases are read and written at the metadata master
+        leaseStore = new LeaseStore(METADATA_TABLE_NAME, METADATA_KEY, METADATA_MASTER_REGION);
+        metadataLease = new AtomicLease(new Lease(METADATA_MASTER_REGION));
 		
 		// Create DynamoDB client
-        mdTable = new GlobalRequestRouter(METADATA_TABLE_NAME, METADATA_MASTER_REGION, this);
+        mdTable = new GlobalRequestRouter(METADATA_TABLE_NAME, METADATA_MASTER_REGION, this, METADATA_KEY);
+        
+        listeners = new ConcurrentHashMap<String, List<MetadataListener>>();
+        watchedVersions = new ConcurrentHashMap<String, Long>();
+        waiters = new HashMap<String, Integer>();
+        watcher = null;
+        metadataStream = null;
+	}
+
+	
+	public static synchronized GlobalMetadata getInstance() {
+		if (sharedMetadata == null) {
+			sharedMetadata = new GlobalMetadata();
+		}
+		return sharedMetadata;
 	}
 
 	
@@ -83,21 +137,159 @@ public class GlobalMetadata {
 		item = new Item()
 				.withPrimaryKey(METADATA_KEY, tableName)
 				.withString(METADATA_MASTER, region.getName())
-				.withStringSet(METADATA_REGIONS, region.getName());
+				.withStringSet(METADATA_REGIONS, region.getName())
+				.withLong(METADATA_VERSION, 1);
         putItem(item);
+        notifyChange(tableName, 1);
 		return true;
 	}
 	
 	public void addRegion(String tableName, Regions region) {
+		checkNotRetired(tableName, region);
         AttributeUpdate update = new AttributeUpdate(METADATA_REGIONS).addElements(region.getName());
         updateItem(tableName, update);
 	}
 	
+	/*
+	 * Add a region that is neither readable nor replicated to by syncReplicas until it has been bootstrapped
+	 */
+	public void addBootstrappingRegion(String tableName, Regions region) {
+		checkNotRetired(tableName, region);
+        AttributeUpdate addRegion = new AttributeUpdate(METADATA_REGIONS).addElements(region.getName());
+        AttributeUpdate addBootstrapping = new AttributeUpdate(METADATA_BOOTSTRAPPING).addElements(region.getName());
+        updateItem(tableName, addRegion, addBootstrapping);
+	}
+	
+	public void markRegionReadable(String tableName, Regions region) {
+        AttributeUpdate update = new AttributeUpdate(METADATA_BOOTSTRAPPING).removeElements(region.getName());
+        updateItem(tableName, update);
+	}
+	
+	/*
+	 * Remove a region, which stays retired until its entries have been pruned from all version vectors
+	 */
 	public void removeRegion(String tableName, Regions region) {
         AttributeUpdate update = new AttributeUpdate(METADATA_REGIONS).removeElements(region.getName());
+        AttributeUpdate bootstrapping = new AttributeUpdate(METADATA_BOOTSTRAPPING).removeElements(region.getName());
+        AttributeUpdate retired = new AttributeUpdate(METADATA_RETIRED).addElements(region.getName());
+        updateItem(tableName, update, bootstrapping, retired);
+	}
+	
+	/*
+	 * Retirement of removed regions, which proceeds in stages:
+	 * a retired region's entries are pruned from version vectors once every replica has acknowledged
+	 * that it holds all of the region's updates, and the region's retirement ends once every
+	 * replica has compacted its stored vectors.
+	 */
+	
+	public Set<Regions> listRetiredRegions(String tableName) {
+		Item item = lookupMetadata(tableName);
+		Set<Regions> regionSet = new HashSet<Regions>();
+		if (item != null && item.isPresent(METADATA_RETIRED)) {
+			for (String regionName : item.getStringSet(METADATA_RETIRED)) {
+				regionSet.add(Regions.fromName(regionName));
+			}
+		}
+		return regionSet;
+	}
+	
+	/*
+	 * Record that a replica has received all updates made by a retired region
+	 */
+	public void acknowledgeRetirement(String tableName, Regions retired, Regions replica) {
+        AttributeUpdate update = new AttributeUpdate(METADATA_RETIRED_ACKS + retired.getName()).addElements(replica.getName());
         updateItem(tableName, update);
 	}
 	
+	/*
+	 * Returns the names of retired regions that all replicas have acknowledged,
+	 * whose entries can be ignored when comparing versions and pruned from version vectors
+	 */
+	public Set<String> getPrunableRegions(String tableName) {
+		Item item = lookupMetadata(tableName);
+		Set<String> prunable = new HashSet<String>();
+		if (item == null || !item.isPresent(METADATA_RETIRED)) {
+			return prunable;
+		}
+		for (String regionName : item.getStringSet(METADATA_RETIRED)) {
+			if (containsAllRegions(item, METADATA_RETIRED_ACKS + regionName)) {
+				prunable.add(regionName);
+			}
+		}
+		return prunable;
+	}
+	
+	/*
+	 * Record that a replica no longer stores entries for a retired region,
+	 * and end the region's retirement once all replicas have done so
+	 */
+	public void markCompacted(String tableName, Regions retired, Regions replica) {
+        AttributeUpdate update = new AttributeUpdate(METADATA_RETIRED_COMPACTED + retired.getName()).addElements(replica.getName());
+        updateItem(tableName, update);
+        Item item = lookupMetadata(tableName);
+        if (item != null && containsAllRegions(item, METADATA_RETIRED_COMPACTED + retired.getName())) {
+        	AttributeUpdate retiredUpdate = new AttributeUpdate(METADATA_RETIRED).removeElements(retired.getName());
+        	AttributeUpdate acks = new AttributeUpdate(METADATA_RETIRED_ACKS + retired.getName()).delete();
+        	AttributeUpdate compacted = new AttributeUpdate(METADATA_RETIRED_COMPACTED + retired.getName()).delete();
+        	updateItem(tableName, retiredUpdate, acks, compacted);
+        }
+	}
+	
+	private static boolean containsAllRegions(Item item, String attributeName) {
+		if (!item.isPresent(attributeName)) {
+			return false;
+		}
+		return item.getStringSet(attributeName).containsAll(item.getStringSet(METADATA_REGIONS));
+	}
+	
+	private void checkNotRetired(String tableName, Regions region) {
+		if (listRetiredRegions(tableName).contains(region)) {
+			throw new IllegalStateException("Region " + region + " is still being retired from " + tableName);
+		}
+	}
+	
+	/*
+	 * Progress of backfills and repairs in the bulk replication lane, which is kept with the table's
+	 * metadata so that a replication engine that restarts resumes them. Progress is not a change
+	 * to the table's configuration, so recording it does not bump the entry's version.
+	 * The metadata table's own replication keeps no progress.
+	 */
+	
+	/*
+	 * Returns the recorded progress of the pair's backfill, or null if none is pending
+	 */
+	public Map<String, Object> getBackfillProgress(String tableName, Regions target, Regions source) {
+		if (isMetadataTable(tableName)) {
+			return null;
+		}
+		Item item = lookupMetadata(tableName);
+		String attributeName = backfillAttribute(target, source);
+		if (item == null || !item.isPresent(attributeName)) {
+			return null;
+		}
+		return item.getRawMap(attributeName);
+	}
+	
+	public void setBackfillProgress(String tableName, Regions target, Regions source, Map<String, Object> progress) {
+		if (isMetadataTable(tableName)) {
+			return;
+		}
+		AttributeUpdate update = new AttributeUpdate(backfillAttribute(target, source)).put(progress);
+		updateProgress(tableName, update);
+	}
+	
+	public void clearBackfillProgress(String tableName, Regions target, Regions source) {
+		if (isMetadataTable(tableName)) {
+			return;
+		}
+		AttributeUpdate update = new AttributeUpdate(backfillAttribute(target, source)).delete();
+		updateProgress(tableName, update);
+	}
+	
+	private static String backfillAttribute(Regions target, Regions source) {
+		return METADATA_BACKFILL + target.getName() + ":" + source.getName();
+	}
+	
 	public Set<Regions> listRegions(String tableName) {
 		Item item = lookupMetadata(tableName);
 		if (item == null) {
@@ -110,6 +302,24 @@ public class GlobalMetadata {
         return regionSet;
 	}
 	
+	/*
+	 * Returns the regions that can serve reads, i.e. excluding regions being bootstrapped
+	 */
+	public Set<Regions> listReadableRegions(String tableName) {
+		Item item = lookupMetadata(tableName);
+		if (item == null) {
+			return null;
+		}
+		Set<Regions> regionSet = new HashSet<Regions>();
+		Set<String> bootstrapping = item.getStringSet(METADATA_BOOTSTRAPPING);
+		for (String regionName : item.getStringSet(METADATA_REGIONS)) {
+			if (bootstrapping == null || !bootstrapping.contains(regionName)) {
+				regionSet.add(Regions.fromName(regionName));
+			}
+		}
+        return regionSet;
+	}
+	
 	public Regions getMaster(String tableName) {
 		Item item = lookupMetadata(tableName);
 		return Regions.fromName(item.getString(METADATA_MASTER));
@@ -121,19 +331,223 @@ public class GlobalMetadata {
 		return true;
 	}
 	
+	/*
+	 * Operations on master leases, which are stored in the metadata table.
+	 * The lease returned by getLease is a snapshot of the stored lease.
+	 */
+	
 	public Lease getLease(String tableName) {
-		Lease lease;
-		if (leaseTable.containsKey(tableName)) {
-			lease = leaseTable.get(tableName);
-		} else {
-			lease = new Lease();
-			leaseTable.put(tableName, lease);
+		if (isMetadataTable(tableName)) {
+			// the metadata master is fixed
+			if (metadataLease.get().almostExpired()) {
+				metadataLease.renew(METADATA_MASTER_REGION);
+			}
+			return metadataLease.get();
 		}
-		return lease;
+		return leaseStore.readLease(tableName);
 	}
 	
 	public void setLease(String tableName, Lease lease) {
-		leaseTable.put(tableName, lease);
+		leaseStore.writeLease(tableName, lease);
+	}
+	
+	public boolean acquireLease(String tableName, Regions region) {
+		return leaseStore.acquire(tableName, region);
+	}
+	
+	public boolean renewLease(String tableName, Regions region) {
+		return leaseStore.renew(tableName, region);
+	}
+	
+	public boolean takeLease(String tableName, Regions region) {
+		return leaseStore.take(tableName, region);
+	}
+	
+	public boolean releaseLease(String tableName, Regions region) {
+		return leaseStore.release(tableName, region);
+	}
+	
+	/*
+	 * Release a lease early so that the given region can acquire it immediately
+	 */
+	public boolean handOffLease(String tableName, Regions region, Regions nextRegion) {
+		if (!leaseStore.handOff(tableName, region, nextRegion)) {
+			return false;
+		}
+		// bump the entry's version so that watching routers drop the released lease now
+		updateItem(tableName);
+		return true;
+	}
+	
+	/*
+	 * Return a handed-off lease to the region that released it, if the next region has not acquired it
+	 */
+	public boolean cancelHandOff(String tableName, Regions region, Regions nextRegion) {
+		if (!leaseStore.cancelHandOff(tableName, region, nextRegion)) {
+			return false;
+		}
+		updateItem(tableName);
+		return true;
+	}
+
+	/*
+	 * Renew all leases held by the given region with a single conditional write
+	 */
+	public boolean renewLeases(Regions region) {
+		return leaseStore.renewAll(region);
+	}
+	
+	
+	/*
+	 * Watching for changes to metadata.
+	 * Changes made through this object are pushed to listeners as soon as they are written,
+	 * and changes made elsewhere are pushed from the metadata table's stream (see MetadataStream),
+	 * which createMetadataStore enables. If the table has no stream, changes made elsewhere are found
+	 * by checking the version of each watched entry every WATCH_INTERVAL, which reads only the version
+	 * attribute rather than syncing the metadata table.
+	 * A table is no longer watched once its last listener is removed and no thread awaits a change.
+	 */
+	
+	public void watch(String tableName, MetadataListener listener) {
+		synchronized (watchedVersions) {
+			listeners.computeIfAbsent(tableName, t -> new CopyOnWriteArrayList<MetadataListener>()).add(listener);
+			watchedVersions.putIfAbsent(tableName, 0L);
+		}
+		startWatcher(tableName);
+	}
+	
+	public void unwatch(String tableName, MetadataListener listener) {
+		synchronized (watchedVersions) {
+			List<MetadataListener> tableListeners = listeners.get(tableName);
+			if (tableListeners != null) {
+				tableListeners.remove(listener);
+			}
+			stopWatchingIfIdle(tableName);
+		}
+	}
+	
+	/*
+	 * Returns the version of the table's metadata, or 0 if it has no metadata
+	 */
+	public long getVersion(String tableName) {
+		GetItemSpec getItemSpec = new GetItemSpec()
+        		.withPrimaryKey(METADATA_KEY, tableName)
+        		.withProjectionExpression(METADATA_VERSION)
+        		.withConsistentRead(false);
+        Item item = mdTable.getItem(getItemSpec);
+        return (item == null || !item.isPresent(METADATA_VERSION)) ? 0 : item.getLong(METADATA_VERSION);
+	}
+	
+	/*
+	 * Wait until the table's metadata is newer than the known version (a long poll).
+	 * Returns the new version, or the known version if the timeout expired first.
+	 */
+	public long awaitChange(String tableName, long knownVersion, long timeoutMillis) {
+		synchronized (watchedVersions) {
+			watchedVersions.putIfAbsent(tableName, 0L);
+			waiters.merge(tableName, 1, Integer::sum);
+		}
+		startWatcher(tableName);
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (watchedVersions) {
+			try {
+				while (watchedVersions.get(tableName) <= knownVersion) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						return knownVersion;
+					}
+					try {
+						watchedVersions.wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return knownVersion;
+					}
+				}
+				return watchedVersions.get(tableName);
+			} finally {
+				if (waiters.merge(tableName, -1, Integer::sum) == 0) {
+					waiters.remove(tableName);
+				}
+				stopWatchingIfIdle(tableName);
+			}
+		}
+	}
+	
+	/*
+	 * Stop checking the version of a table that has no listeners and no waiting threads
+	 * (called holding the lock on watchedVersions)
+	 */
+	private void stopWatchingIfIdle(String tableName) {
+		List<MetadataListener> tableListeners = listeners.get(tableName);
+		if ((tableListeners == null || tableListeners.isEmpty()) && !waiters.containsKey(tableName)) {
+			listeners.remove(tableName);
+			watchedVersions.remove(tableName);
+		}
+	}
+	
+	/*
+	 * Start watching for changes, if not already watching. The stream only carries changes made
+	 * after it is read, so a newly watched table's version is checked once to catch up to it.
+	 */
+	private synchronized void startWatcher(String tableName) {
+		if (metadataStream != null) {
+			try {
+				notifyChange(tableName, getVersion(tableName));
+			} catch (RuntimeException e) {
+				// caught up by the table's next change, or when the stream is next resynced
+			}
+			return;
+		}
+		if (watcher != null) {
+			return;
+		}
+		String streamArn = new ControlPlane().getStreamArn(METADATA_TABLE_NAME, METADATA_MASTER_REGION);
+		if (streamArn != null) {
+			// the stream calls back to check versions when it starts and when it may have missed changes
+			metadataStream = new MetadataStream(streamArn, METADATA_MASTER_REGION, METADATA_KEY, METADATA_VERSION,
+					this::notifyChange, this::checkVersions);
+			metadataStream.start();
+			return;
+		}
+		watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "metadata-watcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		watcher.scheduleWithFixedDelay(this::checkVersions, 0, WATCH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	/*
+	 * Check the version of every watched table
+	 */
+	private void checkVersions() {
+		for (String tableName : watchedVersions.keySet()) {
+			try {
+				notifyChange(tableName, getVersion(tableName));
+			} catch (RuntimeException e) {
+				// metadata master unreachable, so try again later
+			}
+		}
+	}
+	
+	/*
+	 * Record a new version of a table's metadata and tell its listeners if it is newer
+	 */
+	private void notifyChange(String tableName, long version) {
+		synchronized (watchedVersions) {
+			Long known = watchedVersions.get(tableName);
+			if (known == null || version <= known) {
+				return;
+			}
+			watchedVersions.put(tableName, version);
+			watchedVersions.notifyAll();
+		}
+		List<MetadataListener> tableListeners = listeners.get(tableName);
+		if (tableListeners != null) {
+			for (MetadataListener listener : tableListeners) {
+				listener.metadataChanged(tableName, version);
+			}
+		}
 	}
 	
 	
@@ -159,7 +573,24 @@ public class GlobalMetadata {
 	}
 	
 	private UpdateItemOutcome updateItem(String tableName, AttributeUpdate... attributeUpdates) {
-        // metadata written with strong consistency
+        // metadata written with strong consistency, and every change bumps the entry's version
+        ConsistentUpdateItemSpec updateSpec = (ConsistentUpdateItemSpec) new ConsistentUpdateItemSpec()
+				.withConsistentWrite(true)
+				.withPrimaryKey(METADATA_KEY, tableName)
+				.withAttributeUpdate(attributeUpdates)
+				.addAttributeUpdate(new AttributeUpdate(METADATA_VERSION).addNumeric(1))
+				.withReturnValues(ReturnValue.UPDATED_NEW);
+        UpdateItemOutcome outcome = mdTable.updateItem(updateSpec);
+        Item updated = outcome.getItem();
+        if (updated != null && updated.isPresent(METADATA_VERSION)) {
+        	notifyChange(tableName, updated.getLong(METADATA_VERSION));
+        }
+        return outcome;
+	}
+
+	
+	private UpdateItemOutcome updateProgress(String tableName, AttributeUpdate... attributeUpdates) {
+        // progress written with strong consistency, without bumping the entry's version
         ConsistentUpdateItemSpec updateSpec = (ConsistentUpdateItemSpec) new ConsistentUpdateItemSpec()
 				.withConsistentWrite(true)
 				.withPrimaryKey(METADATA_KEY, tableName)
@@ -172,7 +603,16 @@ public class GlobalMetadata {
 	 * Methods for creating and replicating metadata as a global table
 	 */
 	
+	/*
+	 * Create the metadata table at the metadata master if it does not exist
+	 */
+	public void createMetadataStore() {
+		createMetadataTableStore(METADATA_MASTER_REGION);
+		new ControlPlane().enableStream(METADATA_TABLE_NAME, METADATA_MASTER_REGION);
+	}
+	
 	public void bootstrapMetadata() {
+		createMetadataStore();
 		if (lookupMetadata(METADATA_TABLE_NAME) == null) {
 			createTable(METADATA_TABLE_NAME, METADATA_MASTER_REGION);
 			addRegion(METADATA_TABLE_NAME, METADATA_SECONDARY_REGION);
@@ -188,12 +628,22 @@ public class GlobalMetadata {
 	}
 	
 
-	public int replicateMetadata() {
-		ReplicationEngine re = new ReplicationEngine();
-		int num = re.syncReplicas(GlobalMetadata.METADATA_TABLE_NAME);
+	/*
+	 * Replicate recent metadata changes between the metadata replicas.
+	 * The replication engine is kept so that later calls only copy what changed since.
+	 */
+	public synchronized int replicateMetadata() {
+		if (metadataReplicator == null) {
+			metadataReplicator = new ReplicationEngine(this);
+		}
+		int num = metadataReplicator.syncReplicas(GlobalMetadata.METADATA_TABLE_NAME);
 		return num;
 	}
 	
+	public boolean isMetadataTable(String tableName) {
+		return METADATA_TABLE_NAME.equals(tableName);
+	}
+	
 	public Regions getMetadataMaster() {
 		return METADATA_MASTER_REGION;
 	}
@@ -1,56 +1,137 @@
 package com.amazonaws.globaltables;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
+import com.amazonaws.services.dynamodbv2.document.DeleteItemOutcome;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Expected;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
 import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.PutItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.QueryFilter;
+import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.document.UpdateItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.internal.InternalUtils;
 import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
-import com.amazonaws.services.dynamodbv2.model.AttributeAction;
-import com.amazonaws.services.dynamodbv2.model.AttributeValue;
-import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ConditionalOperator;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
 import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.GetItemResult;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
-import com.amazonaws.services.dynamodbv2.model.PutItemResult;
-import com.amazonaws.services.dynamodbv2.model.TableDescription;
-import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
 
 public class GlobalRequestRouter {
 
 	/**
 	 * A global request router that sends eventually consistent reads/writes to the local region
-	 * and strongly consistent reads/writes to the master region
+	 * and strongly consistent reads/writes to the master region.
+	 * A router can be shared by any number of threads: the master endpoint is an immutable
+	 * snapshot that is replaced atomically, and only one thread at a time refreshes it.
 	 */
 	
-	private String tableName;
+	private final String tableName;
 	
-	private String keyName;
+	// Table's key schema, looked up when first needed
+	private volatile TableSchema schema;
 	
-	private Regions localRegion;
-	private Regions masterRegion;
+	private final Regions localRegion;
 	
-	private GlobalMetadata metadata;
+	private final GlobalMetadata metadata;
 	
-	private Lease masterLease;
+	// Invalidates the cached master and regions when the table's metadata changes (if watching)
+	private final GlobalMetadata.MetadataListener metadataListener;
+	private final AtomicBoolean watchingMetadata;
 	
-	// Handles to DynamoDB clients for the master and local regions
-	private AmazonDynamoDB ddbMaster;
-	private AmazonDynamoDB ddbLocal;
+	// Master region, its lease, and its replica, replaced as a unit when the lease may have expired
+	private final AtomicReference<MasterEndpoint> masterEndpoint;
+	private final Object refreshLock = new Object();
 	
-	// Handles to tables in master and local regions
-	private Table masterReplica;
-	private Table localReplica;
+	// Handles to DynamoDB client and table in the local region
+	private final AmazonDynamoDB ddbLocal;
+	private final Table localReplica;
+	
+	// Handles to DynamoDB clients and tables in other regions (masters and hedged reads)
+	private final Map<Regions, AmazonDynamoDB> otherClients;
+	private final Map<Regions, Table> otherReplicas;
+	
+	// Optional policy for hedging slow eventually consistent reads
+	private volatile HedgingPolicy hedgingPolicy;
+	
+	// Optional tracker of region latencies that is fed by every call to a replica
+	private volatile RegionLatencyTracker latencyTracker;
+	
+	// If true, eventually consistent reads go to the fastest healthy replica
+	private volatile boolean latencyAwareReads;
+	
+	// Cached list of the table's regions (refreshed periodically)
+	private static final long REGION_CACHE_TIME = 1000*60L;  // 1 minute
+	private volatile ReplicaRegions replicaRegions;
+	
+	// Number of times a consistent write is retried after being fenced by a newer lease
+	// or racing with another write to the same item
+	private static final int MAX_WRITE_RETRIES = 5;
+	
+	// Number of times an update to replicated attributes is retried after racing with another local update
+	private static final int MAX_CRDT_RETRIES = 5;
+	
+	// Maximum number of items written by one transaction
+	private static final int MAX_TRANSACT_ITEMS = 25;
+	
+	// Threads that issue the reads of transactions concurrently (shared by all routers)
+	private static final ExecutorService transactWorkers = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "transact-read");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	// Consistent writes that are in progress, and whether new ones are held back
+	// while the master is being handed off
+	private final Object writeGate = new Object();
+	private int inFlightWrites;
+	private boolean draining;
+	
+	// Number of strongly consistent operations issued through this router (sampled for master placement)
+	private AtomicLong numConsistentReads;
+	private AtomicLong numConsistentWrites;
 	
 	
 	/*
@@ -58,25 +139,108 @@ public class GlobalRequestRouter {
 	 * and accesses the given table
 	 */
 	public GlobalRequestRouter(String table, Regions region, GlobalMetadata metadata) {
+		this(table, region, metadata, null);
+	}
+	
+	/*
+	 * Constructor for a router whose table's key name is already known,
+	 * which avoids describing the table
+	 */
+	public GlobalRequestRouter(String table, Regions region, GlobalMetadata metadata, String keyName) {
 		tableName = table;
 		localRegion = region;
 		this.metadata = metadata;
+		this.schema = (keyName == null) ? null : new TableSchema(table, keyName, null);
 
 		// Create DynamoDB client for local region
-		ddbLocal = AmazonDynamoDBClientBuilder.standard()
-				.withRegion(localRegion)
-				.build();
+		ddbLocal = DynamoDBClients.get(localRegion);
         localReplica = new Table(ddbLocal, table);
 		
 		// For now, master region is unknown
-		masterRegion = null;
-		masterLease = null;
-		ddbMaster = null;
-        masterReplica = null;
+        masterEndpoint = new AtomicReference<MasterEndpoint>();
         
-        // Get primary key for table
-        TableDescription desc = localReplica.describe();
-        keyName = desc.getKeySchema().get(0).getAttributeName();
+        otherClients = new ConcurrentHashMap<Regions, AmazonDynamoDB>();
+        otherReplicas = new ConcurrentHashMap<Regions, Table>();
+        hedgingPolicy = null;
+        latencyTracker = null;
+        latencyAwareReads = false;
+        replicaRegions = null;
+        inFlightWrites = 0;
+        draining = false;
+        numConsistentReads = new AtomicLong();
+        numConsistentWrites = new AtomicLong();
+        
+        metadataListener = (changedTable, version) -> invalidateMetadata();
+        watchingMetadata = new AtomicBoolean(false);
+	}
+	
+	/*
+	 * Watch the table's metadata, so that master and region changes are seen as soon as
+	 * they are pushed rather than when caches expire. A router that watches must be closed.
+	 */
+	public GlobalRequestRouter withMetadataWatch() {
+		if (!metadata.isMetadataTable(tableName) && watchingMetadata.compareAndSet(false, true)) {
+			metadata.watch(tableName, metadataListener);
+		}
+		return this;
+	}
+	
+	/*
+	 * Stop watching the table's metadata, after which the router no longer sees
+	 * master and region changes until its caches expire
+	 */
+	public void close() {
+		if (watchingMetadata.compareAndSet(true, false)) {
+			metadata.unwatch(tableName, metadataListener);
+		}
+	}
+	
+	
+	/*
+	 * Enable hedged eventually consistent reads using the given policy (or disable if null).
+	 * A hedged read returns whichever replica answers first, which may hold an older version
+	 * than the primary replica, so successive reads of an item are not guaranteed to be monotonic.
+	 */
+	public GlobalRequestRouter withHedging(HedgingPolicy policy) {
+		hedgingPolicy = policy;
+		return this;
+	}
+	
+	public HedgingPolicy getHedgingPolicy() {
+		return hedgingPolicy;
+	}
+	
+	/*
+	 * Report the latency of calls to each region to the given tracker
+	 */
+	public GlobalRequestRouter withLatencyTracker(RegionLatencyTracker tracker) {
+		latencyTracker = tracker;
+		return this;
+	}
+	
+	/*
+	 * Send eventually consistent reads to the fastest healthy replica rather than always
+	 * to the local one (requires a latency tracker)
+	 */
+	public GlobalRequestRouter withLatencyAwareReads(boolean enabled) {
+		latencyAwareReads = enabled;
+		return this;
+	}
+	
+	public String getTableName() {
+		return tableName;
+	}
+	
+	public Regions getLocalRegion() {
+		return localRegion;
+	}
+	
+	public long getNumConsistentReads() {
+		return numConsistentReads.get();
+	}
+	
+	public long getNumConsistentWrites() {
+		return numConsistentWrites.get();
 	}
 	
 	
@@ -91,17 +255,61 @@ public class GlobalRequestRouter {
         return getItem(getItemSpec);
 	}
 	
+	public Item getItem(String hashKeyName, Object hashKeyValue, String rangeKeyName, Object rangeKeyValue) {
+        GetItemSpec getItemSpec = new GetItemSpec()
+        		.withConsistentRead(false)
+        		.withPrimaryKey(hashKeyName, hashKeyValue, rangeKeyName, rangeKeyValue);
+        return getItem(getItemSpec);
+	}
+	
+	public Item getItem(PrimaryKey primaryKey) {
+        GetItemSpec getItemSpec = new GetItemSpec()
+        		.withConsistentRead(false)
+        		.withPrimaryKey(primaryKey);
+        return getItem(getItemSpec);
+	}
+	
+	/*
+	 * Query items with a given hash key (and range key condition), e.g. from time-series tables.
+	 * Like reads, consistent queries go to the master and eventually consistent ones to the local region.
+	 * Tombstones of deleted items are filtered out by DynamoDB, although they still consume read capacity.
+	 * Queries are not reported to the latency tracker, since the returned collection fetches its pages
+	 * only as it is iterated, and fetching the first page here would read it twice.
+	 */
+	public ItemCollection<QueryOutcome> query(QuerySpec spec) {
+		QuerySpec readSpec = hideTombstones(spec);
+		Table replica;
+		if (spec.getRequest().isConsistentRead() != null && spec.getRequest().isConsistentRead()) {
+			numConsistentReads.incrementAndGet();
+			replica = getMasterEndpoint().replica;
+		} else {
+			replica = getReplica(selectReadRegion());
+		}
+		return replica.query(readSpec);
+	}
+	
 	public Item getItem(GetItemSpec spec) {
 		// Select replica based on desired consistency
+		Regions regionToRead = localRegion;
 		Table replica = localReplica;
 		if (spec.isConsistentRead()) {
-			refreshMasterEndpoint();
-			replica = masterReplica;
+			numConsistentReads.incrementAndGet();
+			MasterEndpoint master = getMasterEndpoint();
+			regionToRead = master.region;
+			replica = master.replica;
+		} else {
+			regionToRead = selectReadRegion();
+			replica = getReplica(regionToRead);
+			if (hedgingPolicy != null) {
+				return hideTombstone(hedgedGetItem(withTombstoneProjection(spec), regionToRead));
+			}
 		}
 		
 		// Do read
-		Item item = replica.getItem(spec);
-        return item;
+		final Table readReplica = replica;
+		GetItemSpec readSpec = withTombstoneProjection(spec);
+		Item item = timed(regionToRead, () -> readReplica.getItem(readSpec));
+        return hideTombstone(item);
 	}
 	
 	public PutItemOutcome putItem(Item item) {
@@ -111,26 +319,109 @@ public class GlobalRequestRouter {
 		return putItem(putSpec);
 	}
 	
+	/*
+	 * The router adds system attributes and fencing conditions to a copy of the spec,
+	 * so that the caller's spec and item can be reused
+	 */
 	public PutItemOutcome putItem(ConsistentPutItemSpec spec) {
-		// Select replica based on desired consistency
-		Regions regionToWrite = localRegion;
-		Table replica = localReplica;
-		if (spec.isConsistentWrite()) {
-			refreshMasterEndpoint();
-			regionToWrite = masterRegion;
-			replica = masterReplica;
+		return putItemCopy(spec.copy());
+	}
+	
+	private PutItemOutcome putItemCopy(ConsistentPutItemSpec spec) {
+		if (!spec.isConsistentWrite()) {
+			return doPutItem(spec);
 		}
-		
-		// Add system attributes to item being written
+		numConsistentWrites.incrementAndGet();
+		beginConsistentWrite();
+		try {
+			return doPutItem(spec);
+		} finally {
+			endConsistentWrite();
+		}
+	}
+	
+	private PutItemOutcome doPutItem(ConsistentPutItemSpec spec) {
 		Item item = spec.getItem();
-		VersionVector newVersion = bumpVersionVector(replica, item.getString(keyName), regionToWrite);
-		SystemAttributes.setTimestamp(item, System.currentTimeMillis());
-		SystemAttributes.setOrigin(item, regionToWrite.getName());
-		SystemAttributes.setVersion(item, newVersion);  
+		if (!spec.isConsistentWrite()) {
+			// Add system attributes to item being written, keeping the epoch of the last consistent write
+			Item storedItem = readStoredItem(localReplica, getSchema().getPrimaryKey(item));
+			addSystemAttributes(item, storedItem, localRegion);
+			if (storedItem != null && SystemAttributes.hasEpoch(storedItem)) {
+				SystemAttributes.setEpoch(item, SystemAttributes.getEpoch(storedItem));
+			}
+			return timed(localRegion, () -> localReplica.putItem(spec));
+		}
 		
-		// Do write
-		PutItemOutcome outcome = replica.putItem(spec);
-        return outcome;
+		// Consistent writes carry the master's lease epoch and are rejected by a replica
+		// that has seen a write with a newer epoch. They are also rejected if the item changed after
+		// its version was read (or does not have the expected version), so that concurrent writers
+		// cannot both bump the same version.
+		Collection<Expected> expected = spec.getExpected();
+		String condition = spec.getConditionExpression();
+		Map<String, String> nameMap = spec.getNameMap();
+		Map<String, Object> valueMap = spec.getValueMap();
+		if (spec.isVersionChecked() && expected != null) {
+			throw new IllegalArgumentException("An expected version cannot be combined with legacy expected conditions");
+		}
+		if (isOrCondition(spec.getConditionalOperator())) {
+			// the fence and the version condition cannot be AND'ed with OR'ed expected conditions
+			throw new IllegalArgumentException("A consistent write cannot use OR'ed expected conditions");
+		}
+		PrimaryKey key = getSchema().getPrimaryKey(item);
+		for (int attempt = 0; ; attempt++) {
+			MasterEndpoint master = getLeasedMasterEndpoint();
+			Lease lease = master.lease;
+			Regions regionToWrite = master.region;
+			Table replica = master.replica;
+			Item storedItem = null;
+			if (spec.isVersionChecked()) {
+				// the write succeeds only if the expected version is stored, so there is nothing to read
+				addSystemAttributes(item, bumpExpectedVersion(spec.getExpectedVersion(), regionToWrite), regionToWrite);
+			} else {
+				storedItem = readStoredItem(replica, key);
+				if (isFenced(storedItem, lease)) {
+					if (attempt >= MAX_WRITE_RETRIES || !isNewerLease(master)) {
+						throw new ConditionalCheckFailedException("Write to " + regionToWrite + " fenced by a newer master lease");
+					}
+					continue;
+				}
+				addSystemAttributes(item, storedItem, regionToWrite);
+			}
+			SystemAttributes.setEpoch(item, lease.getEpoch());
+			if (condition != null || spec.isVersionChecked()) {
+				String versionCondition;
+				Map<String, Object> versionValues;
+				if (spec.isVersionChecked()) {
+					versionCondition = SystemAttributes.getExpectedVersionCondition(spec.getExpectedVersion());
+					versionValues = SystemAttributes.getExpectedVersionValues(spec.getExpectedVersion());
+				} else {
+					versionCondition = SystemAttributes.getUnchangedCondition(storedItem);
+					versionValues = SystemAttributes.getUnchangedValues(storedItem);
+				}
+				spec.withConditionExpression(fenceExpression(condition, versionCondition))
+						.withNameMap(fenceNameMap(nameMap))
+						.withValueMap(fenceValueMap(valueMap, versionValues, lease));
+			} else {
+				List<Expected> fenced = fenceExpected(expected, storedItem, lease);
+				fenced.add(SystemAttributes.getVersionExpected(storedVersion(storedItem)));
+				spec.withExpected(fenced);
+			}
+			try {
+				return timed(regionToWrite, () -> replica.putItem(spec));
+			} catch (ConditionalCheckFailedException e) {
+				if (attempt >= MAX_WRITE_RETRIES) {
+					throw e;
+				}
+				if (isNewerLease(master)) {
+					continue;
+				}
+				Item currentItem = readStoredItem(replica, key);
+				if (!spec.isVersionChecked() && !sameVersion(currentItem, storedVersion(storedItem))) {
+					continue;  // raced with another write
+				}
+				throw new WriteConflictException(e, currentItem);
+			}
+		}
 	}
 	
 	public UpdateItemOutcome updateItem(String hashKeyName, Object hashKeyValue, AttributeUpdate... attributeUpdates) {
@@ -142,24 +433,449 @@ public class GlobalRequestRouter {
 	}
 
 	public UpdateItemOutcome updateItem(ConsistentUpdateItemSpec spec) {
-		// Select replica based on desired consistency
-		Regions regionToWrite = localRegion;
-		Table replica = localReplica;
-		if (spec.isConsistentWrite()) {
-			refreshMasterEndpoint();
-			regionToWrite = masterRegion;
-			replica = masterReplica;
+		return updateItemCopy(spec.copy());
+	}
+	
+	private UpdateItemOutcome updateItemCopy(ConsistentUpdateItemSpec spec) {
+		if (!spec.isConsistentWrite()) {
+			return doUpdateItem(spec);
+		}
+		numConsistentWrites.incrementAndGet();
+		beginConsistentWrite();
+		try {
+			return doUpdateItem(spec);
+		} finally {
+			endConsistentWrite();
+		}
+	}
+	
+	private UpdateItemOutcome doUpdateItem(ConsistentUpdateItemSpec spec) {
+		if (!spec.isConsistentWrite()) {
+			// Add updates for item's system attributes
+			Item storedItem = readStoredItem(localReplica, spec.getPrimaryKey());
+			addSystemAttributeUpdates(spec, storedItem, localRegion);
+			return timed(localRegion, () -> localReplica.updateItem(spec));
 		}
 		
-		// Add updates for item's system attributes
-		VersionVector newVersion = bumpVersionVector(replica, spec.getPrimaryKeyValue(), regionToWrite);
-		spec.addAttributeUpdate(SystemAttributes.updateTimestamp());
-		spec.addAttributeUpdate(SystemAttributes.updateOrigin(regionToWrite));
-		spec.addAttributeUpdate(SystemAttributes.updateVersion(newVersion, regionToWrite));
+		// Consistent writes carry the master's lease epoch and are rejected by a replica
+		// that has seen a write with a newer epoch, or if the item changed after its version was read
+		// (or does not have the expected version)
+		List<AttributeUpdate> updates = new ArrayList<AttributeUpdate>();
+		if (spec.getAttributeUpdate() != null) {
+			updates.addAll(spec.getAttributeUpdate());
+		}
+		Collection<Expected> expected = spec.getExpected();
+		if (isOrCondition(spec.getConditionalOperator())) {
+			// the fence and the version condition cannot be AND'ed with OR'ed expected conditions
+			throw new IllegalArgumentException("A consistent write cannot use OR'ed expected conditions");
+		}
+		PrimaryKey key = spec.getPrimaryKey();
 		
-		// Do write
-		UpdateItemOutcome outcome = replica.updateItem(spec);
-        return outcome;
+		// Item whose epoch fences an optimistic write, which is known only after the write failed
+		// because the item's epoch was not as assumed
+		Item fencingItem = null;
+		for (int attempt = 0; ; attempt++) {
+			MasterEndpoint master = getLeasedMasterEndpoint();
+			Lease lease = master.lease;
+			Regions regionToWrite = master.region;
+			Table replica = master.replica;
+			Item storedItem = null;
+			spec.withAttributeUpdate(new ArrayList<AttributeUpdate>(updates));
+			List<Expected> fenced;
+			if (spec.isVersionChecked()) {
+				// the write succeeds only if the expected version is stored, so there is nothing to read;
+				// an existing item is assumed to have an epoch
+				VersionVector expectedVersion = spec.getExpectedVersion();
+				addSystemAttributeUpdates(spec, bumpExpectedVersion(expectedVersion, regionToWrite), regionToWrite);
+				fenced = new ArrayList<Expected>();
+				if (expected != null) {
+					fenced.addAll(expected);
+				}
+				fenced.add((fencingItem != null) ? SystemAttributes.getEpochFence(fencingItem, lease.getEpoch())
+						: SystemAttributes.getEpochFence(expectedVersion != null, lease.getEpoch()));
+				fenced.add(SystemAttributes.getVersionExpected(expectedVersion));
+			} else {
+				storedItem = readStoredItem(replica, key);
+				if (isFenced(storedItem, lease)) {
+					if (attempt >= MAX_WRITE_RETRIES || !isNewerLease(master)) {
+						throw new ConditionalCheckFailedException("Write to " + regionToWrite + " fenced by a newer master lease");
+					}
+					continue;
+				}
+				addSystemAttributeUpdates(spec, storedItem, regionToWrite);
+				fenced = fenceExpected(expected, storedItem, lease);
+				fenced.add(SystemAttributes.getVersionExpected(storedVersion(storedItem)));
+			}
+			spec.addAttributeUpdate(SystemAttributes.updateEpoch(lease.getEpoch()));
+			spec.withExpected(fenced);
+			try {
+				return timed(regionToWrite, () -> replica.updateItem(spec));
+			} catch (ConditionalCheckFailedException e) {
+				if (attempt >= MAX_WRITE_RETRIES) {
+					throw e;
+				}
+				if (isNewerLease(master)) {
+					continue;
+				}
+				Item currentItem = readStoredItem(replica, key);
+				if (spec.isVersionChecked()) {
+					if (fencingItem == null && sameVersion(currentItem, spec.getExpectedVersion()) && !isFenced(currentItem, lease)) {
+						fencingItem = currentItem;  // the item has the expected version but no epoch
+						continue;
+					}
+				} else if (!sameVersion(currentItem, storedVersion(storedItem))) {
+					continue;  // raced with another write
+				}
+				throw new WriteConflictException(e, currentItem);
+			}
+		}
+	}
+	
+	/*
+	 * Optimistic writes, which are consistent writes that return a conflict rather than throwing
+	 * when the item does not have the expected version (see ConsistentPutItemSpec.withExpectedVersion)
+	 * or fails the write's condition. A successful write returns the item's new version, which
+	 * the client can expect in its next write of the item without reading it again.
+	 */
+	
+	public ConditionalWriteOutcome putItem(Item item, VersionVector expectedVersion) {
+		ConsistentPutItemSpec putSpec = new ConsistentPutItemSpec()
+				.withExpectedVersion(expectedVersion);
+		putSpec.withItem(item);
+		return tryPutItem(putSpec);
+	}
+	
+	public ConditionalWriteOutcome updateItem(PrimaryKey primaryKey, VersionVector expectedVersion, AttributeUpdate... attributeUpdates) {
+		ConsistentUpdateItemSpec updateSpec = new ConsistentUpdateItemSpec()
+				.withExpectedVersion(expectedVersion)
+				.withPrimaryKey(primaryKey);
+		updateSpec.withAttributeUpdate(attributeUpdates);
+		return tryUpdateItem(updateSpec);
+	}
+	
+	public ConditionalWriteOutcome tryPutItem(ConsistentPutItemSpec spec) {
+		ConsistentPutItemSpec putSpec = spec.copy()
+				.withConsistentWrite(true);
+		try {
+			putItemCopy(putSpec);
+			return ConditionalWriteOutcome.written(SystemAttributes.getVersion(putSpec.getItem()));
+		} catch (WriteConflictException e) {
+			return ConditionalWriteOutcome.conflict(e.currentItem);
+		}
+	}
+	
+	public ConditionalWriteOutcome tryUpdateItem(ConsistentUpdateItemSpec spec) {
+		ConsistentUpdateItemSpec updateSpec = spec.copy()
+				.withConsistentWrite(true);
+		updateSpec.withReturnValues(ReturnValue.UPDATED_NEW);
+		try {
+			UpdateItemOutcome outcome = updateItemCopy(updateSpec);
+			return ConditionalWriteOutcome.written(SystemAttributes.getVersion(outcome.getItem()));
+		} catch (WriteConflictException e) {
+			return ConditionalWriteOutcome.conflict(e.currentItem);
+		}
+	}
+
+	
+	/*
+	 * Delete an item by writing a tombstone in its place. The tombstone gets a new version like any
+	 * other write, so the delete is replicated and resolved against concurrent updates, and it is
+	 * hidden from reads until a TombstoneCollector removes it once all replicas have seen it.
+	 */
+	
+	public DeleteItemOutcome deleteItem(String hashKeyName, Object hashKeyValue) {
+		return deleteItem(new PrimaryKey(hashKeyName, hashKeyValue));
+	}
+	
+	public DeleteItemOutcome deleteItem(String hashKeyName, Object hashKeyValue, String rangeKeyName, Object rangeKeyValue) {
+		return deleteItem(new PrimaryKey(hashKeyName, hashKeyValue, rangeKeyName, rangeKeyValue));
+	}
+	
+	public DeleteItemOutcome deleteItem(PrimaryKey primaryKey) {
+		return deleteItem(primaryKey, true);
+	}
+	
+	public DeleteItemOutcome deleteItem(PrimaryKey primaryKey, boolean consistentWrite) {
+		Item tombstone = new Item().withPrimaryKey(primaryKey);
+		SystemAttributes.setDeleted(tombstone);
+		ConsistentPutItemSpec putSpec = (ConsistentPutItemSpec) new ConsistentPutItemSpec()
+				.withConsistentWrite(consistentWrite)
+				.withItem(tombstone);
+		PutItemOutcome putOutcome = putItem(putSpec);
+		DeleteItemResult deleteResult = new DeleteItemResult()
+				.withConsumedCapacity(putOutcome.getPutItemResult().getConsumedCapacity());
+		return new DeleteItemOutcome(deleteResult);
+	}
+
+	
+	/*
+	 * Write several items (with distinct keys) together at the master as one consistent write.
+	 * The stored versions of all items are read concurrently and then all items are written
+	 * with a single DynamoDB transaction, each on condition that it is unchanged and not fenced
+	 * by a newer lease, so the transaction costs two round trips to the master however many items
+	 * it writes. Either all items are written or none is; if any condition fails because another write
+	 * raced with the transaction, the stored items are read again and the transaction is retried, as a
+	 * single-item write would be, until ConditionalCheckFailedException is thrown after too many attempts.
+	 * All items get the same timestamp and transaction id, and replication applies them together
+	 * once it has seen all, so that readers of other replicas do not see part of a transaction either.
+	 */
+	public TransactWriteItemsResult transactWrite(List<Item> items) {
+		if (items.size() > MAX_TRANSACT_ITEMS) {
+			throw new IllegalArgumentException("A transaction can write at most " + MAX_TRANSACT_ITEMS + " items");
+		}
+		Set<PrimaryKey> keys = new HashSet<PrimaryKey>();
+		List<Item> copies = new ArrayList<Item>(items.size());
+		for (Item item : items) {
+			if (!keys.add(getSchema().getPrimaryKey(item))) {
+				throw new IllegalArgumentException("A transaction cannot write item " + getSchema().getPrimaryKey(item) + " more than once");
+			}
+			// system attributes are added to copies, so that the caller's items can be reused
+			copies.add(Item.fromMap(item.asMap()));
+		}
+		numConsistentWrites.incrementAndGet();
+		beginConsistentWrite();
+		try {
+			return doTransactWrite(copies);
+		} finally {
+			endConsistentWrite();
+		}
+	}
+	
+	private TransactWriteItemsResult doTransactWrite(List<Item> items) {
+		for (int attempt = 0; ; attempt++) {
+			MasterEndpoint master = getLeasedMasterEndpoint();
+			Lease lease = master.lease;
+			Regions regionToWrite = master.region;
+			Table replica = master.replica;
+			List<Item> storedItems = inParallel(items,
+					item -> timed(regionToWrite, () -> readStoredItem(replica, getSchema().getPrimaryKey(item))));
+			boolean fenced = false;
+			for (Item storedItem : storedItems) {
+				fenced |= isFenced(storedItem, lease);
+			}
+			if (fenced) {
+				if (attempt >= MAX_WRITE_RETRIES || !isNewerLease(master)) {
+					throw new ConditionalCheckFailedException("Write to " + regionToWrite + " fenced by a newer master lease");
+				}
+				continue;
+			}
+			
+			// Give every item a new version, and the transaction's timestamp and id
+			String transactionId = UUID.randomUUID().toString();
+			long timestamp = System.currentTimeMillis();
+			List<TransactWriteItem> writes = new ArrayList<TransactWriteItem>(items.size());
+			for (int i = 0; i < items.size(); i++) {
+				Item item = items.get(i);
+				addSystemAttributes(item, storedItems.get(i), regionToWrite);
+				SystemAttributes.setTimestamp(item, timestamp);
+				SystemAttributes.setEpoch(item, lease.getEpoch());
+				SystemAttributes.setTransaction(item, transactionId, items.size());
+				writes.add(new TransactWriteItem().withPut(unchangedPut(item, storedItems.get(i), lease)));
+			}
+			TransactWriteItemsRequest request = new TransactWriteItemsRequest()
+					.withTransactItems(writes)
+					.withClientRequestToken(transactionId);
+			AmazonDynamoDB ddb = getClient(regionToWrite);
+			try {
+				return timed(regionToWrite, () -> ddb.transactWriteItems(request));
+			} catch (TransactionCanceledException e) {
+				if (!isConflict(e)) {
+					throw e;
+				}
+				// the items have no conditions of their own, so another write raced with them, or a newer
+				// lease fenced them, which re-reading the stored items detects
+				if (attempt >= MAX_WRITE_RETRIES) {
+					ConditionalCheckFailedException conflict = new ConditionalCheckFailedException(
+							"Transaction at " + regionToWrite + " conflicted with another write");
+					conflict.initCause(e);
+					throw conflict;
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Put the item on condition that the stored item is unchanged and not fenced by a newer lease
+	 */
+	private Put unchangedPut(Item item, Item storedItem, Lease lease) {
+		return new Put()
+				.withTableName(tableName)
+				.withItem(InternalUtils.toAttributeValues(item))
+				.withConditionExpression(fenceExpression(null, SystemAttributes.getUnchangedCondition(storedItem)))
+				.withExpressionAttributeNames(fenceNameMap(null))
+				.withExpressionAttributeValues(InternalUtils.fromSimpleMap(
+						fenceValueMap(null, SystemAttributes.getUnchangedValues(storedItem), lease)));
+	}
+	
+	/*
+	 * Returns true if the transaction was cancelled because an item failed its condition
+	 * or was being written by another transaction
+	 */
+	private static boolean isConflict(TransactionCanceledException e) {
+		if (e.getCancellationReasons() == null) {
+			return false;
+		}
+		for (CancellationReason reason : e.getCancellationReasons()) {
+			if ("ConditionalCheckFailed".equals(reason.getCode()) || "TransactionConflict".equals(reason.getCode())) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * Apply the call to all inputs concurrently, returning the results in the same order
+	 */
+	private static <T, R> List<R> inParallel(List<T> inputs, Function<T, R> call) {
+		List<Future<R>> futures = new ArrayList<Future<R>>(inputs.size());
+		for (T input : inputs) {
+			futures.add(transactWorkers.submit(() -> call.apply(input)));
+		}
+		List<R> results = new ArrayList<R>(inputs.size());
+		try {
+			for (Future<R> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted while waiting for concurrent requests", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		return results;
+	}
+
+	
+	/*
+	 * Support for planned master handoffs
+	 */
+	
+	/*
+	 * Hold back new consistent writes and wait until those in progress have completed.
+	 * Returns false if writes were still in progress when the timeout expired.
+	 */
+	public boolean drainConsistentWrites(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (writeGate) {
+			draining = true;
+			while (inFlightWrites > 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					writeGate.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	/*
+	 * Let consistent writes proceed again, sending them to the (possibly new) master
+	 */
+	public void resumeConsistentWrites() {
+		synchronized (writeGate) {
+			masterEndpoint.set(null);
+			draining = false;
+			writeGate.notifyAll();
+		}
+	}
+	
+	private void beginConsistentWrite() {
+		synchronized (writeGate) {
+			while (draining) {
+				try {
+					writeGate.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while waiting for master handoff", e);
+				}
+			}
+			inFlightWrites++;
+		}
+	}
+	
+	private void endConsistentWrite() {
+		synchronized (writeGate) {
+			inFlightWrites--;
+			if (inFlightWrites == 0) {
+				writeGate.notifyAll();
+			}
+		}
+	}
+
+	
+	/*
+	 * Updates to conflict-free replicated attributes (see CrdtState).
+	 * These are eventually consistent writes at the local replica that are merged with, rather than
+	 * overwritten by, concurrent updates in other regions. Such attributes should only be written
+	 * with these operations, since a put of the whole item replaces their replicated state.
+	 * Each operation returns the updated item.
+	 */
+	
+	public Item incrementCounter(PrimaryKey key, String attributeName, long delta) {
+		return updateCrdt(key, state -> state.getCounter(attributeName).add(localRegion, delta));
+	}
+	
+	public Item addToSet(PrimaryKey key, String attributeName, String... elements) {
+		return updateCrdt(key, state -> {
+			for (String element : elements) {
+				state.getSet(attributeName).add(localRegion, element);
+			}
+		});
+	}
+	
+	public Item removeFromSet(PrimaryKey key, String attributeName, String... elements) {
+		return updateCrdt(key, state -> {
+			for (String element : elements) {
+				state.getSet(attributeName).remove(element);
+			}
+		});
+	}
+	
+	public Item putMapEntry(PrimaryKey key, String attributeName, String mapKey, Object value) {
+		return updateCrdt(key, state -> state.getMap(attributeName).put(mapKey, value, localRegion));
+	}
+	
+	public Item removeMapEntry(PrimaryKey key, String attributeName, String mapKey) {
+		return updateCrdt(key, state -> state.getMap(attributeName).remove(mapKey, localRegion));
+	}
+	
+	/*
+	 * Read the local item, apply the update to its replicated state, and write it back
+	 * unless another local update got there first (in which case the update is applied again)
+	 */
+	private Item updateCrdt(PrimaryKey key, Consumer<CrdtState> update) {
+		for (int attempt = 0; ; attempt++) {
+			Item storedItem = readStoredItem(localReplica, key);
+			Item item = (storedItem == null || SystemAttributes.isDeleted(storedItem))
+					? new Item().withPrimaryKey(key) : Item.fromMap(storedItem.asMap());
+			SystemAttributes.clearTransaction(item);
+			CrdtState state = CrdtState.fromItem(item, localRegion);
+			update.accept(state);
+			state.applyTo(item);
+			addSystemAttributes(item, storedItem, localRegion);
+			PutItemSpec putSpec = new PutItemSpec()
+					.withItem(item)
+					.withConditionExpression(SystemAttributes.getUnchangedCondition(storedItem))
+					.withNameMap(SystemAttributes.getUnchangedNames())
+					.withValueMap(SystemAttributes.getUnchangedValues(storedItem));
+			try {
+				timed(localRegion, () -> localReplica.putItem(putSpec));
+				return item;
+			} catch (ConditionalCheckFailedException e) {
+				if (attempt >= MAX_CRDT_RETRIES) {
+					throw e;
+				}
+			}
+		}
 	}
 
 	
@@ -170,85 +886,514 @@ public class GlobalRequestRouter {
 	public GetItemResult getItem(GetItemRequest getItemRequest) {
 		AmazonDynamoDB ddb = ddbLocal;
 		if (getItemRequest.isConsistentRead()) {
-			refreshMasterEndpoint();
-			ddb = ddbMaster;
+			ddb = getClient(getMasterEndpoint().region);
 		}
 		GetItemResult getItemResult = ddb.getItem(getItemRequest);
+		if (getItemResult.getItem() != null && SystemAttributes.isDeleted(getItemResult.getItem())) {
+			getItemResult.setItem(null);  // tombstone
+		}
         return getItemResult;
 	}
 	
-	public PutItemResult putItem(ConsistentPutItemRequest putItemRequest) {
-		Regions regionToWrite = localRegion;
-		AmazonDynamoDB ddb = ddbLocal;
-		if (putItemRequest.isConsistentWrite()) {
-			refreshMasterEndpoint();
-			regionToWrite = masterRegion;
-			ddb = ddbMaster;
-		}
-		Map<String, AttributeValue> item = putItemRequest.getItem();
-		HashMap<String,AttributeValue> key = new HashMap<String,AttributeValue>();
-        key.put("name", putItemRequest.getItem().get("name"));  // should not have to know about primary key
-		AttributeValue versionVector = bumpVersionVector(putItemRequest.getTableName(), key, ddb, regionToWrite);
-		SystemAttributes.setTimestamp(item, System.currentTimeMillis());
-		SystemAttributes.setOrigin(item, regionToWrite.getName());
-		SystemAttributes.setVersion(item, versionVector);  
-		PutItemResult putItemResult = ddb.putItem(putItemRequest);
-        return putItemResult;
+	/*
+	 * Internal operations
+	 */
+	
+	/*
+	 * Returns the current master endpoint, refreshing it if its lease may have expired
+	 */
+	private MasterEndpoint getMasterEndpoint() {
+		MasterEndpoint endpoint = masterEndpoint.get();
+		if (endpoint != null && !endpoint.lease.maybeExpired()) {
+			return endpoint;
+		}
+		return refreshMasterEndpoint(endpoint);
 	}
 	
-	public UpdateItemResult updateItem(ConsistentUpdateItemRequest updateItemRequest) {
-		Regions regionToWrite = localRegion;
-		AmazonDynamoDB ddb = ddbLocal;
-		if (updateItemRequest.isConsistentWrite()) {
-			refreshMasterEndpoint();
-			regionToWrite = masterRegion;
-			ddb = ddbMaster;
+	/*
+	 * Returns the current master endpoint for a consistent write, which must be made under a lease
+	 * that some region holds. A released or expired lease keeps its epoch until the next owner
+	 * acquires it, so a write under it would pass the fence at the old master, e.g. during a handoff.
+	 */
+	private MasterEndpoint getLeasedMasterEndpoint() {
+		MasterEndpoint endpoint = getMasterEndpoint();
+		if (endpoint.lease.getOwner() == null || endpoint.lease.maybeExpired()) {
+			throw new ConditionalCheckFailedException("No region holds the master lease of " + tableName);
 		}
+		return endpoint;
+	}
+	
+	/*
+	 * Replace the given stale endpoint. Concurrent callers wait for a single refresh
+	 * and then share its result rather than each reading the metadata.
+	 * The master is the lease's owner while the lease is held, so that the region and the epoch
+	 * always come from the same lease, and otherwise the master named in the metadata.
+	 */
+	private MasterEndpoint refreshMasterEndpoint(MasterEndpoint stale) {
+		synchronized (refreshLock) {
+			MasterEndpoint current = masterEndpoint.get();
+			if (current != stale) {
+				// another thread already refreshed the endpoint
+				return current;
+			}
+			// lease may have been renewed or transferred since last read
+			Lease lease = metadata.getLease(tableName);
+			Regions master = (lease.getOwner() != null && !lease.maybeExpired())
+					? lease.getOwner()
+					: metadata.getMaster(tableName);
+			MasterEndpoint fresh = new MasterEndpoint(master, lease, getReplica(master));
+			masterEndpoint.set(fresh);
+			return fresh;
+		}
+	}
+	
+	/*
+	 * Read from the primary replica, but if no response arrives within the hedge delay
+	 * then also read from another replica and take the first acceptable response.
+	 */
+	private Item hedgedGetItem(final GetItemSpec spec, final Regions primaryRegion) {
+		HedgingPolicy policy = hedgingPolicy;
+		policy.recordRead();
+		long startTime = System.currentTimeMillis();
 		
-		// Create item to temporarily hold system attribute values
-		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
-		SystemAttributes.setTimestamp(item, System.currentTimeMillis());
-		SystemAttributes.setOrigin(item, regionToWrite.getName());
-		AttributeValue versionVector = bumpVersionVector(updateItemRequest.getTableName(), updateItemRequest.getKey(), ddb, regionToWrite);
-		SystemAttributes.setVersion(item, versionVector);  
-		
-		// Add updates for item's system attributes
-		Map<String, AttributeValueUpdate> updates = updateItemRequest.getAttributeUpdates();
-		for (String key : item.keySet()) {
-			updates.put(key, new AttributeValueUpdate(item.get(key), AttributeAction.PUT));			
+		final Table primaryReplica = getReplica(primaryRegion);
+		CompletionService<Item> reads = new ExecutorCompletionService<Item>(policy.getExecutor());
+		Future<Item> localRead = reads.submit(() -> timed(primaryRegion, () -> primaryReplica.getItem(spec)));
+		Future<Item> hedgedRead = null;
+		try {
+			// Wait for the local replica to respond within the hedge delay
+			Future<Item> done = reads.poll(policy.getHedgeDelay(), TimeUnit.MILLISECONDS);
+			if (done != null) {
+				policy.recordLatency(System.currentTimeMillis() - startTime);
+				return done.get();
+			}
+			
+			// Local read is slow, so hedge if there is another replica and the budget allows
+			Regions hedgeRegion = selectHedgeRegion(policy, primaryRegion);
+			if (hedgeRegion == null || !policy.tryAcquireHedge()) {
+				Item item = localRead.get();
+				policy.recordLatency(System.currentTimeMillis() - startTime);
+				return item;
+			}
+			final Table hedgeReplica = getReplica(hedgeRegion);
+			hedgedRead = reads.submit(() -> timed(hedgeRegion, () -> hedgeReplica.getItem(spec)));
+			
+			// Take the first response that is acceptable
+			for (int i = 0; i < 2; i++) {
+				done = reads.take();
+				if (done == localRead) {
+					policy.recordLatency(System.currentTimeMillis() - startTime);
+					hedgedRead.cancel(true);
+					return localRead.get();
+				}
+				Item item = null;
+				try {
+					item = done.get();
+				} catch (ExecutionException e) {
+					// failed hedge, so wait for local response
+				}
+				if (isAcceptableHedge(item)) {
+					// local latency is at least as long as what has elapsed
+					policy.recordLatency(System.currentTimeMillis() - startTime);
+					policy.recordHedgeWin();
+					localRead.cancel(true);
+					return item;
+				}
+			}
+			return localRead.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			localRead.cancel(true);
+			if (hedgedRead != null) {
+				hedgedRead.cancel(true);
+			}
+			// a read made on the interrupted thread would be aborted by the SDK, so do not fall back to one
+			throw new AmazonClientException("Interrupted while waiting for hedged read", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
 		}
-		UpdateItemResult updateItemResult = ddb.updateItem(updateItemRequest);
-        return updateItemResult;
 	}
 	
 	/*
-	 * Internal operations
+	 * A hedged response is only acceptable if it contains an item written through a router.
+	 * A missing item may simply mean that the item has not yet been replicated to that region.
+	 * An existing item is not compared with the primary replica's version, which is unknown when
+	 * the hedge wins, so the hedge may return an older version of the item than the primary holds.
+	 * Reads that must not go back in time should be strongly consistent.
 	 */
+	private boolean isAcceptableHedge(Item item) {
+		return item != null && SystemAttributes.hasVersion(item);
+	}
 	
-	private void refreshMasterEndpoint() {
-		if (masterLease == null) {
-			masterLease = metadata.getLease(tableName);
+	/*
+	 * Choose the nearest replica other than the primary one for a hedged read
+	 */
+	private Regions selectHedgeRegion(HedgingPolicy policy, Regions primaryRegion) {
+		Set<Regions> regions = getReplicaRegions();
+		if (regions == null) {
+			return null;
 		}
-		if (masterRegion == null || masterLease.maybeExpired()) {
-			Regions currentMaster = metadata.getMaster(tableName);
-			if (currentMaster != masterRegion) {
-				// master region has changed
-				masterRegion = currentMaster;
-				ddbMaster = AmazonDynamoDBClientBuilder.standard()
-						.withRegion(masterRegion)
-						.build();			
-				masterReplica = new Table(ddbMaster, tableName);
+		List<Regions> candidates = new ArrayList<Regions>(regions);
+		candidates.remove(primaryRegion);
+		if (candidates.isEmpty()) {
+			return null;
+		}
+		if (latencyTracker != null) {
+			Regions fastest = latencyTracker.rank(candidates).get(0);
+			if (latencyTracker.isKnown(fastest) && latencyTracker.isHealthy(fastest)) {
+				return fastest;
+			}
+		}
+		for (Regions region : policy.getRegionOrder()) {
+			if (candidates.contains(region)) {
+				return region;
 			}
 		}
+		MasterEndpoint master = masterEndpoint.get();
+		if (master != null && candidates.contains(master.region)) {
+			return master.region;
+		}
+		return candidates.get(0);
+	}
+	
+	/*
+	 * Choose the replica for an eventually consistent read. This is the local replica unless
+	 * it is still being bootstrapped or, with latency-aware reads, another one is measurably better.
+	 */
+	private Regions selectReadRegion() {
+		Set<Regions> regions = getReplicaRegions();
+		if (regions == null || regions.isEmpty()) {
+			return localRegion;
+		}
+		if (latencyAwareReads && latencyTracker != null) {
+			return latencyTracker.selectFastest(regions, localRegion);
+		}
+		if (regions.contains(localRegion)) {
+			return localRegion;
+		}
+		
+		// Local replica is not yet readable, so use the nearest readable one
+		if (latencyTracker != null) {
+			return latencyTracker.rank(regions).get(0);
+		}
+		MasterEndpoint master = masterEndpoint.get();
+		if (master != null && regions.contains(master.region)) {
+			return master.region;
+		}
+		return regions.iterator().next();
 	}
 	
-	private VersionVector bumpVersionVector(Table replica, String key, Regions region) {
-		// Read current item
+	/*
+	 * Perform a call to a replica in the given region and report its latency.
+	 * A call aborted by interrupting its thread, e.g. the losing read of a hedge, is not reported.
+	 */
+	private <T> T timed(Regions region, Supplier<T> call) {
+		if (latencyTracker == null) {
+			return call.get();
+		}
+		long startTime = System.currentTimeMillis();
+		try {
+			T result = call.get();
+			latencyTracker.recordSuccess(region, System.currentTimeMillis() - startTime);
+			return result;
+		} catch (RuntimeException e) {
+			if (!(e instanceof AbortedException) && !Thread.currentThread().isInterrupted()) {
+				latencyTracker.recordError(region, System.currentTimeMillis() - startTime);
+			}
+			throw e;
+		}
+	}
+	
+	/*
+	 * Forget the cached master and regions after the table's metadata changed
+	 */
+	private void invalidateMetadata() {
+		replicaRegions = null;
+		MasterEndpoint current = masterEndpoint.get();
+		if (current != null) {
+			masterEndpoint.compareAndSet(current, null);
+		}
+	}
+	
+	/*
+	 * Returns the regions that can serve reads, i.e. excluding those being bootstrapped.
+	 * The metadata table's own regions are fixed, and looking them up would recurse.
+	 */
+	private Set<Regions> getReplicaRegions() {
+		if (metadata.isMetadataTable(tableName)) {
+			return null;
+		}
+		ReplicaRegions cached = replicaRegions;
+		long now = System.currentTimeMillis();
+		if (cached == null || now > cached.time + REGION_CACHE_TIME) {
+			// concurrent refreshes are harmless, and the last one wins
+			cached = new ReplicaRegions(metadata.listReadableRegions(tableName), now);
+			replicaRegions = cached;
+		}
+		return cached.regions;
+	}
+	
+	private Table getReplica(Regions region) {
+		if (region == localRegion) {
+			return localReplica;
+		}
+		return otherReplicas.computeIfAbsent(region, r -> new Table(getClient(r), tableName));
+	}
+	
+	private AmazonDynamoDB getClient(Regions region) {
+		if (region == localRegion) {
+			return ddbLocal;
+		}
+		return otherClients.computeIfAbsent(region, DynamoDBClients::get);
+	}
+	
+	/*
+	 * Returns the table's key schema from the shared schema cache
+	 */
+	private TableSchema getSchema() {
+		TableSchema tableSchema = schema;
+		if (tableSchema == null) {
+			tableSchema = TableSchemaCache.getSharedCache().getSchema(tableName, localRegion);
+			schema = tableSchema;
+		}
+		return tableSchema;
+	}
+	
+	private Item readStoredItem(Table replica, PrimaryKey key) {
 		GetItemSpec getSpec = new GetItemSpec()
-				.withPrimaryKey(keyName, key)
+				.withPrimaryKey(key)
 				.withConsistentRead(true);
-		Item storedItem = replica.getItem(getSpec);
+		return replica.getItem(getSpec);
+	}
+	
+	private void addSystemAttributes(Item item, Item storedItem, Regions region) {
+		addSystemAttributes(item, bumpVersionVector(storedItem, region), region);
+	}
+	
+	private static void addSystemAttributes(Item item, VersionVector version, Regions region) {
+		SystemAttributes.setTimestamp(item, System.currentTimeMillis());
+		SystemAttributes.setOrigin(item, region.getName());
+		SystemAttributes.setVersion(item, version);
+	}
+	
+	private void addSystemAttributeUpdates(ConsistentUpdateItemSpec spec, Item storedItem, Regions region) {
+		addSystemAttributeUpdates(spec, bumpVersionVector(storedItem, region), region);
+	}
+	
+	private static void addSystemAttributeUpdates(ConsistentUpdateItemSpec spec, VersionVector version, Regions region) {
+		spec.addAttributeUpdate(SystemAttributes.updateTimestamp());
+		spec.addAttributeUpdate(SystemAttributes.updateOrigin(region));
+		spec.addAttributeUpdate(SystemAttributes.updateVersion(version, region));
 		
+		// An update revives a deleted item and is no longer part of an earlier transaction
+		// (removing the markers has no effect if they are not there)
+		spec.addAttributeUpdate(SystemAttributes.updateUndeleted());
+		spec.addAttributeUpdate(SystemAttributes.updateNoTransaction());
+	}
+	
+	/*
+	 * Hiding of tombstones from reads
+	 */
+	
+	private static Item hideTombstone(Item item) {
+		return (item == null || SystemAttributes.isDeleted(item)) ? null : item;
+	}
+	
+	/*
+	 * A read that projects some attributes must also project the tombstone marker.
+	 * Returns the spec itself if it needs no change, else a changed copy, leaving the caller's spec as it was.
+	 */
+	private static GetItemSpec withTombstoneProjection(GetItemSpec spec) {
+		String projection = spec.getProjectionExpression();
+		if (projection == null || projection.contains("#zgtDeleted")) {
+			return spec;
+		}
+		Map<String, String> nameMap = new HashMap<String, String>();
+		if (spec.getNameMap() != null) {
+			nameMap.putAll(spec.getNameMap());
+		}
+		nameMap.putAll(SystemAttributes.getNotDeletedNames());
+		return copyOf(spec)
+				.withProjectionExpression(projection + ", #zgtDeleted")
+				.withNameMap(nameMap);
+	}
+	
+	/*
+	 * Add a filter for tombstones to the query, as an expression or, if the query uses
+	 * legacy key conditions (which cannot be mixed with expressions), as a legacy filter.
+	 * Returns the spec itself if it needs no change, else a changed copy, leaving the caller's spec as it was.
+	 */
+	private static QuerySpec hideTombstones(QuerySpec spec) {
+		if (spec.getKeyConditionExpression() != null) {
+			String filter = spec.getFilterExpression();
+			if (filter != null && filter.contains(SystemAttributes.NOT_DELETED_FILTER)) {
+				return spec;
+			}
+			Map<String, String> nameMap = new HashMap<String, String>();
+			if (spec.getNameMap() != null) {
+				nameMap.putAll(spec.getNameMap());
+			}
+			nameMap.putAll(SystemAttributes.getNotDeletedNames());
+			return copyOf(spec)
+					.withFilterExpression((filter == null) ? SystemAttributes.NOT_DELETED_FILTER
+							: "(" + filter + ") AND " + SystemAttributes.NOT_DELETED_FILTER)
+					.withNameMap(nameMap);
+		} else if (!isOrCondition(spec.getConditionalOperator())) {
+			List<QueryFilter> filters = new ArrayList<QueryFilter>();
+			if (spec.getQueryFilters() != null) {
+				for (QueryFilter filter : spec.getQueryFilters()) {
+					if (filter.getAttribute().equals(SystemAttributes.getNotDeletedQueryFilter().getAttribute())) {
+						return spec;
+					}
+					filters.add(filter);
+				}
+			}
+			filters.add(SystemAttributes.getNotDeletedQueryFilter());
+			return copyOf(spec)
+					.withQueryFilters(filters.toArray(new QueryFilter[filters.size()]));
+		}
+		// else tombstones cannot be filtered without changing the meaning of OR'ed legacy filters
+		return spec;
+	}
+	
+	private static GetItemSpec copyOf(GetItemSpec spec) {
+		GetItemSpec copy = new GetItemSpec()
+				.withPrimaryKey(spec.getKeyComponents().toArray(new KeyAttribute[0]))
+				.withProjectionExpression(spec.getProjectionExpression())
+				.withNameMap(spec.getNameMap());
+		GetItemRequest request = spec.getRequest();
+		copy.getRequest()
+				.withConsistentRead(request.getConsistentRead())
+				.withReturnConsumedCapacity(request.getReturnConsumedCapacity());
+		return copy;
+	}
+	
+	private static QuerySpec copyOf(QuerySpec spec) {
+		QuerySpec copy = new QuerySpec()
+				.withHashKey(spec.getHashKey())
+				.withRangeKeyCondition(spec.getRangeKeyCondition())
+				.withNameMap(spec.getNameMap())
+				.withValueMap(spec.getValueMap())
+				.withMaxPageSize(spec.getMaxPageSize())
+				.withMaxResultSize(spec.getMaxResultSize());
+		if (spec.getQueryFilters() != null) {
+			copy.withQueryFilters(spec.getQueryFilters().toArray(new QueryFilter[0]));
+		}
+		if (spec.getExclusiveStartKey() != null) {
+			copy.withExclusiveStartKey(spec.getExclusiveStartKey().toArray(new KeyAttribute[0]));
+		}
+		QueryRequest request = spec.getRequest();
+		copy.getRequest()
+				.withIndexName(request.getIndexName())
+				.withConsistentRead(request.getConsistentRead())
+				.withKeyConditionExpression(request.getKeyConditionExpression())
+				.withFilterExpression(request.getFilterExpression())
+				.withProjectionExpression(request.getProjectionExpression())
+				.withSelect(request.getSelect())
+				.withScanIndexForward(request.getScanIndexForward())
+				.withConditionalOperator(request.getConditionalOperator())
+				.withAttributesToGet(request.getAttributesToGet())
+				.withReturnConsumedCapacity(request.getReturnConsumedCapacity());
+		return copy;
+	}
+	
+	/*
+	 * Fencing of consistent writes by lease epoch
+	 */
+	
+	/*
+	 * Returns true if the item was written under a newer lease than the given one
+	 */
+	private boolean isFenced(Item storedItem, Lease lease) {
+		return storedItem != null && SystemAttributes.hasEpoch(storedItem)
+				&& SystemAttributes.getEpoch(storedItem) > lease.getEpoch();
+	}
+	
+	/*
+	 * Re-read the lease after a write was rejected, and return true if it has changed
+	 * since the given lease was used (in which case the write should be retried)
+	 */
+	private boolean isNewerLease(MasterEndpoint stale) {
+		MasterEndpoint fresh = refreshMasterEndpoint(stale);
+		return fresh.lease.getEpoch() > stale.lease.getEpoch();
+	}
+	
+	private List<Expected> fenceExpected(Collection<Expected> expected, Item storedItem, Lease lease) {
+		List<Expected> fenced = new ArrayList<Expected>();
+		if (expected != null) {
+			fenced.addAll(expected);
+		}
+		fenced.add(SystemAttributes.getEpochFence(storedItem, lease.getEpoch()));
+		return fenced;
+	}
+	
+	/*
+	 * Add the epoch fence and the condition on the item's version to the write's own condition (if any)
+	 */
+	private static String fenceExpression(String condition, String versionCondition) {
+		String fence = SystemAttributes.EPOCH_FENCE_CONDITION + " AND (" + versionCondition + ")";
+		return (condition == null) ? fence : "(" + condition + ") AND " + fence;
+	}
+	
+	private static Map<String, String> fenceNameMap(Map<String, String> nameMap) {
+		Map<String, String> fenced = new HashMap<String, String>();
+		if (nameMap != null) {
+			fenced.putAll(nameMap);
+		}
+		fenced.putAll(SystemAttributes.getEpochFenceNames());
+		fenced.putAll(SystemAttributes.getUnchangedNames());
+		return fenced;
+	}
+	
+	private static Map<String, Object> fenceValueMap(Map<String, Object> valueMap, Map<String, Object> versionValues, Lease lease) {
+		Map<String, Object> fenced = new HashMap<String, Object>();
+		if (valueMap != null) {
+			fenced.putAll(valueMap);
+		}
+		if (versionValues != null) {
+			fenced.putAll(versionValues);
+		}
+		fenced.putAll(SystemAttributes.getEpochFenceValues(lease.getEpoch()));
+		return fenced;
+	}
+	
+	/*
+	 * Version of the stored item, or null if there is none
+	 */
+	private static VersionVector storedVersion(Item storedItem) {
+		return (storedItem == null) ? null : SystemAttributes.getVersion(storedItem);
+	}
+	
+	private static boolean sameVersion(Item item, VersionVector version) {
+		if (item == null || version == null) {
+			return item == null && version == null;
+		}
+		return SystemAttributes.getVersion(item).equalTo(version);
+	}
+	
+	/*
+	 * Thrown when a consistent write fails its condition, with the item's current state at the master
+	 */
+	private static class WriteConflictException extends ConditionalCheckFailedException {
+		private static final long serialVersionUID = 1L;
+		
+		final Item currentItem;
+		
+		WriteConflictException(ConditionalCheckFailedException cause, Item currentItem) {
+			super(cause.getErrorMessage());
+			initCause(cause);
+			this.currentItem = currentItem;
+		}
+	}
+	
+	private static boolean isOrCondition(String conditionalOperator) {
+		return ConditionalOperator.OR.toString().equals(conditionalOperator);
+	}
+	
+	private VersionVector bumpVersionVector(Item storedItem, Regions region) {
 		// Increment version vector
 		VersionVector newVersion;
 		if (storedItem == null) {
@@ -259,33 +1404,40 @@ public class GlobalRequestRouter {
 		return newVersion;
 	}
 	
-	// deprecated
-	private AttributeValue bumpVersionVector(String tableName, Map<String,AttributeValue> primaryKey, AmazonDynamoDB ddb, Regions region) {
-		Map<String,AttributeValue> versionVector = null;
+	/*
+	 * Version written by an optimistic write, which is the expected version bumped
+	 * (without changing the caller's version vector)
+	 */
+	private static VersionVector bumpExpectedVersion(VersionVector expectedVersion, Regions region) {
+		return (expectedVersion == null) ? new VersionVector(region) : expectedVersion.copy().bump(region);
+	}
+	
+	/*
+	 * The master region along with the lease under which it was chosen
+	 */
+	private static class MasterEndpoint {
+		final Regions region;
+		final Lease lease;
+		final Table replica;
 		
-		// Read item to get current version vector
-        GetItemRequest getItemRequest = new GetItemRequest()
-        		.withTableName(tableName)
-        		.withKey(primaryKey)
-        		.withConsistentRead(true);
-        GetItemResult getItemResult = ddb.getItem(getItemRequest);
-
-		// Now bump the local region's entry
-        if (getItemResult.getItem() != null) {
-        	Map<String, AttributeValue> item = getItemResult.getItem();
-        	versionVector = SystemAttributes.getVersion(item);
-        } 
-        if (versionVector == null) {
-        	versionVector = new HashMap<String,AttributeValue>();
-        }
-        if (versionVector.containsKey(region.getName())) {
-        	int count = Integer.parseInt(versionVector.get(region.getName()).getN());
-        	versionVector.replace(region.getName(), new AttributeValue().withN(Integer.toString(count + 1)));       	
-        } else {
-        	versionVector.put(region.getName(), new AttributeValue().withN("1"));
-        }
+		MasterEndpoint(Regions region, Lease lease, Table replica) {
+			this.region = region;
+			this.lease = lease;
+			this.replica = replica;
+		}
+	}
+	
+	/*
+	 * The table's readable regions as of the given time
+	 */
+	private static class ReplicaRegions {
+		final Set<Regions> regions;
+		final long time;
 		
-		return new AttributeValue().withM(versionVector);
+		ReplicaRegions(Set<Regions> regions, long time) {
+			this.regions = regions;
+			this.time = time;
+		}
 	}
 
 }
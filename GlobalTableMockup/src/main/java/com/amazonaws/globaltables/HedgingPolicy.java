@@ -0,0 +1,220 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.amazonaws.regions.Regions;
+
+public class HedgingPolicy {
+
+	/**
+	 * Controls when an eventually consistent read that is slow at the local replica
+	 * gets a second (hedged) read at another replica. The hedge delay is taken from
+	 * a percentile of recently observed local read latencies, and a budget caps the
+	 * number of hedged reads as a fraction of all reads. A hedged read is still an eventually
+	 * consistent read: the replica that answers first may hold an older version of the item
+	 * than the local replica, so a client can see an item go back to an earlier version.
+	 */
+
+	// default percentile of local read latencies after which a read is hedged
+	private static final double DEFAULT_PERCENTILE = 0.95;
+
+	// default fraction of reads that may be hedged
+	private static final double DEFAULT_BUDGET = 0.05;
+
+	// hedge delay used until enough latencies have been sampled (milliseconds)
+	private static final long DEFAULT_INITIAL_DELAY = 50L;
+
+	// hedge delay is never less than this (milliseconds)
+	private static final long DEFAULT_MIN_DELAY = 5L;
+
+	// number of recent local read latencies that are remembered
+	private static final int SAMPLE_WINDOW = 1000;
+
+	// number of samples needed before the percentile is trusted
+	private static final int MIN_SAMPLES = 20;
+
+	// number of new samples after which the percentile is recomputed
+	private static final int RECOMPUTE_INTERVAL = 50;
+
+	// maximum number of unused hedges that can be saved up for bursts
+	private static final double MAX_CREDITS = 10.0;
+
+	private double percentile;
+	private double budget;
+	private long initialDelay;
+	private long minDelay;
+
+	// ring buffer of recent local read latencies
+	private long[] samples;
+	private int numSamples;
+	private int nextSample;
+	private int samplesSinceRecompute;
+
+	// current hedge delay, recomputed from the samples so that reads need not sort them (milliseconds)
+	private volatile long hedgeDelay;
+
+	// regions to try for hedged reads, nearest first (if not given, any replica)
+	private List<Regions> regionOrder;
+
+	// hedges that can be issued without exceeding the budget
+	private double credits;
+
+	// counters for reporting
+	private long numReads;
+	private long numHedges;
+	private long numHedgeWins;
+
+	// threads for issuing reads in parallel
+	private ExecutorService executor;
+
+	public HedgingPolicy() {
+		percentile = DEFAULT_PERCENTILE;
+		budget = DEFAULT_BUDGET;
+		initialDelay = DEFAULT_INITIAL_DELAY;
+		minDelay = DEFAULT_MIN_DELAY;
+		samples = new long[SAMPLE_WINDOW];
+		numSamples = 0;
+		nextSample = 0;
+		samplesSinceRecompute = 0;
+		hedgeDelay = initialDelay;
+		regionOrder = new ArrayList<Regions>();
+		credits = 1.0;
+		executor = null;
+	}
+
+	public synchronized HedgingPolicy withPercentile(double percentile) {
+		this.percentile = percentile;
+		recomputeHedgeDelay();
+		return this;
+	}
+
+	public synchronized HedgingPolicy withBudget(double fractionOfReads) {
+		this.budget = fractionOfReads;
+		return this;
+	}
+
+	public synchronized HedgingPolicy withInitialDelay(long millis) {
+		this.initialDelay = millis;
+		recomputeHedgeDelay();
+		return this;
+	}
+
+	public synchronized HedgingPolicy withMinDelay(long millis) {
+		this.minDelay = millis;
+		recomputeHedgeDelay();
+		return this;
+	}
+
+	public synchronized HedgingPolicy withRegionOrder(Regions... regions) {
+		this.regionOrder = Arrays.asList(regions);
+		return this;
+	}
+
+	public synchronized List<Regions> getRegionOrder() {
+		return regionOrder;
+	}
+
+	/*
+	 * Record the latency of a read that was answered by the local replica
+	 */
+	public synchronized void recordLatency(long millis) {
+		samples[nextSample] = millis;
+		nextSample = (nextSample + 1) % samples.length;
+		if (numSamples < samples.length) {
+			numSamples++;
+		}
+		samplesSinceRecompute++;
+		if (numSamples == MIN_SAMPLES || samplesSinceRecompute >= RECOMPUTE_INTERVAL) {
+			recomputeHedgeDelay();
+		}
+	}
+
+	/*
+	 * Returns how long to wait for the local replica before hedging
+	 */
+	public long getHedgeDelay() {
+		return hedgeDelay;
+	}
+
+	/*
+	 * Take the hedge delay from the percentile of the sampled latencies
+	 * (called holding the lock on this policy)
+	 */
+	private void recomputeHedgeDelay() {
+		samplesSinceRecompute = 0;
+		if (numSamples < MIN_SAMPLES) {
+			hedgeDelay = initialDelay;
+			return;
+		}
+		long[] sorted = Arrays.copyOf(samples, numSamples);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile * numSamples) - 1;
+		index = Math.max(0, Math.min(index, numSamples - 1));
+		hedgeDelay = Math.max(minDelay, sorted[index]);
+	}
+
+	/*
+	 * Called once for every read so that the budget grows with the read rate
+	 */
+	public synchronized void recordRead() {
+		numReads++;
+		credits = Math.min(MAX_CREDITS, credits + budget);
+	}
+
+	/*
+	 * Returns true if a hedged read can be issued without exceeding the budget
+	 */
+	public synchronized boolean tryAcquireHedge() {
+		if (credits < 1.0) {
+			return false;
+		}
+		credits -= 1.0;
+		numHedges++;
+		return true;
+	}
+
+	public synchronized void recordHedgeWin() {
+		numHedgeWins++;
+	}
+
+	public synchronized long getNumReads() {
+		return numReads;
+	}
+
+	public synchronized long getNumHedges() {
+		return numHedges;
+	}
+
+	public synchronized long getNumHedgeWins() {
+		return numHedgeWins;
+	}
+
+	/*
+	 * Threads used by routers to run the local and hedged reads concurrently
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "hedged-read");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+}
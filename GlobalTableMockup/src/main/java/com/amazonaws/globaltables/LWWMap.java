@@ -0,0 +1,132 @@
+package com.amazonaws.globaltables;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.regions.Regions;
+
+public class LWWMap {
+
+	/**
+	 * A map whose keys are last-writer-wins registers, so that concurrent updates to different
+	 * keys are all kept and concurrent updates to the same key keep the later one.
+	 * Removed keys are remembered with their removal time so that a merge does not bring them back.
+	 */
+
+	static final String TYPE = "LWW";
+
+	// key -> latest write or removal of that key
+	private final Map<String, Register> registers;
+
+	public LWWMap() {
+		registers = new HashMap<String, Register>();
+	}
+
+	public void put(String key, Object value, Regions origin) {
+		registers.put(key, new Register(value, nextTimestamp(key), origin.getName(), false));
+	}
+
+	public void remove(String key, Regions origin) {
+		registers.put(key, new Register(null, nextTimestamp(key), origin.getName(), true));
+	}
+
+	public Map<String, Object> value() {
+		Map<String, Object> value = new HashMap<String, Object>();
+		for (Map.Entry<String, Register> register : registers.entrySet()) {
+			if (!register.getValue().removed) {
+				value.put(register.getKey(), register.getValue().value);
+			}
+		}
+		return value;
+	}
+
+	public LWWMap merge(LWWMap other) {
+		LWWMap merged = new LWWMap();
+		merged.registers.putAll(this.registers);
+		for (Map.Entry<String, Register> register : other.registers.entrySet()) {
+			Register mine = this.registers.get(register.getKey());
+			if (mine == null || register.getValue().isLater(mine)) {
+				merged.registers.put(register.getKey(), register.getValue());
+			}
+		}
+		return merged;
+	}
+
+	/*
+	 * Local writes are ordered after the last write to the key even if clocks are skewed
+	 */
+	private long nextTimestamp(String key) {
+		Register last = registers.get(key);
+		long now = System.currentTimeMillis();
+		return (last == null || now > last.timestamp) ? now : last.timestamp + 1;
+	}
+
+	/*
+	 * Encoding as a document map
+	 */
+
+	Map<String, Object> toMap() {
+		Map<String, Object> encoded = new HashMap<String, Object>();
+		for (Map.Entry<String, Register> register : registers.entrySet()) {
+			encoded.put(register.getKey(), register.getValue().toMap());
+		}
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put(CrdtState.TYPE, TYPE);
+		map.put("k", encoded);
+		return map;
+	}
+
+	@SuppressWarnings("unchecked")
+	static LWWMap fromMap(Map<String, Object> map) {
+		LWWMap lwwMap = new LWWMap();
+		Map<String, Object> encoded = (Map<String, Object>) map.get("k");
+		if (encoded != null) {
+			for (Map.Entry<String, Object> register : encoded.entrySet()) {
+				lwwMap.registers.put(register.getKey(), Register.fromMap((Map<String, Object>) register.getValue()));
+			}
+		}
+		return lwwMap;
+	}
+
+	/*
+	 * A value (or removal) along with when and where it was written
+	 */
+	private static class Register {
+		final Object value;
+		final long timestamp;
+		final String origin;
+		final boolean removed;
+
+		Register(Object value, long timestamp, String origin, boolean removed) {
+			this.value = value;
+			this.timestamp = timestamp;
+			this.origin = origin;
+			this.removed = removed;
+		}
+
+		boolean isLater(Register other) {
+			if (timestamp != other.timestamp) {
+				return timestamp > other.timestamp;
+			}
+			return origin.compareTo(other.origin) > 0;
+		}
+
+		Map<String, Object> toMap() {
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("t", timestamp);
+			map.put("o", origin);
+			if (removed) {
+				map.put("d", true);
+			} else {
+				map.put("v", value);
+			}
+			return map;
+		}
+
+		static Register fromMap(Map<String, Object> map) {
+			boolean removed = map.containsKey("d");
+			return new Register(map.get("v"), ((Number) map.get("t")).longValue(), (String) map.get("o"), removed);
+		}
+	}
+
+}
@@ -0,0 +1,30 @@
+package com.amazonaws.globaltables;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+public class LastWriterWinsResolver implements ConflictResolver {
+
+	/**
+	 * Resolves conflicts in favor of the later update, breaking timestamp ties by origin region
+	 * so that every replica picks the same winner.
+	 */
+
+	public LastWriterWinsResolver() {
+	}
+
+	public Item resolveConflict(VersionedItem source, VersionedItem target, Regions master) {
+		return isLater(source, target) ? source.getItem() : null;
+	}
+
+	/*
+	 * Returns true if the first item should win over the second item by timestamp
+	 */
+	static boolean isLater(VersionedItem one, VersionedItem two) {
+		if (one.getTimestamp() != two.getTimestamp()) {
+			return one.getTimestamp() > two.getTimestamp();
+		}
+		return one.getOrigin().compareTo(two.getOrigin()) > 0;
+	}
+
+}
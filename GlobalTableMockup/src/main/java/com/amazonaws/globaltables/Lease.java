@@ -1,63 +1,71 @@
 package com.amazonaws.globaltables;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-
 import com.amazonaws.regions.Regions;
 
 public class Lease {
 
+	/**
+	 * An immutable snapshot of a master lease.
+	 * Operations on a lease return the new lease rather than changing this one, so a lease
+	 * can be shared by any number of threads and published through an AtomicLease.
+	 * The epoch is a fencing token that increases every time the lease gets a new owner.
+	 */
+
 	// default lease duration (milliseconds)
-	private static final long DEFAULT_DURATION = 1000*60*5L;  // 5 minutes
-	
+	static final long DEFAULT_DURATION = 1000*60*5L;  // 5 minutes
+
 	// bound on clock asynchrony between machines (milliseconds)
-	private static final long CLOCK_BOUND = 1000*2L;  // 2 seconds
-	
+	static final long CLOCK_BOUND = 1000*2L;  // 2 seconds
+
 	// lag time to renew before expiration (milliseconds)
-	private static final long TIME_TO_RENEW = 1000*60*1L;  // 1 minute
-	
+	static final long TIME_TO_RENEW = 1000*60*1L;  // 1 minute
+
 	// lease owner
-	private Regions owner;
-	
-	// lease expiration
-	private Date expiration;
-	
+	private final Regions owner;
+
+	// lease expiration (milliseconds since the epoch)
+	private final long expiration;
+
 	// next owner for transition lease
-	private Regions nextOwner;
-	
-	// next expiration for transition lease
-	private Date nextExpiration;
+	private final Regions nextOwner;
+
+	// next expiration for transition lease (milliseconds since the epoch)
+	private final long nextExpiration;
+
+	// fencing token that increases with every change of owner
+	private final long epoch;
 
 	/*
 	 * Create new lease
 	 */
-	
+
 	public Lease() {
 		// new lease that already expired with no owner
-		owner = null;
-		expiration = new Date(0);
-		nextOwner = null;
-		nextExpiration = new Date(0);
+		this(null, 0, null, 0, 0);
 	}
-	
+
 	public Lease(Regions owner) {
 		// new lease for the given owner
+		this(owner, System.currentTimeMillis() + DEFAULT_DURATION, null, 0, 1);
+	}
+
+	public Lease(Regions owner, long expiration, Regions nextOwner, long nextExpiration, long epoch) {
 		this.owner = owner;
-		expiration = new Date(System.currentTimeMillis() + DEFAULT_DURATION);
-		nextOwner = null;
-		nextExpiration = new Date(0);
+		this.expiration = expiration;
+		this.nextOwner = nextOwner;
+		this.nextExpiration = nextExpiration;
+		this.epoch = epoch;
 	}
-	
+
 	/*
 	 * Get information about current lease
 	 */
-	
+
 	public Regions getOwner() {
 		return owner;
 	}
-	
-	public Date getExpiration() {
+
+	public long getExpiration() {
 		return expiration;
 	}
 
@@ -65,111 +73,94 @@ public class Lease {
 		return nextOwner;
 	}
 
-	public Date getNextExpiration() {
+	public long getNextExpiration() {
 		return nextExpiration;
 	}
-	
+
+	public long getEpoch() {
+		return epoch;
+	}
+
 	public boolean isExpired() {
-		boolean expired = System.currentTimeMillis() > expiration.getTime() + CLOCK_BOUND;
-		return expired;
+		return System.currentTimeMillis() > expiration + CLOCK_BOUND;
 	}
-	
+
 	public boolean maybeExpired() {
-		boolean expired = System.currentTimeMillis() > expiration.getTime() - CLOCK_BOUND;
-		return expired;
+		return System.currentTimeMillis() > expiration - CLOCK_BOUND;
 	}
-	
+
 	public boolean almostExpired() {
-		boolean almost = System.currentTimeMillis() > expiration.getTime() - TIME_TO_RENEW;
-		return almost;
+		return System.currentTimeMillis() > expiration - TIME_TO_RENEW;
 	}
-	
+
 	public boolean isNextExpired() {
-		boolean expired = System.currentTimeMillis() > nextExpiration.getTime() + CLOCK_BOUND;
-		return expired;
+		return System.currentTimeMillis() > nextExpiration + CLOCK_BOUND;
 	}
-	
+
 	public boolean maybeNextExpired() {
-		boolean expired = System.currentTimeMillis() > nextExpiration.getTime() - CLOCK_BOUND;
-		return expired;
+		return System.currentTimeMillis() > nextExpiration - CLOCK_BOUND;
 	}
 
 	/*
-	 * Main operations on leases
+	 * Main operations on leases, which return the resulting lease
+	 * or null if the operation is not allowed
 	 */
-	
+
 	/*
 	 * Extend the lease if the current owner and no transition in progress
 	 */
-	public boolean renew(Regions owner) {
+	public Lease renew(Regions owner) {
+		long newExpiration = System.currentTimeMillis() + DEFAULT_DURATION;
 		if (nextOwner != null) {  // transition
 			if (owner != nextOwner) {  // cannot renew lease if not the next owner
-				return false;  
-			} 
-			else if (!this.isExpired()) {  // cannot renew the next lease if not yet active
-				return false;
+				return null;
 			}
-			else {  // active transition lease being renewed by owner
-				this.owner = owner;
-				this.expiration.setTime(System.currentTimeMillis() + DEFAULT_DURATION);		
-				this.nextOwner = null;
-				this.nextExpiration.setTime(0);						
+			else if (!this.isExpired()) {  // cannot renew the next lease if not yet active
+				return null;
 			}
-		} 
-		else if (owner == this.owner) {  // renew by extending expiration
-			this.expiration.setTime(System.currentTimeMillis() + DEFAULT_DURATION);		
+			// active transition lease being renewed by owner
+			return new Lease(owner, newExpiration, null, 0, epoch + 1);
 		}
-		else {  // cannot renew lease if not the current owner
-			return false;
+		else if (owner == this.owner) {  // renew by extending expiration
+			return new Lease(owner, newExpiration, null, 0, epoch);
 		}
-		return true;
+		// cannot renew lease if not the current owner
+		return null;
 	}
 
 	/*
 	 * Release the lease if the current owner
 	 */
-	public boolean release(Regions owner) {
+	public Lease release(Regions owner) {
 		if (owner != this.owner) {  // can only release a lease that you own
-			return false;
+			return null;
 		}
-		this.owner = null;
-		this.expiration.setTime(0);
-		return true;
+		return new Lease(null, 0, nextOwner, nextExpiration, epoch);
 	}
-	
+
 	/*
 	 * Acquire the lease if nobody else already has it
 	 */
-	public boolean acquire(Regions owner) {
-		if (!this.isExpired() ) {  // current lease still good
-			return false;
+	public Lease acquire(Regions owner) {
+		if (!this.isExpired()) {  // current lease still good
+			return null;
 		}
-		else if (nextOwner != null && !this.isNextExpired()) {  // transition in progress
-			return false;
+		else if (nextOwner != null && nextOwner != owner && !this.isNextExpired()) {  // transition in progress
+			return null;
 		}
-		this.owner = owner;
-		this.expiration.setTime(System.currentTimeMillis() + DEFAULT_DURATION);		
-		this.nextOwner = null;
-		this.nextExpiration.setTime(0);		
-		return true;
+		return new Lease(owner, System.currentTimeMillis() + DEFAULT_DURATION, null, 0, epoch + 1);
 	}
-	
+
 	/*
-	 * Forcefully take over the lease when it expires
+	 * Forcefully take over the lease when it expires.
+	 * If the current lease has not expired, the result names the given region as the next owner.
 	 */
-	public boolean take(Regions owner) {
-		if (!this.isExpired() ) {  // delay transition until after current lease
-			nextOwner = owner;
-			nextExpiration.setTime(expiration.getTime() + DEFAULT_DURATION);	
-			return false;
-		}
-		else {  // take ownership immediately
-			this.owner = owner;
-			this.expiration.setTime(System.currentTimeMillis() + DEFAULT_DURATION);		
-			nextOwner = null;
-			nextExpiration.setTime(0);		
+	public Lease take(Regions owner) {
+		if (!this.isExpired()) {  // delay transition until after current lease
+			return new Lease(this.owner, expiration, owner, expiration + DEFAULT_DURATION, epoch);
 		}
-		return true;
+		// take ownership immediately
+		return new Lease(owner, System.currentTimeMillis() + DEFAULT_DURATION, null, 0, epoch + 1);
 	}
 
 }
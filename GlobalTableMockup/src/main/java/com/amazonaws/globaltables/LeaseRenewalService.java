@@ -0,0 +1,185 @@
+package com.amazonaws.globaltables;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.regions.Regions;
+
+public class LeaseRenewalService {
+
+	/**
+	 * Renews the master leases held by a region in the background.
+	 * The service wakes up at jittered intervals (so that many regions and processes do not
+	 * renew in lockstep) and, once the leases are almost expired, renews all of them with a
+	 * single write. If the region's leases lapsed, it tries to reacquire the tables it masters.
+	 * Renewal latency and failures are counted and reported to an optional listener,
+	 * and the cause of the last failure is kept for callers that poll the service.
+	 */
+
+	// average time between checks of the lease expiration (milliseconds)
+	private static final long CHECK_INTERVAL = 1000*10L;  // 10 seconds
+
+	// checks are spread uniformly over this fraction above and below the interval
+	private static final double JITTER = 0.5;
+
+	/*
+	 * Receives the outcome of every renewal
+	 */
+	public interface Listener {
+		void renewed(Regions region, long latency);
+		void failed(Regions region, long latency, Exception cause);
+	}
+
+	private GlobalMetadata gmd;
+	private Regions region;
+	private Listener listener;
+
+	// tables that this region masters
+	private Set<String> tables;
+
+	// expiration of the region's leases as of the last renewal, as seen locally (milliseconds since the epoch)
+	private volatile long heldExpiration;
+
+	private ScheduledExecutorService scheduler;
+
+	// statistics
+	private final AtomicLong numRenewals;
+	private final AtomicLong numFailures;
+	private volatile long lastLatency;
+	private final AtomicLong maxLatency;
+	private volatile Exception lastFailure;  // null if the last failed renewal was refused rather than failing
+
+	public LeaseRenewalService(GlobalMetadata gmd, Regions region) {
+		this.gmd = gmd;
+		this.region = region;
+		this.listener = null;
+		this.tables = ConcurrentHashMap.newKeySet();
+		this.heldExpiration = 0;
+		this.scheduler = null;
+		this.numRenewals = new AtomicLong();
+		this.numFailures = new AtomicLong();
+		this.maxLatency = new AtomicLong();
+		this.lastFailure = null;
+	}
+
+	public LeaseRenewalService withListener(Listener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/*
+	 * Register a table whose lease this region holds (or should hold)
+	 */
+	public void addTable(String tableName) {
+		tables.add(tableName);
+	}
+
+	public void removeTable(String tableName) {
+		tables.remove(tableName);
+	}
+
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "lease-renewal-" + region.getName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduleNext();
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/*
+	 * Renew now if the leases are almost expired; returns true if the leases are held
+	 */
+	public boolean checkAndRenew() {
+		if (System.currentTimeMillis() <= heldExpiration - Lease.TIME_TO_RENEW) {
+			return true;
+		}
+		long startTime = System.currentTimeMillis();
+		try {
+			boolean renewed = gmd.renewLeases(region);
+			if (!renewed) {
+				// leases lapsed, so reacquire the tables that this region masters
+				for (String tableName : tables) {
+					renewed |= gmd.acquireLease(tableName, region);
+				}
+			}
+			long latency = System.currentTimeMillis() - startTime;
+			if (renewed) {
+				heldExpiration = startTime + Lease.DEFAULT_DURATION;
+				recordRenewal(latency);
+			} else {
+				recordFailure(latency, null);
+			}
+			return renewed;
+		} catch (RuntimeException e) {
+			recordFailure(System.currentTimeMillis() - startTime, e);
+			return false;
+		}
+	}
+
+	public long getNumRenewals() {
+		return numRenewals.get();
+	}
+
+	public long getNumFailures() {
+		return numFailures.get();
+	}
+
+	public long getLastLatency() {
+		return lastLatency;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+
+	public Exception getLastFailure() {
+		return lastFailure;
+	}
+
+	private synchronized void scheduleNext() {
+		if (scheduler == null) {
+			return;
+		}
+		double factor = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+		long delay = (long) (CHECK_INTERVAL * factor);
+		scheduler.schedule(() -> {
+			checkAndRenew();
+			scheduleNext();
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void recordRenewal(long latency) {
+		numRenewals.incrementAndGet();
+		lastLatency = latency;
+		maxLatency.accumulateAndGet(latency, Math::max);
+		if (listener != null) {
+			listener.renewed(region, latency);
+		}
+	}
+
+	private void recordFailure(long latency, Exception cause) {
+		numFailures.incrementAndGet();
+		lastLatency = latency;
+		lastFailure = cause;
+		if (listener != null) {
+			listener.failed(region, latency, cause);
+		}
+	}
+
+}
@@ -0,0 +1,367 @@
+package com.amazonaws.globaltables;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+
+public class LeaseStore {
+
+	/**
+	 * Stores master leases in the metadata table so that all processes agree on mastership.
+	 *
+	 * Each table has a lease record that names its owner region and the owner's session.
+	 * Each region that owns leases has a holder record with a session number and an expiration.
+	 * A table's lease is valid until its owner's holder record expires, provided that the
+	 * session in the holder record still matches the one in the lease record. So a region renews
+	 * all the leases that it holds with a single conditional write to its holder record,
+	 * and the renewal cost does not grow with the number of tables.
+	 * Once a lease is being taken by a next owner, the lease record also holds the owner's expiration
+	 * as of the take, and renewing the holder record no longer extends that lease past it.
+	 *
+	 * All records are changed with conditional writes at the metadata master so that concurrent
+	 * acquire, take, and release operations from different processes cannot both succeed.
+	 */
+
+	// Prefixes for lease records (keys cannot clash with table names, which cannot contain '#')
+	private static final String LEASE_PREFIX = "lease#";
+	private static final String HOLDER_PREFIX = "leaseholder#";
+
+	// Attributes of lease records
+	private static final String LEASE_OWNER = "LeaseOwner";
+	private static final String LEASE_SESSION = "LeaseSession";
+	private static final String LEASE_NEXT_OWNER = "LeaseNextOwner";
+	private static final String LEASE_NEXT_EXPIRATION = "LeaseNextExpiration";
+	private static final String LEASE_FROZEN_EXPIRATION = "LeaseFrozenExpiration";  // owner's expiration during a take
+	private static final String LEASE_VERSION = "LeaseVersion";  // incremented on every write
+	private static final String LEASE_EPOCH = "LeaseEpoch";  // incremented on every change of owner
+
+	// Attributes of holder records
+	private static final String HOLDER_SESSION = "HolderSession";
+	private static final String HOLDER_EXPIRATION = "HolderExpiration";
+
+	private String keyName;
+	private Regions storeRegion;
+	private Table store;
+
+	// Session of each region whose holder record was written by this process (shared with renewal threads)
+	private Map<Regions, Long> sessions;
+
+	public LeaseStore(String tableName, String keyName, Regions region) {
+		this.keyName = keyName;
+		this.storeRegion = region;
+		this.store = new DynamoDB(DynamoDBClients.get(region)).getTable(tableName);
+		this.sessions = new ConcurrentHashMap<Regions, Long>();
+	}
+
+	/*
+	 * Read the current lease for a table
+	 */
+	public Lease readLease(String tableName) {
+		return toLease(readRecord(LEASE_PREFIX + tableName));
+	}
+
+	private Lease toLease(Item record) {
+		if (record == null) {
+			return new Lease();
+		}
+		Regions owner = getRegion(record, LEASE_OWNER);
+		long expiration = 0;
+		if (owner != null) {
+			Item holder = readRecord(HOLDER_PREFIX + owner.getName());
+			if (holder != null && holder.getLong(HOLDER_SESSION) == record.getLong(LEASE_SESSION)) {
+				expiration = holder.getLong(HOLDER_EXPIRATION);
+			}
+		}
+		Regions nextOwner = getRegion(record, LEASE_NEXT_OWNER);
+		long nextExpiration = record.isPresent(LEASE_NEXT_EXPIRATION) ? record.getLong(LEASE_NEXT_EXPIRATION) : 0;
+		if (owner != null && nextOwner != null) {
+			// the owner's renewals do not extend a lease that is being taken
+			long frozenExpiration = record.isPresent(LEASE_FROZEN_EXPIRATION)
+					? record.getLong(LEASE_FROZEN_EXPIRATION) : nextExpiration - Lease.DEFAULT_DURATION;
+			expiration = Math.min(expiration, frozenExpiration);
+		}
+		return new Lease(owner, expiration, nextOwner, nextExpiration, getEpoch(record));
+	}
+
+	/*
+	 * Acquire the lease if nobody else holds it and no transition is in progress
+	 */
+	public boolean acquire(String tableName, Regions owner) {
+		Item record = readRecord(LEASE_PREFIX + tableName);
+		Lease lease = toLease(record);
+		if (!lease.isExpired()) {
+			return false;
+		} else if (lease.getNextOwner() != null && lease.getNextOwner() != owner && !lease.isNextExpired()) {
+			return false;
+		}
+		return writeOwner(tableName, record, owner, true, null, 0, 0);
+	}
+
+	/*
+	 * Extend the lease if the current owner (which extends all of the owner's leases),
+	 * or become the owner if the next owner in a transition whose current lease has expired
+	 */
+	public boolean renew(String tableName, Regions owner) {
+		Item record = readRecord(LEASE_PREFIX + tableName);
+		Lease lease = toLease(record);
+		if (lease.getNextOwner() != null) {  // transition
+			if (owner != lease.getNextOwner() || !lease.isExpired()) {
+				return false;
+			}
+			return writeOwner(tableName, record, owner, true, null, 0, 0);
+		} else if (owner == lease.getOwner() && !lease.maybeExpired()) {
+			return renewAll(owner);
+		}
+		return false;
+	}
+
+	/*
+	 * Forcefully take over the lease, immediately if it has expired,
+	 * or else by becoming the next owner once the current lease expires.
+	 * The current lease is frozen at its present expiration, so that the owner cannot renew past it.
+	 */
+	public boolean take(String tableName, Regions owner) {
+		Item record = readRecord(LEASE_PREFIX + tableName);
+		Lease lease = toLease(record);
+		if (lease.isExpired()) {
+			return writeOwner(tableName, record, owner, true, null, 0, 0);
+		}
+		long nextExpiration = lease.getExpiration() + Lease.DEFAULT_DURATION;
+		writeOwner(tableName, record, lease.getOwner(), false, owner, nextExpiration, lease.getExpiration());
+		return false;
+	}
+
+	/*
+	 * Release the lease if the current owner
+	 */
+	public boolean release(String tableName, Regions owner) {
+		Item record = readRecord(LEASE_PREFIX + tableName);
+		Lease lease = toLease(record);
+		if (owner != lease.getOwner()) {
+			return false;
+		}
+		return writeOwner(tableName, record, null, false, lease.getNextOwner(), lease.getNextExpiration(), 0);
+	}
+
+	/*
+	 * Release the lease early in favor of the given next owner (for a planned handoff).
+	 * The next owner can acquire the lease at once, while nobody else can acquire it
+	 * until the next owner's reservation expires.
+	 */
+	public boolean handOff(String tableName, Regions owner, Regions nextOwner) {
+		Item record = readRecord(LEASE_PREFIX + tableName);
+		Lease lease = toLease(record);
+		if (owner != lease.getOwner()) {
+			return false;
+		}
+		long nextExpiration = System.currentTimeMillis() + Lease.DEFAULT_DURATION;
+		return writeOwner(tableName, record, null, false, nextOwner, nextExpiration, 0);
+	}
+
+	/*
+	 * Take back a lease that was handed off to the given next owner, if nobody has acquired it since
+	 * (for a planned handoff that could not complete). The lease gets a new epoch, which fences any
+	 * write that was made under the released lease.
+	 */
+	public boolean cancelHandOff(String tableName, Regions owner, Regions nextOwner) {
+		Item record = readRecord(LEASE_PREFIX + tableName);
+		Lease lease = toLease(record);
+		if (lease.getOwner() != null || lease.getNextOwner() != nextOwner) {
+			return false;
+		}
+		return writeOwner(tableName, record, owner, true, null, 0, 0);
+	}
+
+	/*
+	 * Extend every lease held by the given region with a single conditional write.
+	 * Fails if the region's session has lapsed, in which case its leases must be reacquired.
+	 */
+	public boolean renewAll(Regions owner) {
+		Long session = sessions.get(owner);
+		if (session == null) {
+			Item holder = readRecord(HOLDER_PREFIX + owner.getName());
+			if (holder == null) {
+				return false;
+			}
+			session = holder.getLong(HOLDER_SESSION);
+		}
+		long now = System.currentTimeMillis();
+		UpdateItemSpec updateSpec = new UpdateItemSpec()
+				.withPrimaryKey(keyName, HOLDER_PREFIX + owner.getName())
+				.withUpdateExpression("SET #exp = :newExp")
+				.withConditionExpression("#session = :session AND #exp > :minExp")
+				.withNameMap(new NameMap()
+						.with("#exp", HOLDER_EXPIRATION)
+						.with("#session", HOLDER_SESSION))
+				.withValueMap(new ValueMap()
+						.withLong(":newExp", now + Lease.DEFAULT_DURATION)
+						.withLong(":session", session)
+						.withLong(":minExp", now + Lease.CLOCK_BOUND));
+		try {
+			store.updateItem(updateSpec);
+			sessions.put(owner, session);
+			return true;
+		} catch (ConditionalCheckFailedException e) {
+			sessions.remove(owner);
+			return false;
+		}
+	}
+
+	/*
+	 * Overwrite a lease without any checks (for administrative use).
+	 * The lease then expires along with the owner's other leases.
+	 */
+	public void writeLease(String tableName, Lease lease) {
+		Item record = readRecord(LEASE_PREFIX + tableName);
+		long nextExpiration = lease.getNextExpiration();
+		Item newRecord = newRecord(tableName, record, lease.getOwner(), lease.getNextOwner(), nextExpiration,
+				lease.getExpiration())
+				.withLong(LEASE_EPOCH, getEpoch(record) + 1);
+		if (lease.getOwner() != null) {
+			newRecord.withLong(LEASE_SESSION, activeSession(lease.getOwner()));
+		}
+		store.putItem(newRecord);
+	}
+
+	/*
+	 * Private methods for reading and writing lease records
+	 */
+
+	private Item readRecord(String key) {
+		GetItemSpec getSpec = new GetItemSpec()
+				.withPrimaryKey(keyName, key)
+				.withConsistentRead(true);
+		return store.getItem(getSpec);
+	}
+
+	/*
+	 * Write a new lease record if the record has not changed since it was read.
+	 * A new owner's lease is tied to its active session and gets a new epoch,
+	 * while an unchanged owner keeps its session and epoch.
+	 * The frozen expiration caps the owner's lease while there is also a next owner.
+	 */
+	private boolean writeOwner(String tableName, Item record, Regions owner, boolean newOwner,
+			Regions nextOwner, long nextExpiration, long frozenExpiration) {
+		Item newRecord = newRecord(tableName, record, owner, nextOwner, nextExpiration, frozenExpiration)
+				.withLong(LEASE_EPOCH, newOwner ? getEpoch(record) + 1 : getEpoch(record));
+		if (owner != null) {
+			long session = newOwner ? activeSession(owner) : record.getLong(LEASE_SESSION);
+			newRecord.withLong(LEASE_SESSION, session);
+		}
+		PutItemSpec putSpec = new PutItemSpec()
+				.withItem(newRecord);
+		if (record == null) {
+			putSpec.withConditionExpression("attribute_not_exists(#key)")
+					.withNameMap(new NameMap().with("#key", keyName));
+		} else {
+			putSpec.withConditionExpression("#version = :version")
+					.withNameMap(new NameMap().with("#version", LEASE_VERSION))
+					.withValueMap(new ValueMap().withLong(":version", record.getLong(LEASE_VERSION)));
+		}
+		try {
+			store.putItem(putSpec);
+			return true;
+		} catch (ConditionalCheckFailedException e) {
+			return false;
+		}
+	}
+
+	private Item newRecord(String tableName, Item record, Regions owner, Regions nextOwner, long nextExpiration,
+			long frozenExpiration) {
+		long version = (record == null) ? 1 : record.getLong(LEASE_VERSION) + 1;
+		Item newRecord = new Item()
+				.withPrimaryKey(keyName, LEASE_PREFIX + tableName)
+				.withLong(LEASE_VERSION, version);
+		if (owner != null) {
+			newRecord.withString(LEASE_OWNER, owner.getName());
+		}
+		if (nextOwner != null) {
+			newRecord.withString(LEASE_NEXT_OWNER, nextOwner.getName())
+					.withLong(LEASE_NEXT_EXPIRATION, nextExpiration);
+			if (owner != null) {
+				newRecord.withLong(LEASE_FROZEN_EXPIRATION, frozenExpiration);
+			}
+		}
+		addSystemAttributes(newRecord, record);
+		return newRecord;
+	}
+
+	/*
+	 * Returns the region's session after extending it, or starting a new one if it lapsed
+	 */
+	private long activeSession(Regions owner) {
+		if (renewAll(owner)) {
+			return sessions.get(owner);
+		}
+		return startSession(owner, System.currentTimeMillis() + Lease.DEFAULT_DURATION);
+	}
+
+	/*
+	 * Start a new session for the region, which invalidates all leases held under its previous session
+	 */
+	private long startSession(Regions owner, long expiration) {
+		while (true) {
+			Item holder = readRecord(HOLDER_PREFIX + owner.getName());
+			long session = (holder == null) ? 1 : holder.getLong(HOLDER_SESSION) + 1;
+			Item newHolder = new Item()
+					.withPrimaryKey(keyName, HOLDER_PREFIX + owner.getName())
+					.withLong(HOLDER_SESSION, session)
+					.withLong(HOLDER_EXPIRATION, expiration);
+			addSystemAttributes(newHolder, holder);
+			PutItemSpec putSpec = new PutItemSpec()
+					.withItem(newHolder);
+			if (holder == null) {
+				putSpec.withConditionExpression("attribute_not_exists(#key)")
+						.withNameMap(new NameMap().with("#key", keyName));
+			} else {
+				putSpec.withConditionExpression("#session = :session")
+						.withNameMap(new NameMap().with("#session", HOLDER_SESSION))
+						.withValueMap(new ValueMap().withLong(":session", session - 1));
+			}
+			try {
+				store.putItem(putSpec);
+				sessions.put(owner, session);
+				return session;
+			} catch (ConditionalCheckFailedException e) {
+				// another process started a session concurrently, so try again
+			}
+		}
+	}
+
+	/*
+	 * Lease records are replicated with the rest of the metadata table
+	 */
+	private void addSystemAttributes(Item newRecord, Item oldRecord) {
+		VersionVector version = (oldRecord == null || !SystemAttributes.hasVersion(oldRecord))
+				? new VersionVector(storeRegion)
+				: SystemAttributes.getVersion(oldRecord).bump(storeRegion);
+		SystemAttributes.setTimestamp(newRecord, System.currentTimeMillis());
+		SystemAttributes.setOrigin(newRecord, storeRegion.getName());
+		SystemAttributes.setVersion(newRecord, version);
+	}
+
+	private static long getEpoch(Item record) {
+		if (record == null || !record.isPresent(LEASE_EPOCH)) {
+			return 0;
+		}
+		return record.getLong(LEASE_EPOCH);
+	}
+
+	private static Regions getRegion(Item record, String attribute) {
+		if (!record.isPresent(attribute)) {
+			return null;
+		}
+		return Regions.fromName(record.getString(attribute));
+	}
+
+}
@@ -67,6 +67,10 @@ public class MainCode {
         TestBasic.opSuiteTwo(Regions.EU_WEST_1, tableName);
          */
 		
+        System.out.println("Running CRDT merge test...");
+		TestCrdt crdtTest = new TestCrdt();
+		crdtTest.runTest();
+		
         System.out.println("Running global table test...");
 		TestGlobalTable test = new TestGlobalTable();
 		test.runTest();
@@ -0,0 +1,97 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.regions.Regions;
+
+public class MasterHandoff {
+
+	/**
+	 * Moves mastership of a global table to another region in seconds rather than
+	 * waiting out the current lease. The old master releases its lease early in favor of
+	 * the new master, consistent writes in progress are drained, the old master's final
+	 * changes are replicated to the new master, and then the new master acquires the lease.
+	 * Consistent writes issued by registered routers are held back during the handoff, and routers
+	 * elsewhere refuse consistent writes while nobody holds the lease.
+	 * If writes do not drain in time, the handoff is abandoned before the lease is released,
+	 * and if the new master cannot acquire the lease, it is returned to the old master.
+	 */
+
+	// how long to wait for consistent writes in progress to complete (milliseconds)
+	private static final long DEFAULT_DRAIN_TIMEOUT = 1000*5L;  // 5 seconds
+
+	private GlobalMetadata gmd;
+	private ReplicationEngine re;
+	private long drainTimeout;
+
+	// routers in this process whose consistent writes are drained
+	private List<GlobalRequestRouter> routers;
+
+	public MasterHandoff(GlobalMetadata gmd, ReplicationEngine re) {
+		this.gmd = gmd;
+		this.re = re;
+		this.drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+		this.routers = new ArrayList<GlobalRequestRouter>();
+	}
+
+	public MasterHandoff withRouter(GlobalRequestRouter router) {
+		routers.add(router);
+		return this;
+	}
+
+	public MasterHandoff withDrainTimeout(long timeoutMillis) {
+		drainTimeout = timeoutMillis;
+		return this;
+	}
+
+	/*
+	 * Hand off mastership of the table to the given region.
+	 * Returns false if the handoff could not be started, consistent writes in progress did not drain,
+	 * or the new master could not acquire the lease.
+	 */
+	public boolean handoff(String tableName, Regions newMaster) {
+		Regions oldMaster = gmd.getMaster(tableName);
+		if (oldMaster == newMaster) {
+			return true;
+		}
+
+		try {
+			// Hold back new consistent writes and wait for those in progress
+			for (GlobalRequestRouter router : routers) {
+				if (!router.drainConsistentWrites(drainTimeout)) {
+					System.out.println("Consistent writes to " + tableName + " did not drain within " + drainTimeout + " ms");
+					return false;
+				}
+			}
+
+			// Release the lease early so that only the new master can acquire it
+			if (!gmd.handOffLease(tableName, oldMaster, newMaster)) {
+				return false;
+			}
+
+			boolean acquired = false;
+			try {
+				// Replicate the old master's final changes before the new master takes over
+				re.pullItems(tableName, newMaster, oldMaster);
+
+				// New master acquires immediately rather than after the old lease expires
+				acquired = gmd.acquireLease(tableName, newMaster);
+			} finally {
+				if (!acquired && !gmd.cancelHandOff(tableName, oldMaster, newMaster)) {
+					System.out.println("Lease of " + tableName + " could not be returned to " + oldMaster);
+				}
+			}
+			if (!acquired) {
+				return false;
+			}
+			gmd.setMaster(tableName, newMaster);
+			return true;
+		} finally {
+			for (GlobalRequestRouter router : routers) {
+				router.resumeConsistentWrites();
+			}
+		}
+	}
+
+}
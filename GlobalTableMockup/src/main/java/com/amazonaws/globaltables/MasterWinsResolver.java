@@ -0,0 +1,33 @@
+package com.amazonaws.globaltables;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+public class MasterWinsResolver implements ConflictResolver {
+
+	/**
+	 * Resolves conflicts in favor of the update made at the table's master region,
+	 * and otherwise in favor of the later update.
+	 * This is the default policy of the replication engine.
+	 */
+
+	public MasterWinsResolver() {
+	}
+
+	public Item resolveConflict(VersionedItem source, VersionedItem target, Regions master) {
+		return isWinner(source, target, master) ? source.getItem() : null;
+	}
+
+	/*
+	 * Returns true if the first item should be chosen as the winner when conflicting with the second item
+	 */
+	static boolean isWinner(VersionedItem one, VersionedItem two, Regions master) {
+		if (master != null && one.getOrigin().equals(master.getName())) {  // master update wins
+			return true;
+		} else if (master != null && two.getOrigin().equals(master.getName())) {  // master update wins
+			return false;
+		}
+		return LastWriterWinsResolver.isLater(one, two);  // latest timestamp wins
+	}
+
+}
@@ -0,0 +1,228 @@
+package com.amazonaws.globaltables;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+
+public class MerkleTree {
+
+	/**
+	 * A Merkle tree over the items of one replica, used to find where two replicas differ
+	 * by comparing digests rather than items. Items are placed in leaves by the hash of their key.
+	 * A leaf's digest is the XOR of the digests of its items (each a hash of the item's key and
+	 * version vector), so an item can be added or removed without rehashing the rest of its leaf.
+	 * Inner nodes hash their two children and are recomputed when the tree is next compared.
+	 */
+
+	public static final int DEFAULT_DEPTH = 10;  // 1024 leaves
+
+	// bytes in a node digest
+	static final int DIGEST_SIZE = 8;
+
+	private final int depth;
+	private final int numLeaves;
+
+	// heap-ordered node digests: node 1 is the root, and the leaves are nodes numLeaves to 2*numLeaves-1
+	private final long[] nodes;
+	private boolean innerNodesStale;
+
+	// key -> item digest, for each leaf
+	private final List<Map<String, Long>> leafItems;
+
+	// key -> primary key, for items added by primary key
+	private final Map<String, PrimaryKey> primaryKeys;
+
+	private final long buildTime;
+
+	public MerkleTree() {
+		this(DEFAULT_DEPTH);
+	}
+
+	public MerkleTree(int depth) {
+		this.depth = depth;
+		this.numLeaves = 1 << depth;
+		this.nodes = new long[2 * numLeaves];
+		this.innerNodesStale = false;
+		this.leafItems = new ArrayList<Map<String, Long>>(numLeaves);
+		for (int i = 0; i < numLeaves; i++) {
+			leafItems.add(new HashMap<String, Long>());
+		}
+		this.primaryKeys = new HashMap<String, PrimaryKey>();
+		this.buildTime = System.currentTimeMillis();
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public long getBuildTime() {
+		return buildTime;
+	}
+
+	/*
+	 * Add or replace an item, given its key (as JSON) and version vector
+	 */
+	public void put(String key, VersionVector version) {
+		int leaf = leafOf(key);
+		long digest = digest(key, version);
+		Long previous = leafItems.get(leaf).put(key, digest);
+		if (previous != null) {
+			nodes[numLeaves + leaf] ^= previous;
+		}
+		nodes[numLeaves + leaf] ^= digest;
+		innerNodesStale = true;
+	}
+
+	/*
+	 * Add or replace an item given its primary key, which is kept so that a differing item can be
+	 * read again without parsing its key back from JSON (which loses binary values)
+	 */
+	public void put(PrimaryKey primaryKey, VersionVector version) {
+		String key = AntiEntropyService.keyString(primaryKey);
+		put(key, version);
+		primaryKeys.put(key, primaryKey);
+	}
+
+	/*
+	 * Returns the primary key of an item added by primary key, or null
+	 */
+	public PrimaryKey getPrimaryKey(String key) {
+		return primaryKeys.get(key);
+	}
+
+	public void remove(String key) {
+		primaryKeys.remove(key);
+		int leaf = leafOf(key);
+		Long previous = leafItems.get(leaf).remove(key);
+		if (previous != null) {
+			nodes[numLeaves + leaf] ^= previous;
+			innerNodesStale = true;
+		}
+	}
+
+	public long getRootDigest() {
+		updateInnerNodes();
+		return nodes[1];
+	}
+
+	/*
+	 * Get the item digests in a leaf (keyed by item key)
+	 */
+	public Map<String, Long> getLeafItems(int leaf) {
+		return leafItems.get(leaf);
+	}
+
+	/*
+	 * Find the leaves whose digests differ from the other tree's, comparing from the root down
+	 * so that only the nodes above differing leaves are compared
+	 */
+	public Diff diff(MerkleTree other) {
+		if (other.depth != depth) {
+			throw new IllegalArgumentException("Cannot compare trees of depth " + depth + " and " + other.depth);
+		}
+		updateInnerNodes();
+		other.updateInnerNodes();
+		Diff diff = new Diff();
+		List<Integer> level = new ArrayList<Integer>();
+		level.add(1);
+		while (!level.isEmpty()) {
+			List<Integer> nextLevel = new ArrayList<Integer>();
+			for (int node : level) {
+				diff.digestsCompared++;
+				if (nodes[node] == other.nodes[node]) {
+					continue;
+				}
+				if (node >= numLeaves) {
+					diff.leaves.add(node - numLeaves);
+				} else {
+					nextLevel.add(2 * node);
+					nextLevel.add(2 * node + 1);
+				}
+			}
+			level = nextLevel;
+		}
+		return diff;
+	}
+
+	private void updateInnerNodes() {
+		if (!innerNodesStale) {
+			return;
+		}
+		for (int node = numLeaves - 1; node >= 1; node--) {
+			nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+		}
+		innerNodesStale = false;
+	}
+
+	private int leafOf(String key) {
+		return (int) (mix(key.hashCode()) >>> (64 - depth));
+	}
+
+	/*
+	 * Digest of an item version, independent of the order of the version vector's entries
+	 */
+	static long digest(String key, VersionVector version) {
+		StringBuilder text = new StringBuilder(key);
+		for (Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(version.toMap()).entrySet()) {
+			text.append('|').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.toString().getBytes(StandardCharsets.UTF_8));
+			long digest = 0;
+			for (int i = 0; i < DIGEST_SIZE; i++) {
+				digest = (digest << 8) | (hash[i] & 0xff);
+			}
+			return digest;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long combine(long left, long right) {
+		return mix(left ^ Long.rotateLeft(right, 29) ^ 0x9E3779B97F4A7C15L);
+	}
+
+	private static long mix(long value) {
+		// 64-bit finalizer from MurmurHash3
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	/*
+	 * Leaves that differ between two trees, and the number of node digests compared to find them
+	 */
+	public static class Diff {
+		private final List<Integer> leaves;
+		private long digestsCompared;
+
+		Diff() {
+			this.leaves = new ArrayList<Integer>();
+			this.digestsCompared = 0;
+		}
+
+		public List<Integer> getLeaves() {
+			return leaves;
+		}
+
+		public long getDigestsCompared() {
+			return digestsCompared;
+		}
+
+		// digests sent by both replicas
+		public long getDigestBytes() {
+			return 2 * digestsCompared * DIGEST_SIZE;
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreamsClientBuilder;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DescribeStreamRequest;
+import com.amazonaws.services.dynamodbv2.model.ExpiredIteratorException;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
+import com.amazonaws.services.dynamodbv2.model.GetShardIteratorRequest;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.Shard;
+import com.amazonaws.services.dynamodbv2.model.ShardIteratorType;
+import com.amazonaws.services.dynamodbv2.model.StreamDescription;
+import com.amazonaws.services.dynamodbv2.model.TrimmedDataAccessException;
+
+public class MetadataStream {
+
+	/**
+	 * Delivers the changes to metadata entries as DynamoDB writes them to the metadata table's stream,
+	 * so that a change made by any process reaches watchers in this one within a fraction of a second,
+	 * however many tables are watched. The stream is read shard by shard from its tip. A read of a
+	 * shard with no new records returns at once, so reads are spaced by a short delay (DynamoDB Streams
+	 * allows five reads per second per shard). When records may have been missed, e.g. because an
+	 * iterator expired or a read failed, the gap handler is called so that watchers can check versions.
+	 */
+
+	// time between reads of a shard that had no new records (milliseconds)
+	private static final long EMPTY_READ_DELAY = 250L;
+
+	// time before reading again after a failed read (milliseconds)
+	private static final long ERROR_DELAY = 1000L;
+
+	private static final int MAX_RECORDS = 1000;
+
+	private final String streamArn;
+	private final String keyName;
+	private final String versionName;
+	private final AmazonDynamoDBStreams streams;
+
+	// receives the key and new version of every changed entry
+	private final BiConsumer<String, Long> changeHandler;
+
+	// called when changes may have been missed
+	private final Runnable gapHandler;
+
+	// iterator of each open shard that is being read (only used by the reader thread)
+	private final Map<String, String> iterators;
+
+	private Thread reader;
+
+	public MetadataStream(String streamArn, Regions region, String keyName, String versionName,
+			BiConsumer<String, Long> changeHandler, Runnable gapHandler) {
+		this.streamArn = streamArn;
+		this.keyName = keyName;
+		this.versionName = versionName;
+		this.streams = AmazonDynamoDBStreamsClientBuilder.standard()
+				.withRegion(region)
+				.build();
+		this.changeHandler = changeHandler;
+		this.gapHandler = gapHandler;
+		this.iterators = new HashMap<String, String>();
+		this.reader = null;
+	}
+
+	public synchronized void start() {
+		if (reader != null) {
+			return;
+		}
+		reader = new Thread(this::run, "metadata-stream");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public synchronized void stop() {
+		if (reader != null) {
+			reader.interrupt();
+			reader = null;
+		}
+	}
+
+	private void run() {
+		boolean synced = false;
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				if (!synced) {
+					// start from the tip of every open shard, and let watchers catch up to it
+					iterators.clear();
+					for (Shard shard : listShards()) {
+						if (shard.getSequenceNumberRange().getEndingSequenceNumber() == null) {
+							iterators.put(shard.getShardId(), getIterator(shard.getShardId(), ShardIteratorType.LATEST));
+						}
+					}
+					synced = true;
+					gapHandler.run();
+				}
+				int numRead = readShards();
+				if (numRead < 0) {
+					synced = false;
+				} else if (numRead == 0) {
+					Thread.sleep(EMPTY_READ_DELAY);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (ExpiredIteratorException | TrimmedDataAccessException e) {
+				synced = false;
+			} catch (RuntimeException e) {
+				// stream unreachable, so start again from its tip later
+				synced = false;
+				try {
+					Thread.sleep(ERROR_DELAY);
+				} catch (InterruptedException interrupted) {
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Read the new records of every shard once. Returns the number of records read,
+	 * or -1 if a shard closed before its children could be found.
+	 */
+	private int readShards() {
+		int numRead = 0;
+		List<String> closedShards = new ArrayList<String>();
+		for (Map.Entry<String, String> shard : iterators.entrySet()) {
+			GetRecordsResult result = streams.getRecords(new GetRecordsRequest()
+					.withShardIterator(shard.getValue())
+					.withLimit(MAX_RECORDS));
+			for (Record record : result.getRecords()) {
+				deliver(record);
+				numRead++;
+			}
+			if (result.getNextShardIterator() == null) {
+				closedShards.add(shard.getKey());
+			} else {
+				shard.setValue(result.getNextShardIterator());
+			}
+		}
+		if (!closedShards.isEmpty()) {
+			// a closed shard's records continue in its children, which are read from their start
+			for (String closedShard : closedShards) {
+				iterators.remove(closedShard);
+			}
+			int numChildren = 0;
+			for (Shard shard : listShards()) {
+				if (closedShards.contains(shard.getParentShardId()) && !iterators.containsKey(shard.getShardId())) {
+					iterators.put(shard.getShardId(), getIterator(shard.getShardId(), ShardIteratorType.TRIM_HORIZON));
+					numChildren++;
+				}
+			}
+			if (numChildren == 0) {
+				return -1;
+			}
+		}
+		return numRead;
+	}
+
+	private void deliver(Record record) {
+		Map<String, AttributeValue> image = record.getDynamodb().getNewImage();
+		if (image == null || !image.containsKey(keyName) || !image.containsKey(versionName)) {
+			return;  // a removed entry, or a lease record
+		}
+		changeHandler.accept(image.get(keyName).getS(), Long.parseLong(image.get(versionName).getN()));
+	}
+
+	private List<Shard> listShards() {
+		List<Shard> shards = new ArrayList<Shard>();
+		String lastShardId = null;
+		do {
+			StreamDescription description = streams.describeStream(new DescribeStreamRequest()
+					.withStreamArn(streamArn)
+					.withExclusiveStartShardId(lastShardId))
+					.getStreamDescription();
+			shards.addAll(description.getShards());
+			lastShardId = description.getLastEvaluatedShardId();
+		} while (lastShardId != null);
+		return shards;
+	}
+
+	private String getIterator(String shardId, ShardIteratorType type) {
+		return streams.getShardIterator(new GetShardIteratorRequest()
+				.withStreamArn(streamArn)
+				.withShardId(shardId)
+				.withShardIteratorType(type))
+				.getShardIterator();
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.amazonaws.globaltables;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.regions.Regions;
+
+public class ORSet {
+
+	/**
+	 * A set of strings that can be added to and removed from concurrently in every region,
+	 * where an add wins over a concurrent remove of the same element (observed-remove set).
+	 * Each add is tagged with a dot, a region and that region's add count. A remove deletes the
+	 * dots it has seen. The set keeps a context of the dots it has seen, so that a merge can tell
+	 * a dot that the other replica removed from one it has not seen yet, without tombstones.
+	 */
+
+	static final String TYPE = "OR";
+
+	// element -> dots of the adds that are present
+	private final Map<String, Set<String>> dots;
+
+	// region name -> number of adds seen from that region
+	private final Map<String, Long> context;
+
+	public ORSet() {
+		dots = new HashMap<String, Set<String>>();
+		context = new HashMap<String, Long>();
+	}
+
+	public void add(Regions region, String element) {
+		Long count = context.get(region.getName());
+		long next = ((count == null) ? 0 : count) + 1;
+		context.put(region.getName(), next);
+		Set<String> elementDots = new HashSet<String>();
+		elementDots.add(region.getName() + ":" + next);
+		dots.put(element, elementDots);  // replaces the adds that were seen
+	}
+
+	public void remove(String element) {
+		dots.remove(element);
+	}
+
+	public Set<String> value() {
+		return new HashSet<String>(dots.keySet());
+	}
+
+	public ORSet merge(ORSet other) {
+		ORSet merged = new ORSet();
+		Set<String> elements = new HashSet<String>(this.dots.keySet());
+		elements.addAll(other.dots.keySet());
+		for (String element : elements) {
+			Set<String> oneDots = this.dots.get(element);
+			Set<String> twoDots = other.dots.get(element);
+			Set<String> elementDots = new HashSet<String>();
+			if (oneDots != null) {
+				for (String dot : oneDots) {
+					// keep a dot that both have, or that the other replica has not seen
+					if ((twoDots != null && twoDots.contains(dot)) || !other.hasSeen(dot)) {
+						elementDots.add(dot);
+					}
+				}
+			}
+			if (twoDots != null) {
+				for (String dot : twoDots) {
+					if (!this.hasSeen(dot)) {
+						elementDots.add(dot);
+					}
+				}
+			}
+			if (!elementDots.isEmpty()) {
+				merged.dots.put(element, elementDots);
+			}
+		}
+		merged.context.putAll(this.context);
+		for (Map.Entry<String, Long> count : other.context.entrySet()) {
+			Long oneCount = this.context.get(count.getKey());
+			merged.context.put(count.getKey(), (oneCount == null) ? count.getValue() : Math.max(oneCount, count.getValue()));
+		}
+		return merged;
+	}
+
+	private boolean hasSeen(String dot) {
+		int separator = dot.lastIndexOf(':');
+		Long count = context.get(dot.substring(0, separator));
+		return count != null && count >= Long.parseLong(dot.substring(separator + 1));
+	}
+
+	/*
+	 * Encoding as a document map
+	 */
+
+	Map<String, Object> toMap() {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put(CrdtState.TYPE, TYPE);
+		map.put("e", dots);
+		map.put("c", context);
+		return map;
+	}
+
+	@SuppressWarnings("unchecked")
+	static ORSet fromMap(Map<String, Object> map) {
+		ORSet set = new ORSet();
+		Map<String, Object> elements = (Map<String, Object>) map.get("e");
+		if (elements != null) {
+			for (Map.Entry<String, Object> element : elements.entrySet()) {
+				set.dots.put(element.getKey(), new HashSet<String>((Set<String>) element.getValue()));
+			}
+		}
+		CrdtState.putLongs(set.context, (Map<String, Object>) map.get("c"));
+		return set;
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.amazonaws.globaltables;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.regions.Regions;
+
+public class PNCounter {
+
+	/**
+	 * A counter that can be incremented and decremented concurrently in every region without
+	 * losing updates. Each region counts its own increments and decrements, the value is the
+	 * difference of the totals, and merging takes the larger count of each region.
+	 */
+
+	static final String TYPE = "PN";
+
+	// region name -> total increments and decrements made by that region
+	private final Map<String, Long> increments;
+	private final Map<String, Long> decrements;
+
+	public PNCounter() {
+		increments = new HashMap<String, Long>();
+		decrements = new HashMap<String, Long>();
+	}
+
+	public void add(Regions region, long delta) {
+		Map<String, Long> counts = (delta >= 0) ? increments : decrements;
+		Long count = counts.get(region.getName());
+		counts.put(region.getName(), ((count == null) ? 0 : count) + Math.abs(delta));
+	}
+
+	public long value() {
+		long value = 0;
+		for (long count : increments.values()) {
+			value += count;
+		}
+		for (long count : decrements.values()) {
+			value -= count;
+		}
+		return value;
+	}
+
+	public PNCounter merge(PNCounter other) {
+		PNCounter merged = new PNCounter();
+		mergeCounts(merged.increments, this.increments, other.increments);
+		mergeCounts(merged.decrements, this.decrements, other.decrements);
+		return merged;
+	}
+
+	private static void mergeCounts(Map<String, Long> merged, Map<String, Long> one, Map<String, Long> two) {
+		merged.putAll(one);
+		for (Map.Entry<String, Long> count : two.entrySet()) {
+			Long oneCount = one.get(count.getKey());
+			merged.put(count.getKey(), (oneCount == null) ? count.getValue() : Math.max(oneCount, count.getValue()));
+		}
+	}
+
+	/*
+	 * Encoding as a document map
+	 */
+
+	Map<String, Object> toMap() {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put(CrdtState.TYPE, TYPE);
+		map.put("p", increments);
+		map.put("n", decrements);
+		return map;
+	}
+
+	@SuppressWarnings("unchecked")
+	static PNCounter fromMap(Map<String, Object> map) {
+		PNCounter counter = new PNCounter();
+		CrdtState.putLongs(counter.increments, (Map<String, Object>) map.get("p"));
+		CrdtState.putLongs(counter.decrements, (Map<String, Object>) map.get("n"));
+		return counter;
+	}
+
+}
@@ -0,0 +1,189 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.regions.Regions;
+
+public class PlacementController {
+
+	/**
+	 * Moves the master of each global table to the region that issues most of its strongly
+	 * consistent operations, so that those operations avoid cross-region round trips as
+	 * traffic shifts over the day. The controller periodically samples the consistent reads
+	 * and writes counted by the registered routers. A region must carry a dominant share of the
+	 * traffic for a sustained window before mastership is moved, and a table that was just moved
+	 * stays put for a while, so that short bursts do not make the master flap between regions.
+	 * Moves use a planned handoff through the lease transition path, which drains only the
+	 * routers of the table being moved.
+	 */
+
+	// time between samples (milliseconds)
+	private static final long SAMPLE_INTERVAL = 1000*60L;  // 1 minute
+
+	// a region must issue at least this share of a table's consistent operations to become master
+	private static final double DOMINANT_SHARE = 0.6;
+
+	// ... for at least this long (milliseconds)
+	private static final long SUSTAINED_WINDOW = 1000*60*15L;  // 15 minutes
+
+	// minimum time between moves of the same table (milliseconds)
+	private static final long MIN_DWELL_TIME = 1000*60*60L;  // 1 hour
+
+	// samples with fewer consistent operations than this are ignored
+	private static final long MIN_SAMPLE_OPS = 100;
+
+	private GlobalMetadata gmd;
+	private ReplicationEngine re;
+
+	// handoff of each table, holding the table's routers
+	private Map<String, MasterHandoff> handoffs;
+
+	// routers whose consistent operations are sampled, grouped by table
+	private Map<String, List<GlobalRequestRouter>> routers;
+
+	// operation counts of each router as of the previous sample
+	private Map<GlobalRequestRouter, Long> lastCounts;
+
+	// placement state of each table
+	private Map<String, TablePlacement> placements;
+
+	private ScheduledExecutorService scheduler;
+
+	public PlacementController(GlobalMetadata gmd, ReplicationEngine re) {
+		this.gmd = gmd;
+		this.re = re;
+		this.handoffs = new HashMap<String, MasterHandoff>();
+		this.routers = new HashMap<String, List<GlobalRequestRouter>>();
+		this.lastCounts = new HashMap<GlobalRequestRouter, Long>();
+		this.placements = new HashMap<String, TablePlacement>();
+		this.scheduler = null;
+	}
+
+	public synchronized PlacementController withRouter(GlobalRequestRouter router) {
+		List<GlobalRequestRouter> tableRouters = routers.get(router.getTableName());
+		if (tableRouters == null) {
+			tableRouters = new ArrayList<GlobalRequestRouter>();
+			routers.put(router.getTableName(), tableRouters);
+		}
+		tableRouters.add(router);
+		lastCounts.put(router, consistentOps(router));
+		MasterHandoff handoff = handoffs.get(router.getTableName());
+		if (handoff == null) {
+			handoff = new MasterHandoff(gmd, re);
+			handoffs.put(router.getTableName(), handoff);
+		}
+		handoff.withRouter(router);
+		return this;
+	}
+
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "master-placement");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				sample();
+			} catch (RuntimeException e) {
+				System.out.println("Master placement failed: " + e.getMessage());
+			}
+		}, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/*
+	 * Sample the consistent traffic of every table and move masters where warranted.
+	 * Returns the tables whose master was moved.
+	 */
+	public synchronized List<String> sample() {
+		long now = System.currentTimeMillis();
+		List<String> moved = new ArrayList<String>();
+		for (Map.Entry<String, List<GlobalRequestRouter>> entry : routers.entrySet()) {
+			String tableName = entry.getKey();
+			TablePlacement placement = placements.get(tableName);
+			if (placement == null) {
+				placement = new TablePlacement();
+				placements.put(tableName, placement);
+			}
+
+			// Count each region's consistent operations since the last sample
+			Map<Regions, Long> regionOps = new HashMap<Regions, Long>();
+			long totalOps = 0;
+			for (GlobalRequestRouter router : entry.getValue()) {
+				long count = consistentOps(router);
+				long ops = count - lastCounts.get(router);
+				lastCounts.put(router, count);
+				Long previous = regionOps.get(router.getLocalRegion());
+				regionOps.put(router.getLocalRegion(), (previous == null) ? ops : previous + ops);
+				totalOps += ops;
+			}
+			if (totalOps < MIN_SAMPLE_OPS) {
+				continue;  // too little traffic to tell
+			}
+
+			Regions master = gmd.getMaster(tableName);
+			Regions dominant = null;
+			for (Map.Entry<Regions, Long> ops : regionOps.entrySet()) {
+				if (ops.getValue() >= DOMINANT_SHARE * totalOps) {
+					dominant = ops.getKey();
+				}
+			}
+			if (dominant == null || dominant == master) {
+				placement.candidate = null;
+				continue;
+			}
+			if (dominant != placement.candidate) {
+				placement.candidate = dominant;
+				placement.candidateSince = now;
+				continue;
+			}
+
+			// Move once the same region has dominated for the whole window
+			if (now - placement.candidateSince >= SUSTAINED_WINDOW && now - placement.lastMoveTime >= MIN_DWELL_TIME) {
+				System.out.println("Moving master of " + tableName + " from " + master + " to " + dominant);
+				if (handoffs.get(tableName).handoff(tableName, dominant)) {
+					placement.lastMoveTime = now;
+					moved.add(tableName);
+				}
+				placement.candidate = null;
+			}
+		}
+		return moved;
+	}
+
+	private static long consistentOps(GlobalRequestRouter router) {
+		return router.getNumConsistentReads() + router.getNumConsistentWrites();
+	}
+
+	/*
+	 * Region that has recently dominated a table's consistent traffic, and when the table last moved
+	 */
+	private static class TablePlacement {
+		Regions candidate;
+		long candidateSince;
+		long lastMoveTime;
+
+		TablePlacement() {
+			this.candidate = null;
+			this.candidateSince = 0;
+			this.lastMoveTime = 0;
+		}
+	}
+
+}
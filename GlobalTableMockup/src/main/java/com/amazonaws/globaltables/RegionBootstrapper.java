@@ -0,0 +1,234 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+public class RegionBootstrapper {
+
+	/**
+	 * Adds a region to a global table while the table stays online.
+	 * The new replica is loaded from a snapshot of one existing replica using a parallel
+	 * segmented scan and batch writes, then catches up by tailing changes from all regions
+	 * starting at the watermarks that the snapshot already covers. The snapshot covers another
+	 * origin's items only as far as the source's watermark shows that all of them reached the source;
+	 * for any other origin, the new region backfills that origin's older items itself. Only then is the new
+	 * region marked as readable, so routers never read from a partially loaded replica.
+	 * Until then, the replication engine leaves the region out of its pairs, so that
+	 * replicated writes cannot race with the snapshot copy or the catch-up.
+	 */
+
+	// default number of parallel scan segments
+	private static final int DEFAULT_SEGMENTS = 4;
+
+	// maximum number of items in a BatchWriteItem request
+	private static final int BATCH_SIZE = 25;
+
+	private GlobalMetadata gmd;
+	private ReplicationEngine re;
+	private int numSegments;
+
+	public RegionBootstrapper(GlobalMetadata gmd, ReplicationEngine re) {
+		this.gmd = gmd;
+		this.re = re;
+		numSegments = DEFAULT_SEGMENTS;
+	}
+
+	public RegionBootstrapper withSegments(int segments) {
+		numSegments = segments;
+		return this;
+	}
+
+	/*
+	 * Add a new region to the global table and bootstrap its replica.
+	 * Returns the number of items copied from the snapshot.
+	 */
+	public int addRegion(String tableName, Regions region) {
+		// Add region, which is neither readable nor replicated to until it has caught up
+		gmd.addBootstrappingRegion(tableName, region);
+
+		// Create the new replica with the same keys (including any range key) as the source replica
+		Regions source = chooseSource(tableName, region);
+		ControlPlane cp = new ControlPlane();
+		cp.createRegionReplica(tableName, TableSchemaCache.getSharedCache().getSchema(tableName, source), region);
+
+		// Record how far the source replica is known to be up to date for each origin.
+		// A source's watermark for another origin is only adopted if all older items from that origin
+		// are known to have reached the source, rather than the watermark being inferred or its backfill
+		// still pending; otherwise the new region's pair starts unsynced, so that its first pull
+		// schedules a backfill of the origin's older items.
+		Set<Regions> regionSet = gmd.listRegions(tableName);
+		long snapshotTime = System.currentTimeMillis() - Lease.CLOCK_BOUND;
+		Map<Regions, Long> snapshotWatermarks = new HashMap<Regions, Long>();
+		Set<Regions> unsyncedOrigins = new HashSet<Regions>();
+		for (Regions origin : regionSet) {
+			if (origin == region) {
+				continue;
+			} else if (origin == source) {
+				snapshotWatermarks.put(origin, snapshotTime);
+			} else if (re.isWatermarkAdvanced(tableName, source, origin)
+					&& !re.hasPendingBulkWork(tableName, source, origin)) {
+				snapshotWatermarks.put(origin, re.getWatermark(tableName, source, origin));
+			} else {
+				unsyncedOrigins.add(origin);
+			}
+		}
+
+		// Copy the snapshot
+		int numCopied = copySnapshot(tableName, source, region);
+
+		// Tail changes from every region starting where the snapshot left off
+		for (Map.Entry<Regions, Long> watermark : snapshotWatermarks.entrySet()) {
+			re.setWatermark(tableName, region, watermark.getKey(), watermark.getValue());
+		}
+		for (Regions origin : snapshotWatermarks.keySet()) {
+			re.pullItems(tableName, region, origin);
+		}
+		for (Regions origin : unsyncedOrigins) {
+			re.pullItems(tableName, region, origin);
+			while (re.hasPendingBulkWork(tableName, region, origin)) {
+				re.pullBulkItems(tableName, region, origin, ReplicationEngine.BULK_BATCH_SIZE);
+			}
+		}
+
+		// Now the new replica can serve reads
+		gmd.markRegionReadable(tableName, region);
+		return numCopied;
+	}
+
+	/*
+	 * Choose the fastest healthy readable replica as the snapshot source
+	 */
+	private Regions chooseSource(String tableName, Regions newRegion) {
+		Set<Regions> candidates = gmd.listReadableRegions(tableName);
+		candidates.remove(newRegion);
+		RegionLatencyTracker tracker = re.getLatencyTracker();
+		if (tracker != null && !candidates.isEmpty()) {
+			Regions fastest = tracker.rank(candidates).get(0);
+			if (tracker.isKnown(fastest) && tracker.isHealthy(fastest)) {
+				return fastest;
+			}
+		}
+		return gmd.getMaster(tableName);
+	}
+
+	/*
+	 * Copy all items from the source replica to the target replica using parallel scans
+	 */
+	private int copySnapshot(String tableName, Regions source, Regions target) {
+		Table sourceTable = new DynamoDB(DynamoDBClients.get(source)).getTable(tableName);
+		DynamoDB ddbTarget = new DynamoDB(ReplicationEngine.getReplicationClient(target));
+
+		// The new replica serves no foreground traffic yet, so it can use all of its capacity
+		ReplicationThrottle throttle = new ReplicationThrottle(1.0);
+		throttle.setProvisionedCapacity(TableSchemaCache.getSharedCache().getSchema(tableName, target)
+				.getWriteCapacityUnits());
+
+		ExecutorService executor = Executors.newFixedThreadPool(numSegments);
+		List<Future<Integer>> segments = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < numSegments; i++) {
+			final int segment = i;
+			segments.add(executor.submit(() -> copySegment(sourceTable, ddbTarget, tableName, segment, throttle)));
+		}
+
+		int numCopied = 0;
+		try {
+			for (Future<Integer> result : segments) {
+				numCopied += result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while bootstrapping " + target, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return numCopied;
+	}
+
+	private int copySegment(Table sourceTable, DynamoDB ddbTarget, String tableName, int segment, ReplicationThrottle throttle) {
+		ScanSpec scanSpec = new ScanSpec()
+				.withConsistentRead(true)
+				.withSegment(segment)
+				.withTotalSegments(numSegments);
+		ItemCollection<ScanOutcome> scanResults = sourceTable.scan(scanSpec);
+
+		int numCopied = 0;
+		List<Item> batch = new ArrayList<Item>();
+		for (Item item : scanResults) {
+			batch.add(item);
+			if (batch.size() == BATCH_SIZE) {
+				writeBatch(ddbTarget, tableName, batch, throttle);
+				numCopied += batch.size();
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			writeBatch(ddbTarget, tableName, batch, throttle);
+			numCopied += batch.size();
+		}
+		return numCopied;
+	}
+
+	/*
+	 * Write a batch of items, resubmitting any unprocessed items after backing off.
+	 * Gives up after ReplicationThrottle.MAX_RETRIES attempts, whether they were throttled or left items unprocessed.
+	 */
+	private void writeBatch(DynamoDB ddbTarget, String tableName, List<Item> batch, ReplicationThrottle throttle) {
+		double units = 0;
+		for (Item item : batch) {
+			units += Math.ceil(item.toJSON().length() / 1024.0);
+		}
+		throttle.acquire(units);
+
+		TableWriteItems writeItems = new TableWriteItems(tableName).withItemsToPut(batch);
+		Map<String, List<WriteRequest>> unprocessed = null;
+		int attempt = 0;
+		while (true) {
+			try {
+				BatchWriteItemOutcome outcome = (unprocessed == null)
+						? ddbTarget.batchWriteItem(writeItems)
+						: ddbTarget.batchWriteItemUnprocessed(unprocessed);
+				if (outcome.getUnprocessedItems() == null || outcome.getUnprocessedItems().isEmpty()) {
+					break;
+				}
+				unprocessed = outcome.getUnprocessedItems();
+				if (attempt >= ReplicationThrottle.MAX_RETRIES) {
+					throw new AmazonClientException("Batch write to " + tableName + " still had unprocessed items after "
+							+ attempt + " retries");
+				}
+			} catch (AmazonServiceException e) {
+				if (!ReplicationThrottle.isThrottle(e) || attempt >= ReplicationThrottle.MAX_RETRIES) {
+					throw e;
+				}
+			}
+			throttle.onThrottle(attempt++);
+		}
+		throttle.onSuccess();
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.regions.Regions;
+
+public class RegionLatencyTracker {
+
+	/**
+	 * Keeps a moving average of the round-trip time and error rate of calls made to each region.
+	 * Routers and the replication engine report their calls, and use the averages to pick the
+	 * fastest healthy replicas.
+	 */
+
+	// weight given to the newest sample in the moving averages
+	private static final double ALPHA = 0.2;
+
+	// regions whose average error rate is above this are considered unhealthy
+	private static final double MAX_ERROR_RATE = 0.5;
+
+	// tracker shared by all components in this process
+	private static final RegionLatencyTracker sharedTracker = new RegionLatencyTracker();
+
+	private Map<Regions, RegionStats> stats;
+
+	public RegionLatencyTracker() {
+		stats = new ConcurrentHashMap<Regions, RegionStats>();
+	}
+
+	public static RegionLatencyTracker getSharedTracker() {
+		return sharedTracker;
+	}
+
+	/*
+	 * Record the outcome of a call to a region
+	 */
+
+	public void recordSuccess(Regions region, long millis) {
+		getStats(region).addSample(millis, false);
+	}
+
+	public void recordError(Regions region, long millis) {
+		getStats(region).addSample(millis, true);
+	}
+
+	/*
+	 * Get information about a region
+	 */
+
+	public boolean isKnown(Regions region) {
+		return getLatency(region) >= 0;
+	}
+
+	/*
+	 * Returns the average round-trip time in milliseconds, or -1 if never measured
+	 */
+	public double getLatency(Regions region) {
+		RegionStats regionStats = stats.get(region);
+		if (regionStats == null) {
+			return -1;
+		}
+		return regionStats.getLatency();
+	}
+
+	public double getErrorRate(Regions region) {
+		RegionStats regionStats = stats.get(region);
+		if (regionStats == null) {
+			return 0;
+		}
+		return regionStats.getErrorRate();
+	}
+
+	public boolean isHealthy(Regions region) {
+		return getErrorRate(region) <= MAX_ERROR_RATE;
+	}
+
+	/*
+	 * Order the given regions from best to worst: healthy measured regions by latency,
+	 * then regions that have never been measured, then unhealthy regions.
+	 * The averages are read once before sorting, since other threads keep updating them.
+	 */
+	public List<Regions> rank(Collection<Regions> regions) {
+		final Map<Regions, Integer> classes = new HashMap<Regions, Integer>();
+		final Map<Regions, Double> latencies = new HashMap<Regions, Double>();
+		for (Regions region : regions) {
+			classes.put(region, rankClass(region));
+			latencies.put(region, getLatency(region));
+		}
+		List<Regions> ranked = new ArrayList<Regions>(regions);
+		Collections.sort(ranked, new Comparator<Regions>() {
+			public int compare(Regions one, Regions two) {
+				int oneClass = classes.get(one);
+				int twoClass = classes.get(two);
+				if (oneClass != twoClass) {
+					return Integer.compare(oneClass, twoClass);
+				}
+				return Double.compare(latencies.get(one), latencies.get(two));
+			}
+		});
+		return ranked;
+	}
+
+	/*
+	 * Returns the fastest healthy region among those given, preferring the given
+	 * default region unless it is unhealthy or another region is measured to be faster.
+	 */
+	public Regions selectFastest(Collection<Regions> regions, Regions preferred) {
+		List<Regions> ranked = rank(regions);
+		if (ranked.isEmpty()) {
+			return preferred;
+		}
+		Regions best = ranked.get(0);
+		if (preferred != null && regions.contains(preferred) && isHealthy(preferred)) {
+			if (!isKnown(best) || !isKnown(preferred) || getLatency(preferred) <= getLatency(best)) {
+				best = preferred;
+			}
+		}
+		return best;
+	}
+
+	private int rankClass(Regions region) {
+		if (!isHealthy(region)) {
+			return 2;
+		} else if (!isKnown(region)) {
+			return 1;
+		} else {
+			return 0;
+		}
+	}
+
+	private RegionStats getStats(Regions region) {
+		RegionStats regionStats = stats.get(region);
+		if (regionStats == null) {
+			stats.putIfAbsent(region, new RegionStats());
+			regionStats = stats.get(region);
+		}
+		return regionStats;
+	}
+
+	/*
+	 * Moving averages for a single region
+	 */
+	private static class RegionStats {
+
+		private double latency = -1;
+		private double errorRate = 0;
+
+		synchronized void addSample(long millis, boolean error) {
+			if (!error) {
+				latency = (latency < 0) ? millis : (1 - ALPHA) * latency + ALPHA * millis;
+			}
+			errorRate = (1 - ALPHA) * errorRate + (error ? ALPHA : 0);
+		}
+
+		synchronized double getLatency() {
+			return latency;
+		}
+
+		synchronized double getErrorRate() {
+			return errorRate;
+		}
+	}
+
+}
@@ -1,61 +1,227 @@
 package com.amazonaws.globaltables;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.Page;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.PutItemOutcome;
 import com.amazonaws.services.dynamodbv2.document.ScanFilter;
 import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.internal.InternalUtils;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.ScanResult;
 
 public class ReplicationEngine {
 	
+	/**
+	 * Replicates items between the replicas of global tables. An engine can be shared with the
+	 * background services that repair items through it (AntiEntropyService, DivergenceChecker,
+	 * TombstoneCollector): its public methods are synchronized, so a repair or a read of the
+	 * watermarks waits for a sync in progress rather than seeing its state half updated.
+	 */
+	
 	// table name -> target region -> source region -> timestamp
 	private Map<String, Map<String, Map<String, Long>>> highTimestamps;
 	
+	// Watermarks that show that all older items reached the target, because the pair was bootstrapped
+	// or backfilled before this engine advanced them, as opposed to inferred from the target's items
+	// or started at the live window (keyed by table name, target region, and source region)
+	private Set<String> advancedWatermarks;
+	
 	private GlobalMetadata gmd;
 	
+	// Measured latency and health of each region, used to order replication work
+	private RegionLatencyTracker latencyTracker;
+	
+	// Rate limiters for reads and writes to each target table (keyed by table name and region)
+	private Map<String, ReplicationThrottle> readThrottles;
+	private Map<String, ReplicationThrottle> writeThrottles;
+	
+	// Fraction of a target table's provisioned capacity that replication may consume
+	private double capacityFraction;
+	
+	// Replication lanes: the live lane carries recent writes and the bulk lane carries
+	// backfills of new regions and repairs, each with its own share of the capacity
+	private static final String LIVE_LANE = "live";
+	private static final String BULK_LANE = "bulk";
+	private static final double LIVE_LANE_SHARE = 0.75;
+	
+	// Items updated within this window are replicated by the live lane when a pair is first synced
+	private static final long LIVE_WINDOW = 1000*60*5L;  // 5 minutes
+	
+	// Maximum number of items copied by the bulk lane per pair on each sync
+	static final int BULK_BATCH_SIZE = 100;
+	
+	// Number of items whose conflicts are resolved together by the live lane
+	private static final int RESOLVE_BATCH_SIZE = 25;
+	
+	// Number of times an item is resolved again after the target changed before its winner was written
+	private static final int MAX_RESOLVE_RETRIES = 5;
+	
+	// Items of a transaction that has not been fully seen are held back for at most this long (milliseconds)
+	private static final long TRANSACTION_WAIT = 1000*60L;  // 1 minute
+	
+	// Pending backfills and repairs (keyed by table name, target region, and source region)
+	private Map<String, BackfillTask> backfills;
+	
+	private ConflictResolver resolver;
+	
+	// Durable log of detected conflicts (optional)
+	private ConflictLog conflictLog;
+	
+	// Workers that resolve conflicts outside of the replication loop (optional)
+	private ConflictRepairer repairer;
+	
+	// Replication clients shared by all engines (keyed by region)
+	private static final Map<Regions, AmazonDynamoDB> replicationClients = new ConcurrentHashMap<Regions, AmazonDynamoDB>();
+	
 	public ReplicationEngine() {
+		this(GlobalMetadata.getInstance());
+	}
+	
+	public ReplicationEngine(GlobalMetadata gmd) {
 		highTimestamps = new HashMap<String, Map<String, Map<String, Long>>>();
-		gmd = new GlobalMetadata();
+		advancedWatermarks = new HashSet<String>();
+		this.gmd = gmd;
+		latencyTracker = RegionLatencyTracker.getSharedTracker();
+		readThrottles = new HashMap<String, ReplicationThrottle>();
+		writeThrottles = new HashMap<String, ReplicationThrottle>();
+		capacityFraction = ReplicationThrottle.DEFAULT_CAPACITY_FRACTION;
+		backfills = new HashMap<String, BackfillTask>();
+		resolver = new CrdtResolver();
+		conflictLog = null;
+		repairer = null;
+	}
+	
+	/*
+	 * Set the policy that decides which version is kept when concurrent updates conflict
+	 */
+	public synchronized void setConflictResolver(ConflictResolver resolver) {
+		this.resolver = resolver;
+	}
+	
+	public synchronized ConflictResolver getConflictResolver() {
+		return resolver;
+	}
+	
+	/*
+	 * Log each detected conflict, with both versions and how it was resolved
+	 */
+	public synchronized void setConflictLog(ConflictLog log) {
+		conflictLog = log;
+	}
+	
+	/*
+	 * Defer the resolution of conflicts to the given repairer (or resolve them in the replication loop if null).
+	 * Deferred conflicts are logged by the repairer rather than by this engine.
+	 */
+	public synchronized void setConflictRepairer(ConflictRepairer repairer) {
+		this.repairer = repairer;
+	}
+	
+	/*
+	 * Set the fraction of each target table's capacity that replication may use,
+	 * leaving the rest for foreground traffic
+	 */
+	public synchronized void setCapacityFraction(double fraction) {
+		capacityFraction = fraction;
+		readThrottles.clear();
+		writeThrottles.clear();
+	}
+	
+	public synchronized void setLatencyTracker(RegionLatencyTracker tracker) {
+		latencyTracker = tracker;
+	}
+	
+	public synchronized RegionLatencyTracker getLatencyTracker() {
+		return latencyTracker;
 	}
 	
-	public void generateTimestamps(String tableName) {
+	public synchronized void generateTimestamps(String tableName) {
 		if (!highTimestamps.containsKey(tableName)) {
 			highTimestamps.put(tableName, getTableTimestamps(tableName));
+			resumeBackfills(tableName);
 		}		
 	}
+	
+	/*
+	 * Pick up the backfills and repairs that were recorded in metadata, e.g. by an engine that restarted
+	 */
+	private void resumeBackfills(String tableName) {
+		Set<Regions> replicaSet = gmd.listRegions(tableName);
+		if (replicaSet == null) {
+			return;
+		}
+		for (Regions target : replicaSet) {
+			for (Regions source : replicaSet) {
+				if (target.equals(source) || backfills.containsKey(laneKey(tableName, target, source))) {
+					continue;
+				}
+				Map<String, Object> progress = gmd.getBackfillProgress(tableName, target, source);
+				if (progress != null) {
+					backfills.put(laneKey(tableName, target, source), BackfillTask.fromMap(progress));
+				}
+			}
+		}
+	}
 		
 	/*
 	 * Replicate recently updated items from the source region to the target region.
+	 * This is the live lane, which carries fresh writes with low latency.
 	 */
-	public int pullItems(String tableName, Regions target, Regions source) {
-		Map<String, Map<String, Long>> tableTimestamps;
-		if (!highTimestamps.containsKey(tableName)) {
-			tableTimestamps = getTableTimestamps(tableName);
-			highTimestamps.put(tableName, tableTimestamps);
-		} else {
-			tableTimestamps = highTimestamps.get(tableName);
+	public synchronized int pullItems(String tableName, Regions target, Regions source) {
+		generateTimestamps(tableName);
+		
+		// A pair that has never been synced starts with a recent watermark in the live lane
+		// and leaves older items to a backfill in the bulk lane, which is recorded in metadata
+		// before the watermark moves so that it is not lost if the engine restarts
+		Long lastSyncTime = getWatermark(tableName, target, source);
+		if (lastSyncTime == 0 && !backfills.containsKey(laneKey(tableName, target, source))) {
+			lastSyncTime = System.currentTimeMillis() - LIVE_WINDOW;
+			startBackfill(tableName, target, source, new BackfillTask(lastSyncTime));
+			updateWatermark(tableName, target, source, lastSyncTime);
 		}
 		
+		// Only a pull that starts from a watermark this engine owns, i.e. one that was set explicitly
+		// or whose backfill has completed, shows that all items before its new watermark reached the target
+		BackfillTask backfill = backfills.get(laneKey(tableName, target, source));
+		boolean owned = isWatermarkAdvanced(tableName, target, source)
+				|| (backfill != null && backfill.done && backfill.reachesWatermark);
+		
 		// Scan source for recently updated items
-		DynamoDB ddbSource = new DynamoDB(source);
+		DynamoDB ddbSource = new DynamoDB(DynamoDBClients.get(source));
 		Table sourceTable = ddbSource.getTable(tableName);
-		Long lastSyncTime = tableTimestamps.get(target.getName()).get(source.getName());
 		ScanFilter recentTimestamp = SystemAttributes.getTimestampFilter(lastSyncTime);
 		ScanFilter updatedBySource = SystemAttributes.getOriginFilter(source);
 		ScanSpec scanSpec = new ScanSpec()
@@ -64,37 +230,47 @@ public class ReplicationEngine {
 		ItemCollection<ScanOutcome> scanResults = sourceTable.scan(scanSpec);
 		
 		// Write items to target
-		Table targetTable = new DynamoDB(target).getTable(tableName);
-		String keyAttribute = targetTable.describe().getKeySchema().get(0).getAttributeName();
-		ConflictResolver resolver = new ConflictResolver();
+		TargetReplica targetReplica = openTarget(tableName, target, LIVE_LANE);
 		Long maxTimestamp = lastSyncTime;
 		int numReplicated = 0;
-		int numConflicts = 0;
 
+		// The first call to hasNext fetches the first page of scan results from the source
 		Iterator<Item> iterator = scanResults.iterator();
-		while (iterator.hasNext()) {
+		long startTime = System.currentTimeMillis();
+		boolean hasNext;
+		try {
+			hasNext = iterator.hasNext();
+			latencyTracker.recordSuccess(source, System.currentTimeMillis() - startTime);
+		} catch (RuntimeException e) {
+			latencyTracker.recordError(source, System.currentTimeMillis() - startTime);
+			throw e;
+		}
+		
+		// Items written by a transaction are held back until all of them have been scanned,
+		// and then replicated together (keyed by transaction id)
+		List<Item> batch = new ArrayList<Item>(RESOLVE_BATCH_SIZE);
+		Map<String, List<Item>> transactions = new HashMap<String, List<Item>>();
+		while (hasNext) {
 	        Item sourceItem = iterator.next();
-	        boolean doUpdate = true;
-	        
-	        // Check for conflict with item stored in target table
-	        Item targetItem = targetTable.getItem(keyAttribute, sourceItem.getString(keyAttribute));
-        	//System.out.println("Source item " + sourceItem);
-        	//System.out.println("Target item " + targetItem);
-	        if (resolver.isConflict(sourceItem, targetItem)) {
-	        	System.out.println("     Conflict detected to item " + sourceItem.getString(keyAttribute));
-	        	System.out.println("         when replicating from  " + source + " to " + target);
-	        	numConflicts++;
-	        	if (!resolver.isWinner(sourceItem, targetItem, gmd.getMaster(tableName))) {
-	        		doUpdate = false;
-	        		System.out.println("     Version at " + target + " was retained as the winner.");
-	        	} else {
-	        		System.out.println("     Version from " + source + " was written as the winner.");	        		
+	        hasNext = iterator.hasNext();
+	        if (SystemAttributes.hasTransaction(sourceItem)) {
+	        	String transactionId = SystemAttributes.getTransactionId(sourceItem);
+	        	List<Item> members = transactions.get(transactionId);
+	        	if (members == null) {
+	        		members = new ArrayList<Item>();
+	        		transactions.put(transactionId, members);
+	        	}
+	        	members.add(sourceItem);
+	        	if (members.size() == SystemAttributes.getTransactionSize(sourceItem)) {
+	        		batch.addAll(transactions.remove(transactionId));
 	        	}
+	        } else {
+	        	batch.add(sourceItem);
 	        }
-	        
-	        // Perform update
-	        if (doUpdate) {
-	        	targetTable.putItem(sourceItem);
+	        if (batch.size() >= RESOLVE_BATCH_SIZE) {
+	        	numReplicated += batch.size();
+	        	replicateItems(tableName, source, targetReplica, batch);
+	        	batch.clear();
 	        }
         	
 	        // Update variables
@@ -102,49 +278,476 @@ public class ReplicationEngine {
         	if (itemTimestamp > maxTimestamp) {
         		maxTimestamp = itemTimestamp;
         	}
-        	numReplicated++;
 		}
 		
+		// Keep the watermark before transactions that were only partly scanned, e.g. because the scan
+		// read some items before the transaction committed, so that they are scanned again,
+		// but give up on those whose other items have since been overwritten
+		for (List<Item> members : transactions.values()) {
+			long transactionTimestamp = SystemAttributes.getTimestamp(members.get(0));
+			if (transactionTimestamp < System.currentTimeMillis() - TRANSACTION_WAIT) {
+				batch.addAll(members);
+			} else if (transactionTimestamp - 1 < maxTimestamp) {
+				maxTimestamp = transactionTimestamp - 1;
+			}
+		}
+		numReplicated += batch.size();
+		replicateItems(tableName, source, targetReplica, batch);
+		
 		// Update high timestamp
-    	tableTimestamps.get(target.getName()).replace(source.getName(), maxTimestamp);
+		updateWatermark(tableName, target, source, maxTimestamp);
+		if (owned) {
+			advancedWatermarks.add(laneKey(tableName, target, source));
+		}
     	
     	return numReplicated;
 	}
 	
+	/*
+	 * Get the timestamp up to which items from the source region have been replicated to the target region
+	 */
+	public synchronized long getWatermark(String tableName, Regions target, Regions source) {
+		generateTimestamps(tableName);
+		Map<String, Long> timesForTarget = highTimestamps.get(tableName).get(target.getName());
+		if (timesForTarget == null || !timesForTarget.containsKey(source.getName())) {
+			return 0L;
+		}
+		return timesForTarget.get(source.getName());
+	}
+	
+	/*
+	 * Set the timestamp up to which items from the source region have been replicated to the target region,
+	 * e.g. after the target was bootstrapped from a snapshot
+	 */
+	public synchronized void setWatermark(String tableName, Regions target, Regions source, long timestamp) {
+		updateWatermark(tableName, target, source, timestamp);
+		advancedWatermarks.add(laneKey(tableName, target, source));
+	}
+	
+	/*
+	 * Move the pair's watermark without claiming that all older items reached the target
+	 */
+	private void updateWatermark(String tableName, Regions target, Regions source, long timestamp) {
+		generateTimestamps(tableName);
+		Map<String, Long> timesForTarget = highTimestamps.get(tableName).get(target.getName());
+		if (timesForTarget == null) {
+			timesForTarget = new HashMap<String, Long>();
+			highTimestamps.get(tableName).put(target.getName(), timesForTarget);
+		}
+		timesForTarget.put(source.getName(), timestamp);
+	}
+	
+	/*
+	 * Returns true if the pair's watermark shows that all older items reached the target, because it was
+	 * set explicitly or advanced by a pull after the pair's backfill completed, as opposed to inferred
+	 * from the newest item at the target or started at the live window, which does not
+	 */
+	public synchronized boolean isWatermarkAdvanced(String tableName, Regions target, Regions source) {
+		return advancedWatermarks.contains(laneKey(tableName, target, source));
+	}
+	
+	/*
+	 * Replicate up to the given number of older items from the source region to the target region.
+	 * This is the bulk lane, which copies items for a backfill or repair at a lower capacity share
+	 * and with its own watermark (the last key scanned), so that it never delays the live lane.
+	 */
+	public synchronized int pullBulkItems(String tableName, Regions target, Regions source, int maxItems) {
+		BackfillTask backfill = backfills.get(laneKey(tableName, target, source));
+		if (backfill == null || backfill.done) {
+			return 0;
+		}
+		
+		// Scan one page of source items that were updated before the live lane's start
+		Table sourceTable = new DynamoDB(DynamoDBClients.get(source)).getTable(tableName);
+		ScanSpec scanSpec = new ScanSpec()
+				.withConsistentRead(true)
+				.withMaxPageSize(maxItems)
+				.withScanFilters(SystemAttributes.getOriginFilter(source),
+						SystemAttributes.getTimestampUpperFilter(backfill.maxTimestamp));
+		if (backfill.lastKey != null) {
+			scanSpec.withExclusiveStartKey(backfill.lastKey);
+		}
+		long startTime = System.currentTimeMillis();
+		Page<Item, ScanOutcome> page;
+		try {
+			page = sourceTable.scan(scanSpec).firstPage();
+			latencyTracker.recordSuccess(source, System.currentTimeMillis() - startTime);
+		} catch (RuntimeException e) {
+			latencyTracker.recordError(source, System.currentTimeMillis() - startTime);
+			throw e;
+		}
+		
+		// Write items to target
+		TargetReplica targetReplica = openTarget(tableName, target, BULK_LANE);
+		List<Item> batch = new ArrayList<Item>();
+		for (Item sourceItem : page) {
+			batch.add(sourceItem);
+		}
+		replicateItems(tableName, source, targetReplica, batch);
+		int numReplicated = batch.size();
+		
+		// Advance the bulk lane's watermark, and record it
+		Map<String, AttributeValue> lastKey = page.getLowLevelResult().getScanResult().getLastEvaluatedKey();
+		if (lastKey == null || lastKey.isEmpty()) {
+			backfill.done = true;
+			backfill.lastKey = null;
+			gmd.clearBackfillProgress(tableName, target, source);
+		} else {
+			Map<String, Object> keyValues = InternalUtils.toSimpleMapValue(lastKey);
+			List<KeyAttribute> keyAttributes = new ArrayList<KeyAttribute>();
+			for (Map.Entry<String, Object> attribute : keyValues.entrySet()) {
+				keyAttributes.add(new KeyAttribute(attribute.getKey(), attribute.getValue()));
+			}
+			backfill.lastKey = new PrimaryKey(keyAttributes.toArray(new KeyAttribute[0]));
+			gmd.setBackfillProgress(tableName, target, source, backfill.toMap());
+		}
+		return numReplicated;
+	}
+	
+	/*
+	 * Schedule a repair that copies all items from the source region to the target region
+	 * through the bulk lane
+	 */
+	public synchronized void requestRepair(String tableName, Regions target, Regions source) {
+		startBackfill(tableName, target, source, new BackfillTask(System.currentTimeMillis()));
+	}
+	
+	private void startBackfill(String tableName, Regions target, Regions source, BackfillTask backfill) {
+		backfill.reachesWatermark = true;
+		gmd.setBackfillProgress(tableName, target, source, backfill.toMap());
+		backfills.put(laneKey(tableName, target, source), backfill);
+	}
+	
+	/*
+	 * Replicate the given items, read from the source region, to the target region through the bulk lane,
+	 * e.g. to repair items that were missed. Returns the number of items written.
+	 */
+	public synchronized int repairItems(String tableName, Regions target, Regions source, List<Item> sourceItems) {
+		return replicateItems(tableName, source, openTarget(tableName, target, BULK_LANE), sourceItems);
+	}
+	
+	/*
+	 * Copy all remaining updates made by a removed region to each remaining replica,
+	 * and acknowledge in metadata that the replica holds all of them so that the region's
+	 * entries can be pruned from version vectors. A region whose table is already gone has
+	 * no more updates to give and is acknowledged as is.
+	 */
+	public synchronized int drainRetiredRegion(String tableName, Regions retired) {
+		int numReplicated = 0;
+		for (Regions target : gmd.listRegions(tableName)) {
+			try {
+				numReplicated += pullItems(tableName, target, retired);
+				while (hasPendingBulkWork(tableName, target, retired)) {
+					numReplicated += pullBulkItems(tableName, target, retired, BULK_BATCH_SIZE);
+				}
+			} catch (ResourceNotFoundException e) {
+				System.out.println("Table " + tableName + " no longer exists in retired region " + retired);
+			}
+			gmd.acknowledgeRetirement(tableName, retired, target);
+		}
+		return numReplicated;
+	}
+	
+	public synchronized boolean hasPendingBulkWork(String tableName, Regions target, Regions source) {
+		BackfillTask backfill = backfills.get(laneKey(tableName, target, source));
+		return backfill != null && !backfill.done;
+	}
+	
+	/*
+	 * Write a batch of source items to the target, resolving all of them against the versions
+	 * held by the target in one call to the conflict resolver. Each winner is written only if the
+	 * target still holds the version it was resolved against; otherwise the item is read and resolved again.
+	 * Returns the number of items written.
+	 */
+	private int replicateItems(String tableName, Regions source, TargetReplica targetReplica, List<Item> sourceItems) {
+		final Table targetTable = targetReplica.table;
+		Regions target = targetReplica.region;
+		if (sourceItems.isEmpty()) {
+			return 0;
+		}
+		
+		// Read the item stored in the target table for each source item,
+		// decoding the system attributes of both once (without entries of retired regions)
+		Set<String> prunedRegions = gmd.getPrunableRegions(tableName);
+		List<VersionedItem> sources = new ArrayList<VersionedItem>(sourceItems.size());
+		List<VersionedItem> targets = new ArrayList<VersionedItem>(sourceItems.size());
+		for (Item sourceItem : sourceItems) {
+			final PrimaryKey key = targetReplica.schema.getPrimaryKey(sourceItem);
+			Item targetItem = callTarget(target, targetReplica.readThrottle, readUnits(sourceItem),
+					() -> targetTable.getItem(key));
+			VersionedItem sourceVersion = new VersionedItem(sourceItem, prunedRegions);
+			VersionedItem targetVersion = VersionedItem.decode(targetItem, prunedRegions);
+			if (repairer != null && sourceVersion.conflictsWith(targetVersion)) {
+				// leave the conflict to a repair worker, keeping the target's version for now
+				System.out.println("     Conflict detected to item " + key);
+				System.out.println("         when replicating from  " + source + " to " + target + " (resolution deferred)");
+				repairer.submit(new ConflictRecord(tableName, source, target, sourceItem, targetItem), key);
+				continue;
+			}
+			sources.add(sourceVersion);
+			targets.add(targetVersion);
+		}
+		
+		// Resolve the whole batch
+		List<Item> winners = resolver.resolve(sources, targets, gmd.getMaster(tableName));
+		
+		// Perform updates
+		int numWritten = 0;
+		for (int i = 0; i < sources.size(); i++) {
+			VersionedItem sourceVersion = sources.get(i);
+			VersionedItem targetVersion = targets.get(i);
+			Item winner = winners.get(i);
+			for (int attempt = 0; ; attempt++) {
+				try {
+					if (writeWinner(tableName, source, targetReplica, sourceVersion, targetVersion, winner, prunedRegions)) {
+						numWritten++;
+					}
+					break;
+				} catch (ConditionalCheckFailedException e) {
+					if (attempt >= MAX_RESOLVE_RETRIES) {
+						throw e;
+					}
+					// the target was updated since it was read, e.g. by a CRDT update, so resolve against its new version
+					final PrimaryKey key = targetReplica.schema.getPrimaryKey(sourceVersion.getItem());
+					Item targetItem = callTarget(target, targetReplica.readThrottle, readUnits(sourceVersion.getItem()),
+							() -> targetTable.getItem(new GetItemSpec()
+									.withPrimaryKey(key)
+									.withConsistentRead(true)));
+					targetVersion = VersionedItem.decode(targetItem, prunedRegions);
+					winner = resolver.resolve(Collections.singletonList(sourceVersion),
+							Collections.singletonList(targetVersion), gmd.getMaster(tableName)).get(0);
+				}
+			}
+		}
+		if (conflictLog != null) {
+			conflictLog.flush();
+		}
+		return numWritten;
+	}
+	
+	/*
+	 * Write the winner of a source and target version to the target, provided that the target
+	 * still holds the given version, and report the conflict, if any, once the winner is settled.
+	 * Returns false if the target's version won, so that nothing was written.
+	 */
+	private boolean writeWinner(String tableName, Regions source, TargetReplica targetReplica,
+			VersionedItem sourceVersion, VersionedItem targetVersion, Item winner, Set<String> prunedRegions) {
+		Regions target = targetReplica.region;
+		if (winner != null) {
+			if (winner != sourceVersion.getItem()) {
+				// a merged version is a new update at the target, which replicates it to the other replicas
+				SystemAttributes.setLocalUpdate(winner, target);
+			} else if (!prunedRegions.isEmpty()) {
+				SystemAttributes.setVersion(winner, sourceVersion.getVersion());
+			}
+			Item storedItem = targetVersion.getItem();
+			final PutItemSpec putSpec = new PutItemSpec()
+					.withItem(winner)
+					.withConditionExpression(SystemAttributes.getUnchangedCondition(storedItem))
+					.withNameMap(SystemAttributes.getUnchangedNames())
+					.withValueMap(SystemAttributes.getUnchangedValues(storedItem));
+			callTarget(target, targetReplica.writeThrottle, writeUnits(winner),
+					() -> targetReplica.table.putItem(putSpec));
+		}
+		if (sourceVersion.conflictsWith(targetVersion)) {
+			PrimaryKey key = targetReplica.schema.getPrimaryKey(sourceVersion.getItem());
+			System.out.println("     Conflict detected to item " + key);
+			System.out.println("         when replicating from  " + source + " to " + target);
+			if (winner == null) {
+				System.out.println("     Version at " + target + " was retained as the winner.");
+			} else if (winner == sourceVersion.getItem()) {
+				System.out.println("     Version from " + source + " was written as the winner.");
+			} else {
+				System.out.println("     Versions from " + source + " and at " + target + " were merged.");
+			}
+			if (conflictLog != null) {
+				conflictLog.record(new ConflictRecord(tableName, source, target,
+						sourceVersion.getItem(), targetVersion.getItem()).resolvedBy(winner), key);
+			}
+		}
+		return winner != null;
+	}
+	
+	/*
+	 * Get the target table and the throttles for the given lane
+	 */
+	private TargetReplica openTarget(String tableName, Regions target, String lane) {
+		TargetReplica targetReplica = new TargetReplica();
+		targetReplica.region = target;
+		targetReplica.table = new DynamoDB(getReplicationClient(target)).getTable(tableName);
+		TableSchema targetSchema = TableSchemaCache.getSharedCache().getSchema(tableName, target);
+		targetReplica.schema = targetSchema;
+		double share = lane.equals(LIVE_LANE) ? LIVE_LANE_SHARE : 1 - LIVE_LANE_SHARE;
+		targetReplica.readThrottle = getThrottle(readThrottles, laneKey(tableName, target, lane), share);
+		targetReplica.writeThrottle = getThrottle(writeThrottles, laneKey(tableName, target, lane), share);
+		targetReplica.readThrottle.setProvisionedCapacity(targetSchema.getReadCapacityUnits());
+		targetReplica.writeThrottle.setProvisionedCapacity(targetSchema.getWriteCapacityUnits());
+		return targetReplica;
+	}
+	
 	/*
 	 * Replicate recently updated items between all pairs of replicas for the given table.
+	 * Regions being bootstrapped are left out until the bootstrapper has caught them up
+	 * and marked them readable.
 	 */
-	public int syncReplicas(String tableName) {
-		Set<Regions> replicaSet = gmd.listRegions(tableName);
+	public synchronized int syncReplicas(String tableName) {
+		Set<Regions> replicaSet = gmd.listReadableRegions(tableName);
 		int numReplicated = 0;
 		
 		if (replicaSet == null) {
 			return 0;
 		}
 		
+		// Replicate recent writes between the fastest and healthiest pairs of regions first
+		List<Regions[]> pairs = orderPairs(replicaSet);
+		for (Regions[] pair : pairs) {
+			int num = this.pullItems(tableName, pair[0], pair[1]);
+			numReplicated += num;
+		}
+		
+		// Then make bounded progress on backfills and repairs
+		for (Regions[] pair : pairs) {
+			int num = this.pullBulkItems(tableName, pair[0], pair[1], BULK_BATCH_SIZE);
+			numReplicated += num;
+		}
+		
+    	return numReplicated;
+	}
+	
+	/*
+	 * Perform a call to a target table at the throttled rate, retrying when throttled,
+	 * and report its latency
+	 */
+	private <T> T callTarget(Regions target, ReplicationThrottle throttle, double units, Supplier<T> call) {
+		int attempt = 0;
+		while (true) {
+			throttle.acquire(units);
+			long startTime = System.currentTimeMillis();
+			try {
+				T result = call.get();
+				latencyTracker.recordSuccess(target, System.currentTimeMillis() - startTime);
+				throttle.onSuccess();
+				return result;
+			} catch (ConditionalCheckFailedException e) {
+				// the target answered, so a failed condition says nothing about its health
+				latencyTracker.recordSuccess(target, System.currentTimeMillis() - startTime);
+				throw e;
+			} catch (AmazonServiceException e) {
+				if (!ReplicationThrottle.isThrottle(e) || attempt >= ReplicationThrottle.MAX_RETRIES) {
+					latencyTracker.recordError(target, System.currentTimeMillis() - startTime);
+					throw e;
+				}
+				throttle.onThrottle(attempt);
+				attempt++;
+			} catch (RuntimeException e) {
+				latencyTracker.recordError(target, System.currentTimeMillis() - startTime);
+				throw e;
+			}
+		}
+	}
+	
+	private ReplicationThrottle getThrottle(Map<String, ReplicationThrottle> throttles, String key, double share) {
+		ReplicationThrottle throttle = throttles.get(key);
+		if (throttle == null) {
+			throttle = new ReplicationThrottle(capacityFraction * share);
+			throttles.put(key, throttle);
+		}
+		return throttle;
+	}
+	
+	private static String laneKey(String tableName, Regions target, Regions source) {
+		return laneKey(tableName, target, source.getName());
+	}
+	
+	private static String laneKey(String tableName, Regions target, String suffix) {
+		return tableName + ":" + target.getName() + ":" + suffix;
+	}
+	
+	/*
+	 * Capacity units consumed by an eventually consistent read or a write of the item
+	 */
+	private static double readUnits(Item item) {
+		return 0.5 * Math.ceil(item.toJSON().length() / 4096.0);
+	}
+	
+	private static double writeUnits(Item item) {
+		return Math.ceil(item.toJSON().length() / 1024.0);
+	}
+	
+	/*
+	 * Returns the shared client that leaves retries of throttled requests to the replication throttle,
+	 * so that throttling is seen immediately and the replication rate backs off
+	 */
+	static AmazonDynamoDB getReplicationClient(Regions region) {
+		return replicationClients.computeIfAbsent(region, ReplicationEngine::createReplicationClient);
+	}
+	
+	private static AmazonDynamoDB createReplicationClient(Regions region) {
+		RetryPolicy.RetryCondition retryUnlessThrottled = new RetryPolicy.RetryCondition() {
+			public boolean shouldRetry(AmazonWebServiceRequest request,
+					AmazonClientException exception, int retriesAttempted) {
+				if (ReplicationThrottle.isThrottle(exception)) {
+					return false;
+				}
+				return PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, exception, retriesAttempted);
+			}
+		};
+		RetryPolicy retryPolicy = new RetryPolicy(retryUnlessThrottled,
+				PredefinedRetryPolicies.DYNAMODB_DEFAULT_BACKOFF_STRATEGY,
+				PredefinedRetryPolicies.DYNAMODB_DEFAULT_MAX_ERROR_RETRY, true);
+		return AmazonDynamoDBClientBuilder.standard()
+				.withRegion(region)
+				.withClientConfiguration(new ClientConfiguration().withRetryPolicy(retryPolicy))
+				.build();
+	}
+	
+	/*
+	 * Returns all (target, source) pairs ordered by their measured round-trip times,
+	 * with pairs involving an unhealthy region last
+	 */
+	private List<Regions[]> orderPairs(Set<Regions> replicaSet) {
+		// read the health and latency of each replica once, since other threads keep updating them
+		final Map<Regions, Boolean> healthy = new HashMap<Regions, Boolean>();
+		final Map<Regions, Double> latencies = new HashMap<Regions, Double>();
+		for (Regions replica : replicaSet) {
+			healthy.put(replica, latencyTracker.isHealthy(replica));
+			// regions that have never been measured count as fast so that they get measured
+			latencies.put(replica, Math.max(0, latencyTracker.getLatency(replica)));
+		}
+		List<Regions[]> pairs = new ArrayList<Regions[]>();
 		for (Regions target : replicaSet) {
 			for (Regions source : replicaSet) {
 				if (!target.equals(source)) {
-					int num = this.pullItems(tableName, target, source);
-					numReplicated += num;
+					pairs.add(new Regions[] {target, source});
 				}
 			}
 		}
-		
-    	return numReplicated;
+		Collections.sort(pairs, new Comparator<Regions[]>() {
+			public int compare(Regions[] one, Regions[] two) {
+				boolean oneHealthy = healthy.get(one[0]) && healthy.get(one[1]);
+				boolean twoHealthy = healthy.get(two[0]) && healthy.get(two[1]);
+				if (oneHealthy != twoHealthy) {
+					return oneHealthy ? -1 : 1;
+				}
+				return Double.compare(latencies.get(one[0]) + latencies.get(one[1]),
+						latencies.get(two[0]) + latencies.get(two[1]));
+			}
+		});
+		return pairs;
 	}
 	
 	private Map<String, Map<String, Long>> getTableTimestamps(String tableName) {
 		Map<String, Map<String, Long>> timestamps = new HashMap<String, Map<String, Long>>();
 		
-		// Get regions for table
-		GlobalMetadata gmd = new GlobalMetadata();
+		// Get regions for table, and the retired regions whose items may remain in its replicas
 		Set<Regions> replicaSet = gmd.listRegions(tableName);
+		Set<Regions> originSet = new HashSet<Regions>(replicaSet);
+		originSet.addAll(gmd.listRetiredRegions(tableName));
 		
 		// Initialize timestamps to all zeros
 		for (Regions target : replicaSet) {
 			HashMap<String, Long> timesForTarget = new HashMap<String, Long>();
-			for (Regions source : replicaSet) {
+			for (Regions source : originSet) {
 				timesForTarget.put(source.getName(), 0L);
 			}
 			timestamps.put(target.getName(), timesForTarget);
@@ -152,24 +755,85 @@ public class ReplicationEngine {
 		
 		// Scan replicas to update latest timestamps from each region
 		for (Regions target : replicaSet) {
-			AmazonDynamoDB ddb = AmazonDynamoDBClientBuilder.standard()
-					.withRegion(target)
-					.build();
+			AmazonDynamoDB ddb = DynamoDBClients.get(target);
+			Map<String, Long> timesForTarget = timestamps.get(target.getName());
 			ScanRequest scanRequest = new ScanRequest()
 				    .withTableName(tableName);
-			ScanResult scanResult = ddb.scan(scanRequest);
-			if (scanResult != null) {
+			do {
+				ScanResult scanResult = ddb.scan(scanRequest);
 				for (Map<String, AttributeValue> item : scanResult.getItems()){
 					Long itemTimestamp = SystemAttributes.getTimestamp(item);
 					String itemOrigin = SystemAttributes.getOrigin(item);
-					if (itemTimestamp > timestamps.get(target.getName()).get(itemOrigin)) {
-						timestamps.get(target.getName()).replace(itemOrigin, itemTimestamp);
-					}
+					// (an origin that is neither listed nor retired still gets a timestamp)
+					timesForTarget.merge(itemOrigin, itemTimestamp, Math::max);
 				}
-			}
+				scanRequest.setExclusiveStartKey(scanResult.getLastEvaluatedKey());
+			} while (scanRequest.getExclusiveStartKey() != null);
 		}
 		
 		return timestamps;
 	}
 
+	/*
+	 * A target table along with the throttles for one replication lane
+	 */
+	private static class TargetReplica {
+		Regions region;
+		Table table;
+		TableSchema schema;
+		ReplicationThrottle readThrottle;
+		ReplicationThrottle writeThrottle;
+	}
+	
+	/*
+	 * Progress of a backfill or repair in the bulk lane
+	 */
+	private static class BackfillTask {
+		// items updated after this time are left to the live lane
+		long maxTimestamp;
+		// last key copied, or null to start from the beginning
+		PrimaryKey lastKey;
+		boolean done;
+		// true if the task was started by this engine no earlier than the live lane's watermark, so that
+		// the two lanes together cover all items (not known for a task resumed from metadata)
+		boolean reachesWatermark;
+		
+		BackfillTask(long maxTimestamp) {
+			this.maxTimestamp = maxTimestamp;
+			this.lastKey = null;
+			this.done = false;
+			this.reachesWatermark = false;
+		}
+		
+		/*
+		 * Progress as recorded in metadata (a task that is done is not recorded)
+		 */
+		Map<String, Object> toMap() {
+			Map<String, Object> progress = new HashMap<String, Object>();
+			progress.put("maxTimestamp", maxTimestamp);
+			if (lastKey != null) {
+				Map<String, Object> key = new HashMap<String, Object>();
+				for (KeyAttribute component : lastKey.getComponents()) {
+					key.put(component.getName(), component.getValue());
+				}
+				progress.put("lastKey", key);
+			}
+			return progress;
+		}
+		
+		@SuppressWarnings("unchecked")
+		static BackfillTask fromMap(Map<String, Object> progress) {
+			BackfillTask backfill = new BackfillTask(((Number) progress.get("maxTimestamp")).longValue());
+			Map<String, Object> key = (Map<String, Object>) progress.get("lastKey");
+			if (key != null) {
+				List<KeyAttribute> keyAttributes = new ArrayList<KeyAttribute>();
+				for (Map.Entry<String, Object> attribute : key.entrySet()) {
+					keyAttributes.add(new KeyAttribute(attribute.getKey(), attribute.getValue()));
+				}
+				backfill.lastKey = new PrimaryKey(keyAttributes.toArray(new KeyAttribute[0]));
+			}
+			return backfill;
+		}
+	}
+
 }
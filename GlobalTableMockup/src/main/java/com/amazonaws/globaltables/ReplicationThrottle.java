@@ -0,0 +1,156 @@
+package com.amazonaws.globaltables;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.retry.RetryUtils;
+
+public class ReplicationThrottle {
+
+	/**
+	 * Limits the rate at which replication consumes capacity on a target table.
+	 * A token bucket admits requests at the current rate, and the rate is adjusted
+	 * using additive increase / multiplicative decrease (AIMD): it is cut on each
+	 * throttling error and grows slowly on success, never exceeding the configured
+	 * fraction of the table's provisioned capacity. The remaining capacity is left
+	 * for foreground traffic from routers.
+	 */
+
+	// default fraction of provisioned capacity that replication may use
+	public static final double DEFAULT_CAPACITY_FRACTION = 0.5;
+
+	// rate used when the table has no provisioned capacity (units per second)
+	private static final double DEFAULT_UNPROVISIONED_RATE = 10.0;
+
+	// rate never drops below this (units per second)
+	private static final double MIN_RATE = 0.1;
+
+	// factor by which the rate is cut when throttled
+	private static final double DECREASE_FACTOR = 0.5;
+
+	// fraction of the maximum rate that is added for each success
+	private static final double INCREASE_FRACTION = 0.02;
+
+	// backoff after a throttling error (milliseconds)
+	private static final long BASE_BACKOFF = 50L;
+	private static final long MAX_BACKOFF = 1000*10L;  // 10 seconds
+
+	// number of times a throttled request is retried
+	public static final int MAX_RETRIES = 10;
+
+	private double capacityFraction;
+
+	// maximum and current rate in capacity units per second
+	private double maxRate;
+	private double rate;
+
+	// token bucket state
+	private double tokens;
+	private long lastRefillTime;
+
+	// counters for reporting
+	private long numThrottles;
+	private long numRequests;
+
+	public ReplicationThrottle() {
+		this(DEFAULT_CAPACITY_FRACTION);
+	}
+
+	public ReplicationThrottle(double capacityFraction) {
+		this.capacityFraction = capacityFraction;
+		maxRate = Double.MAX_VALUE;
+		rate = DEFAULT_UNPROVISIONED_RATE;
+		tokens = 0;
+		lastRefillTime = System.currentTimeMillis();
+		numThrottles = 0;
+		numRequests = 0;
+	}
+
+	/*
+	 * Set the table's provisioned capacity (in units per second).
+	 * A capacity of zero means that it is unknown, in which case the rate is
+	 * discovered from throttling errors starting from a modest rate.
+	 */
+	public synchronized void setProvisionedCapacity(long capacityUnits) {
+		if (capacityUnits > 0) {
+			maxRate = Math.max(MIN_RATE, capacityUnits * capacityFraction);
+			if (rate > maxRate || numRequests == 0) {
+				rate = maxRate;
+			}
+		} else {
+			maxRate = Double.MAX_VALUE;
+		}
+	}
+
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	public synchronized double getMaxRate() {
+		return maxRate;
+	}
+
+	public synchronized long getNumThrottles() {
+		return numThrottles;
+	}
+
+	/*
+	 * Wait until the given number of capacity units can be consumed
+	 */
+	public void acquire(double units) {
+		long waitTime;
+		synchronized (this) {
+			refill();
+			tokens -= units;
+			numRequests++;
+			waitTime = (tokens >= 0) ? 0 : (long) Math.ceil(-tokens * 1000 / rate);
+		}
+		sleep(waitTime);
+	}
+
+	/*
+	 * Additive increase after a request succeeds
+	 */
+	public synchronized void onSuccess() {
+		double step = (maxRate == Double.MAX_VALUE) ? DEFAULT_UNPROVISIONED_RATE : maxRate;
+		rate = Math.min(maxRate, rate + step * INCREASE_FRACTION);
+	}
+
+	/*
+	 * Multiplicative decrease after a request was throttled,
+	 * and then wait for an exponentially growing and jittered backoff
+	 */
+	public void onThrottle(int attempt) {
+		synchronized (this) {
+			refill();
+			numThrottles++;
+			rate = Math.max(MIN_RATE, rate * DECREASE_FACTOR);
+			tokens = Math.min(tokens, 0);
+		}
+		long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(attempt, 20));
+		sleep(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+	}
+
+	public static boolean isThrottle(SdkBaseException e) {
+		return RetryUtils.isThrottlingException(e);
+	}
+
+	private void refill() {
+		long now = System.currentTimeMillis();
+		double burst = Math.max(1.0, rate);
+		tokens = Math.min(burst, tokens + (now - lastRefillTime) * rate / 1000);
+		lastRefillTime = now;
+	}
+
+	private void sleep(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
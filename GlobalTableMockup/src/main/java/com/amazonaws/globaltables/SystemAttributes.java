@@ -1,17 +1,22 @@
 package com.amazonaws.globaltables;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Expected;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.QueryFilter;
 import com.amazonaws.services.dynamodbv2.document.ScanFilter;
 import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 
 public class SystemAttributes {
@@ -20,6 +25,22 @@ public class SystemAttributes {
 	private static final String UPDATE_TIMESTAMP = "zgtTimestamp";   // time of last update to item
 	private static final String UPDATE_ORIGIN = "zgtOrigin";   // region where item was updated
 	private static final String UPDATE_VERSION = "zgtVersion";  // version vector
+	private static final String UPDATE_EPOCH = "zgtEpoch";  // master lease epoch of last consistent write
+	private static final String UPDATE_CRDT = "zgtCrdt";  // state of conflict-free replicated attributes
+	private static final String UPDATE_DELETED = "zgtDeleted";  // marks a tombstone of a deleted item
+	private static final String UPDATE_TRANSACTION = "zgtTxn";  // id and size of the transaction that wrote the item
+	
+	// Condition that rejects a consistent write with an older lease epoch than the stored item
+	static final String EPOCH_FENCE_CONDITION = "(attribute_not_exists(#zgtEpoch) OR #zgtEpoch <= :zgtEpoch)";
+	
+	// Update that replaces the version vector with one whose retired entries were pruned
+	static final String PRUNE_VERSION_UPDATE = "SET #zgtVersion = :zgtPrunedVersion";
+	
+	// Filter that hides tombstones from reads
+	static final String NOT_DELETED_FILTER = "attribute_not_exists(#zgtDeleted)";
+	
+	// Filter for tombstones that were written before a given time
+	static final String OLD_TOMBSTONE_FILTER = "attribute_exists(#zgtDeleted) AND #zgtTimestamp < :zgtHorizon";
 
 	public SystemAttributes() {
 	}
@@ -49,10 +70,84 @@ public class SystemAttributes {
 		return version;
 	}
 
+	public static boolean hasVersion(Item item) {
+	    return item.isPresent(UPDATE_VERSION);
+	}
+
 	public static void setVersion(Item item, VersionVector version) {
 	    item.withMap(UPDATE_VERSION, version.toMap());
 	}
 	
+	public static boolean hasEpoch(Item item) {
+	    return item.isPresent(UPDATE_EPOCH);
+	}
+
+	public static long getEpoch(Item item) {
+	    return item.getLong(UPDATE_EPOCH);
+	}
+
+	public static void setEpoch(Item item, long epoch) {
+	    item.withLong(UPDATE_EPOCH, epoch);
+	}
+
+	/*
+	 * Mark the item as a new update made at the given region, e.g. after merging conflicting versions,
+	 * so that it is replicated from there to the other replicas
+	 */
+	public static void setLocalUpdate(Item item, Regions region) {
+	    setOrigin(item, region.getName());
+	    setTimestamp(item);
+	    clearTransaction(item);
+	}
+
+	public static boolean hasCrdtState(Item item) {
+	    return item.isPresent(UPDATE_CRDT);
+	}
+
+	public static Map<String, Object> getCrdtState(Item item) {
+	    return item.getRawMap(UPDATE_CRDT);
+	}
+
+	public static void setCrdtState(Item item, Map<String, Object> state) {
+	    item.withMap(UPDATE_CRDT, state);
+	}
+
+	/*
+	 * A deleted item is kept as a tombstone, i.e. its key and system attributes, so that the delete
+	 * is versioned and replicated like any other update until the tombstone is garbage collected
+	 */
+	public static boolean isDeleted(Item item) {
+	    return item.isPresent(UPDATE_DELETED);
+	}
+
+	public static void setDeleted(Item item) {
+	    item.withBoolean(UPDATE_DELETED, true);
+	}
+
+	/*
+	 * Items written together by a transaction carry its id and number of items,
+	 * so that replication can tell when it has seen all of them
+	 */
+	public static boolean hasTransaction(Item item) {
+	    return item.isPresent(UPDATE_TRANSACTION);
+	}
+
+	public static String getTransactionId(Item item) {
+	    return (String) item.getRawMap(UPDATE_TRANSACTION).get("id");
+	}
+
+	public static int getTransactionSize(Item item) {
+	    return ((Number) item.getRawMap(UPDATE_TRANSACTION).get("size")).intValue();
+	}
+
+	public static void setTransaction(Item item, String transactionId, int size) {
+	    item.withMap(UPDATE_TRANSACTION, new ValueMap().withString("id", transactionId).withInt("size", size));
+	}
+
+	public static void clearTransaction(Item item) {
+	    item.removeAttribute(UPDATE_TRANSACTION);
+	}
+	
     public static AttributeUpdate updateTimestamp() {
     	AttributeUpdate update = new AttributeUpdate(UPDATE_TIMESTAMP).put(System.currentTimeMillis());
     	return update;
@@ -68,11 +163,171 @@ public class SystemAttributes {
     	return update;
     }
     
+    public static AttributeUpdate updateEpoch(long epoch) {
+    	AttributeUpdate update = new AttributeUpdate(UPDATE_EPOCH).put(epoch);
+    	return update;
+    }
+    
+    /*
+     * An update of a deleted item brings it back to life
+     */
+    public static AttributeUpdate updateUndeleted() {
+    	AttributeUpdate update = new AttributeUpdate(UPDATE_DELETED).delete();
+    	return update;
+    }
+    
+    /*
+     * An update of an item that was written by a transaction is no longer part of it
+     */
+    public static AttributeUpdate updateNoTransaction() {
+    	AttributeUpdate update = new AttributeUpdate(UPDATE_TRANSACTION).delete();
+    	return update;
+    }
+    
+    /*
+     * Legacy condition that rejects a write with an older epoch than the stored item,
+     * for requests that use attribute updates and so cannot use condition expressions
+     */
+    public static Expected getEpochFence(Item storedItem, long epoch) {
+    	return getEpochFence(storedItem != null && hasEpoch(storedItem), epoch);
+    }
+    
+    public static Expected getEpochFence(boolean hasEpoch, long epoch) {
+    	if (!hasEpoch) {
+    		return new Expected(UPDATE_EPOCH).notExist();
+    	}
+    	return new Expected(UPDATE_EPOCH).le(epoch);
+    }
+    
+    /*
+     * Legacy condition that the item has the given version (null if the item must not exist)
+     */
+    public static Expected getVersionExpected(VersionVector version) {
+    	if (version == null) {
+    		return new Expected(UPDATE_VERSION).notExist();
+    	}
+    	return new Expected(UPDATE_VERSION).eq(version.toMap());
+    }
+    
+    public static Map<String, String> getEpochFenceNames() {
+    	return new NameMap().with("#zgtEpoch", UPDATE_EPOCH);
+    }
+    
+    public static Map<String, Object> getEpochFenceValues(long epoch) {
+    	return new ValueMap().withLong(":zgtEpoch", epoch);
+    }
+    
+    /*
+     * Condition that a write is based on the stored version of the item (null if there was none),
+     * i.e. that the item has not been updated since it was read
+     */
+    public static String getUnchangedCondition(Item storedItem) {
+    	return (storedItem == null) ? "attribute_not_exists(#zgtVersion)" : "#zgtVersion = :zgtVersion";
+    }
+    
+    public static Map<String, String> getUnchangedNames() {
+    	return new NameMap().with("#zgtVersion", UPDATE_VERSION);
+    }
+    
+    public static Map<String, Object> getUnchangedValues(Item storedItem) {
+    	if (storedItem == null) {
+    		return null;
+    	}
+    	return new ValueMap().withMap(":zgtVersion", storedItem.getRawMap(UPDATE_VERSION));
+    }
+    
+    /*
+     * Condition that the item has the given version (null if the item must not exist)
+     */
+    public static String getExpectedVersionCondition(VersionVector version) {
+    	return (version == null) ? "attribute_not_exists(#zgtVersion)" : "#zgtVersion = :zgtVersion";
+    }
+    
+    public static Map<String, Object> getExpectedVersionValues(VersionVector version) {
+    	if (version == null) {
+    		return null;
+    	}
+    	return new ValueMap().withMap(":zgtVersion", version.toMap());
+    }
+    
+    public static Map<String, Object> getPruneVersionValues(Item storedItem, VersionVector pruned) {
+    	return new ValueMap()
+    			.withMap(":zgtVersion", storedItem.getRawMap(UPDATE_VERSION))
+    			.withMap(":zgtPrunedVersion", pruned.toMap());
+    }
+    
+    public static Map<String, String> getNotDeletedNames() {
+    	return new NameMap().with("#zgtDeleted", UPDATE_DELETED);
+    }
+    
+    /*
+     * Legacy filter that hides tombstones, for queries that use key conditions rather than expressions
+     */
+    public static QueryFilter getNotDeletedQueryFilter() {
+    	return new QueryFilter(UPDATE_DELETED).notExist();
+    }
+    
+    public static Map<String, String> getOldTombstoneNames() {
+    	return new NameMap()
+    			.with("#zgtDeleted", UPDATE_DELETED)
+    			.with("#zgtTimestamp", UPDATE_TIMESTAMP);
+    }
+    
+    public static Map<String, Object> getOldTombstoneValues(long horizon) {
+    	return new ValueMap().withLong(":zgtHorizon", horizon);
+    }
+    
+    /*
+     * Projection of an item's key attributes and version vector, e.g. to summarize a replica
+     */
+    public static String getVersionProjection(List<String> keyNames) {
+    	StringBuilder projection = new StringBuilder("#zgtVersion");
+    	for (int i = 0; i < keyNames.size(); i++) {
+    		projection.append(", #zgtKey").append(i);
+    	}
+    	return projection.toString();
+    }
+    
+    public static Map<String, String> getVersionProjectionNames(List<String> keyNames) {
+    	NameMap names = new NameMap().with("#zgtVersion", UPDATE_VERSION);
+    	for (int i = 0; i < keyNames.size(); i++) {
+    		names.with("#zgtKey" + i, keyNames.get(i));
+    	}
+    	return names;
+    }
+    
+    /*
+     * Filter for items whose version vectors have entries for any of the given replicas
+     */
+    public static String getVersionEntriesFilter(List<String> replicaNames) {
+    	StringBuilder filter = new StringBuilder();
+    	for (int i = 0; i < replicaNames.size(); i++) {
+    		if (i > 0) {
+    			filter.append(" OR ");
+    		}
+    		filter.append("attribute_exists(#zgtVersion.#zgtReplica").append(i).append(")");
+    	}
+    	return filter.toString();
+    }
+    
+    public static Map<String, String> getVersionEntriesNames(List<String> replicaNames) {
+    	NameMap names = new NameMap().with("#zgtVersion", UPDATE_VERSION);
+    	for (int i = 0; i < replicaNames.size(); i++) {
+    		names.with("#zgtReplica" + i, replicaNames.get(i));
+    	}
+    	return names;
+    }
+    
 	public static ScanFilter getTimestampFilter(Long minTimestamp) {
 		ScanFilter filter = new ScanFilter(UPDATE_TIMESTAMP).gt(minTimestamp);
 		return filter;
 	}
 
+	public static ScanFilter getTimestampUpperFilter(Long maxTimestamp) {
+		ScanFilter filter = new ScanFilter(UPDATE_TIMESTAMP).le(maxTimestamp);
+		return filter;
+	}
+
 	public static ScanFilter getOriginFilter(Regions origin) {
 		ScanFilter filter = new ScanFilter(UPDATE_ORIGIN).eq(origin.getName());
 		return filter;
@@ -107,12 +362,16 @@ public class SystemAttributes {
 	public static void setVersion(Map<String, AttributeValue> item, AttributeValue version) {
 		item.put(UPDATE_VERSION, version);  
 	}
+
+	public static boolean isDeleted(Map<String, AttributeValue> item) {
+	    return item.containsKey(UPDATE_DELETED);
+	}
 	
 	/*
 	 * Add systems attributes to each item of an existing table
 	 */
 	public static void addToTable(String tableName, Regions region) {
-		DynamoDB ddb = new DynamoDB(region);
+		DynamoDB ddb = new DynamoDB(DynamoDBClients.get(region));
 		Table table = ddb.getTable(tableName);
 		VersionVector version = new VersionVector();
 		version.bump(region);
@@ -0,0 +1,182 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.LocalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+
+public class TableSchema {
+
+	/**
+	 * The parts of a table's description that the data path needs: its key attributes,
+	 * its indexes, its provisioned capacity, and a hint of its average item size.
+	 * A schema is an immutable snapshot taken when the table was described.
+	 */
+
+	private final String tableName;
+	private final String hashKeyName;
+	private final String rangeKeyName;  // null if the table has no range key
+	private final List<KeySchemaElement> keySchema;
+	private final List<AttributeDefinition> keyAttributeDefinitions;
+	private final List<String> indexNames;
+	private final long readCapacityUnits;
+	private final long writeCapacityUnits;
+	private final long averageItemSize;  // bytes, or 0 if unknown
+	private final long describeTime;
+
+	public TableSchema(TableDescription desc) {
+		tableName = desc.getTableName();
+		String hashKey = null;
+		String rangeKey = null;
+		for (KeySchemaElement element : desc.getKeySchema()) {
+			if (KeyType.HASH.toString().equals(element.getKeyType())) {
+				hashKey = element.getAttributeName();
+			} else {
+				rangeKey = element.getAttributeName();
+			}
+		}
+		hashKeyName = hashKey;
+		rangeKeyName = rangeKey;
+		keySchema = Collections.unmodifiableList(new ArrayList<KeySchemaElement>(desc.getKeySchema()));
+		List<AttributeDefinition> definitions = new ArrayList<AttributeDefinition>();
+		for (AttributeDefinition definition : desc.getAttributeDefinitions()) {
+			if (definition.getAttributeName().equals(hashKey) || definition.getAttributeName().equals(rangeKey)) {
+				definitions.add(definition);
+			}
+		}
+		keyAttributeDefinitions = Collections.unmodifiableList(definitions);
+
+		List<String> indexes = new ArrayList<String>();
+		if (desc.getLocalSecondaryIndexes() != null) {
+			for (LocalSecondaryIndexDescription index : desc.getLocalSecondaryIndexes()) {
+				indexes.add(index.getIndexName());
+			}
+		}
+		if (desc.getGlobalSecondaryIndexes() != null) {
+			for (GlobalSecondaryIndexDescription index : desc.getGlobalSecondaryIndexes()) {
+				indexes.add(index.getIndexName());
+			}
+		}
+		indexNames = Collections.unmodifiableList(indexes);
+
+		if (desc.getProvisionedThroughput() != null) {
+			readCapacityUnits = desc.getProvisionedThroughput().getReadCapacityUnits();
+			writeCapacityUnits = desc.getProvisionedThroughput().getWriteCapacityUnits();
+		} else {
+			readCapacityUnits = 0;
+			writeCapacityUnits = 0;
+		}
+
+		Long itemCount = desc.getItemCount();
+		Long tableSize = desc.getTableSizeBytes();
+		averageItemSize = (itemCount == null || tableSize == null || itemCount == 0) ? 0 : tableSize / itemCount;
+		describeTime = System.currentTimeMillis();
+	}
+
+	/*
+	 * Schema of a table whose key names are already known (without capacity or index information)
+	 */
+	public TableSchema(String tableName, String hashKeyName, String rangeKeyName) {
+		this.tableName = tableName;
+		this.hashKeyName = hashKeyName;
+		this.rangeKeyName = rangeKeyName;
+		List<KeySchemaElement> elements = new ArrayList<KeySchemaElement>();
+		elements.add(new KeySchemaElement(hashKeyName, KeyType.HASH));
+		if (rangeKeyName != null) {
+			elements.add(new KeySchemaElement(rangeKeyName, KeyType.RANGE));
+		}
+		keySchema = Collections.unmodifiableList(elements);
+		keyAttributeDefinitions = Collections.emptyList();
+		indexNames = Collections.emptyList();
+		readCapacityUnits = 0;
+		writeCapacityUnits = 0;
+		averageItemSize = 0;
+		describeTime = System.currentTimeMillis();
+	}
+
+	/*
+	 * Extract the primary key (hash key and range key, if any) of an item
+	 */
+	public PrimaryKey getPrimaryKey(Item item) {
+		PrimaryKey key = new PrimaryKey(hashKeyName, item.get(hashKeyName));
+		if (rangeKeyName != null) {
+			key.addComponent(rangeKeyName, item.get(rangeKeyName));
+		}
+		return key;
+	}
+
+	/*
+	 * Extract the primary key of an item that is an attribute map
+	 */
+	public Map<String, AttributeValue> getKey(Map<String, AttributeValue> item) {
+		Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+		key.put(hashKeyName, item.get(hashKeyName));
+		if (rangeKeyName != null) {
+			key.put(rangeKeyName, item.get(rangeKeyName));
+		}
+		return key;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public String getHashKeyName() {
+		return hashKeyName;
+	}
+
+	public String getRangeKeyName() {
+		return rangeKeyName;
+	}
+
+	public boolean hasRangeKey() {
+		return rangeKeyName != null;
+	}
+
+	public List<KeySchemaElement> getKeySchema() {
+		return keySchema;
+	}
+
+	/*
+	 * Definitions of the key attributes (empty if the table was not described)
+	 */
+	public List<AttributeDefinition> getKeyAttributeDefinitions() {
+		return keyAttributeDefinitions;
+	}
+
+	public List<String> getIndexNames() {
+		return indexNames;
+	}
+
+	public long getReadCapacityUnits() {
+		return readCapacityUnits;
+	}
+
+	public long getWriteCapacityUnits() {
+		return writeCapacityUnits;
+	}
+
+	/*
+	 * Average item size in bytes as last reported by DynamoDB (which updates it every few hours),
+	 * or 0 if the table is empty or the size is unknown
+	 */
+	public long getAverageItemSize() {
+		return averageItemSize;
+	}
+
+	public long getDescribeTime() {
+		return describeTime;
+	}
+
+}
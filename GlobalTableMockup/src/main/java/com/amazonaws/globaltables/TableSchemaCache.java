@@ -0,0 +1,85 @@
+package com.amazonaws.globaltables;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+
+public class TableSchemaCache {
+
+	/**
+	 * Caches the schema of each regional table so that DescribeTable, a control-plane call
+	 * with low rate limits, stays off the data path. A schema is described when first needed
+	 * and again once it is older than the refresh time. Only one thread describes a table at a time:
+	 * while a stale schema is being refreshed, other threads keep using it. The control plane
+	 * invalidates a table's schema whenever it creates or deletes the table.
+	 */
+
+	// time after which a schema is described again (milliseconds)
+	private static final long REFRESH_TIME = 1000*60*10L;  // 10 minutes
+
+	// cache shared by all components in this process
+	private static final TableSchemaCache sharedCache = new TableSchemaCache();
+
+	// keyed by table name and region
+	private Map<String, TableSchema> schemas;
+
+	// schemas being refreshed by some thread
+	private Set<String> refreshing;
+
+	public TableSchemaCache() {
+		schemas = new ConcurrentHashMap<String, TableSchema>();
+		refreshing = ConcurrentHashMap.newKeySet();
+	}
+
+	public static TableSchemaCache getSharedCache() {
+		return sharedCache;
+	}
+
+	/*
+	 * Get the schema of the table in the given region, describing it if not cached or stale.
+	 * A thread that finds the schema missing waits for it to be described; a thread that finds it
+	 * stale refreshes it unless another thread already is, in which case it returns the stale schema.
+	 */
+	public TableSchema getSchema(String tableName, Regions region) {
+		String key = cacheKey(tableName, region);
+		TableSchema schema = schemas.get(key);
+		if (schema == null) {
+			return schemas.computeIfAbsent(key, k -> describe(tableName, region));
+		}
+		if (System.currentTimeMillis() > schema.getDescribeTime() + REFRESH_TIME && refreshing.add(key)) {
+			try {
+				schema = describe(tableName, region);
+				schemas.put(key, schema);
+			} catch (RuntimeException e) {
+				// keep using the stale schema, and let a later call try again
+				System.out.println("Refresh of schema of " + tableName + " in " + region + " failed: " + e.getMessage());
+			} finally {
+				refreshing.remove(key);
+			}
+		}
+		return schema;
+	}
+
+	/*
+	 * Forget the table's schema, e.g. after the table was created, deleted, or changed
+	 */
+	public void invalidate(String tableName, Regions region) {
+		schemas.remove(cacheKey(tableName, region));
+	}
+
+	private TableSchema describe(String tableName, Regions region) {
+		AmazonDynamoDB ddb = DynamoDBClients.get(region);
+		DescribeTableRequest request = new DescribeTableRequest()
+				.withTableName(tableName);
+		return new TableSchema(ddb.describeTable(request).getTable());
+	}
+
+	private static String cacheKey(String tableName, Regions region) {
+		return tableName + ":" + region.getName();
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.amazonaws.globaltables;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+public class TestCrdt {
+
+	/**
+	 * Checks the merge properties of the conflict-free replicated attributes, which need no tables:
+	 * merges are commutative and idempotent, concurrent updates are all kept, an add wins over
+	 * a concurrent remove, and the first update of a plain attribute keeps its value.
+	 */
+
+	public static final Regions ONE_REGION = TestGlobalTable.MASTER_REGION;
+	public static final Regions TWO_REGION = TestGlobalTable.LOCAL_REGION;
+
+	private int numFailed;
+
+	public TestCrdt() {
+		numFailed = 0;
+	}
+
+	/*
+	 * Returns the number of checks that failed
+	 */
+	public int runTest() {
+		numFailed = 0;
+
+		// Counters
+		PNCounter counterOne = new PNCounter();
+		counterOne.add(ONE_REGION, 5);
+		counterOne.add(ONE_REGION, -2);
+		PNCounter counterTwo = new PNCounter();
+		counterTwo.add(TWO_REGION, 10);
+		check("counter merge is commutative",
+				counterOne.merge(counterTwo).toMap().equals(counterTwo.merge(counterOne).toMap()));
+		check("counter merge is idempotent",
+				counterOne.merge(counterTwo).merge(counterTwo).toMap().equals(counterOne.merge(counterTwo).toMap()));
+		check("counter merge keeps concurrent increments", counterOne.merge(counterTwo).value() == 13);
+
+		// Sets
+		ORSet setOne = new ORSet();
+		setOne.add(ONE_REGION, "Daisy");
+		setOne.add(ONE_REGION, "Lance");
+		ORSet setTwo = ORSet.fromMap(setOne.toMap());
+		setOne.remove("Lance");
+		setTwo.add(TWO_REGION, "Lance");
+		setTwo.add(TWO_REGION, "Mabel");
+		check("set merge is commutative",
+				setOne.merge(setTwo).toMap().equals(setTwo.merge(setOne).toMap()));
+		check("set merge is idempotent",
+				setOne.merge(setTwo).merge(setTwo).toMap().equals(setOne.merge(setTwo).toMap()));
+		check("set add wins over concurrent remove",
+				setOne.merge(setTwo).value().equals(new HashSet<String>(Arrays.asList("Daisy", "Lance", "Mabel"))));
+		ORSet setThree = ORSet.fromMap(setTwo.toMap());
+		setThree.remove("Mabel");
+		check("set remove of an observed add wins", !setThree.merge(setTwo).value().contains("Mabel"));
+
+		// Maps
+		LWWMap mapOne = new LWWMap();
+		mapOne.put("director", "Lucas", ONE_REGION);
+		mapOne.put("studio", "Fox", ONE_REGION);
+		LWWMap mapTwo = LWWMap.fromMap(mapOne.toMap());
+		mapOne.remove("studio", ONE_REGION);
+		mapTwo.put("composer", "Williams", TWO_REGION);
+		check("map merge is commutative",
+				mapOne.merge(mapTwo).toMap().equals(mapTwo.merge(mapOne).toMap()));
+		check("map merge is idempotent",
+				mapOne.merge(mapTwo).merge(mapTwo).toMap().equals(mapOne.merge(mapTwo).toMap()));
+		Map<String, Object> merged = mapOne.merge(mapTwo).value();
+		check("map merge keeps concurrent puts and removes",
+				merged.containsKey("director") && merged.containsKey("composer") && !merged.containsKey("studio"));
+
+		// Plain attributes of an existing item
+		Item item = new TestData().newMovieItem("Star Wars", 1977, "****", "Daisy", "Lance")
+				.withInt("views", 7);
+		CrdtState state = CrdtState.fromItem(item, TWO_REGION);
+		state.getSet("fans").add(TWO_REGION, "Mabel");
+		state.getCounter("views").add(TWO_REGION, 1);
+		state.applyTo(item);
+		Set<String> fans = item.getStringSet("fans");
+		check("first set update keeps existing elements",
+				fans.equals(new HashSet<String>(Arrays.asList("Daisy", "Lance", "Mabel"))));
+		check("first counter update keeps existing value", item.getLong("views") == 8);
+
+		System.out.println(numFailed + " CRDT checks failed");
+		return numFailed;
+	}
+
+	private void check(String description, boolean passed) {
+		System.out.println("     " + (passed ? "Passed: " : "FAILED: ") + description);
+		if (!passed) {
+			numFailed++;
+		}
+	}
+
+}
@@ -49,7 +49,7 @@ public class TestGlobalTable {
 	}
 	
 	public void runTest() {
-		GlobalMetadata gmd = new GlobalMetadata();
+		GlobalMetadata gmd = GlobalMetadata.getInstance();
 		Lease masterLease;
 		TestData data = new TestData();
 		GlobalRequestRouter grr;
@@ -73,6 +73,9 @@ public class TestGlobalTable {
 		ConsistentPutItemSpec putItemSpec;
 		ConsistentUpdateItemSpec updateItemSpec;
 		
+		// Create metadata table if it does not exist
+		gmd.createMetadataStore();
+		
 		// Create global table in metadata
 		boolean done = gmd.createTable(TABLE_NAME, MASTER_REGION);
 		if (done) {
@@ -90,8 +93,8 @@ public class TestGlobalTable {
 		System.out.println("Master region is " + gmd.getMaster(TABLE_NAME));			
 
 		// Obtain master lease on global table
+        gmd.acquireLease(TABLE_NAME, MASTER_REGION);
 		masterLease = gmd.getLease(TABLE_NAME);
-        masterLease.acquire(MASTER_REGION);
 		
 		// Add a second region
 		gmd.addRegion(TABLE_NAME, LOCAL_REGION);
@@ -434,7 +437,7 @@ public class TestGlobalTable {
         System.out.println("Completed replication.");
         
         // Renew master lease just for fun
-        boolean renewed = masterLease.renew(MASTER_REGION);
+        boolean renewed = gmd.renewLease(TABLE_NAME, MASTER_REGION);
         if (renewed) {
         	System.out.println();
         	System.out.println("Renewed master lease for " + MASTER_REGION);
@@ -498,6 +501,46 @@ public class TestGlobalTable {
         System.out.println("     " + num + " items replicated");
         System.out.println("     Latency = " + elapsedTime + " ms.");
         System.out.println();
+        
+        testLeaseTakeover(gmd);
+	}
+	
+	/*
+	 * Check that a forced takeover completes while the old owner keeps renewing its leases
+	 */
+	private void testLeaseTakeover(GlobalMetadata gmd) {
+		String tableName = "LeaseTakeoverTest";
+		System.out.println("Forced takeover of a lease from " + MASTER_REGION + " by " + OTHER_REGION);
+		
+		// Take a lease that has not expired, which freezes the owner's expiration
+		gmd.setLease(tableName, new Lease(MASTER_REGION));
+		gmd.takeLease(tableName, OTHER_REGION);
+		long frozenExpiration = gmd.getLease(tableName).getExpiration();
+		gmd.renewLeases(MASTER_REGION);
+		Lease lease = gmd.getLease(tableName);
+		boolean frozen = lease.getNextOwner() == OTHER_REGION && lease.getExpiration() == frozenExpiration;
+		System.out.println("     Owner's renewal " + (frozen ? "did not extend" : "EXTENDED") + " the lease being taken");
+		
+		// Rather than wait out a full lease, take one that is about to expire
+		long expiration = System.currentTimeMillis() + 1000;
+		gmd.setLease(tableName, new Lease(MASTER_REGION, expiration, OTHER_REGION, expiration + Lease.DEFAULT_DURATION, 0));
+		long deadline = expiration + Lease.CLOCK_BOUND + 5000;
+		boolean taken = false;
+		while (!taken && System.currentTimeMillis() < deadline) {
+			gmd.renewLeases(MASTER_REGION);
+			taken = gmd.takeLease(tableName, OTHER_REGION);
+			if (!taken) {
+				try {
+					Thread.sleep(250);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		System.out.println("     Takeover " + (taken ? "succeeded" : "FAILED") + " while the owner kept renewing");
+		gmd.releaseLease(tableName, OTHER_REGION);
+		System.out.println();
 	}
 	
 	private static void printTableDescription(TableDescription td) {
@@ -0,0 +1,198 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+
+public class TombstoneCollector {
+
+	/**
+	 * Physically removes the tombstones left by deletes (see GlobalRequestRouter.deleteItem) once
+	 * every replica has seen them. A tombstone is collectable when the replication watermarks of all
+	 * pairs of replicas have passed its timestamp, since then no replica still holds, or can later
+	 * receive, an older version of the item that the tombstone has to override. Each replica removes
+	 * its collectable tombstones with conditional deletes at a small share of its write capacity,
+	 * so that a tombstone that was overwritten since it was scanned is left alone.
+	 */
+
+	// time between collection passes (milliseconds)
+	private static final long COLLECTION_INTERVAL = 1000*60*60L;  // 1 hour
+
+	// tombstones are kept this much longer than the watermarks require, to allow for clock skew (milliseconds)
+	private static final long GRACE_PERIOD = 1000*60*10L;  // 10 minutes
+
+	// fraction of a replica's provisioned write capacity that collection may use
+	private static final double CAPACITY_FRACTION = 0.1;
+
+	private GlobalMetadata gmd;
+	private ReplicationEngine re;
+
+	// tables that are collected in the background
+	private Set<String> tables;
+
+	private ScheduledExecutorService scheduler;
+
+	private long numCollected;
+
+	public TombstoneCollector(GlobalMetadata gmd, ReplicationEngine re) {
+		this.gmd = gmd;
+		this.re = re;
+		this.tables = new HashSet<String>();
+		this.scheduler = null;
+		this.numCollected = 0;
+	}
+
+	public synchronized TombstoneCollector withTable(String tableName) {
+		tables.add(tableName);
+		return this;
+	}
+
+	public synchronized long getNumCollected() {
+		return numCollected;
+	}
+
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "tombstone-collection");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			for (String tableName : listTables()) {
+				try {
+					collect(tableName);
+				} catch (RuntimeException e) {
+					System.out.println("Tombstone collection of " + tableName + " failed: " + e.getMessage());
+				}
+			}
+		}, COLLECTION_INTERVAL, COLLECTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/*
+	 * Get the time before which tombstones of the table have reached every replica, or 0 if some
+	 * pair of replicas has not been synced by this engine yet or is still being backfilled
+	 * (in which case the target may hold an older copy of a deleted item from the bulk lane)
+	 */
+	public long getHorizon(String tableName) {
+		Set<Regions> regions = gmd.listRegions(tableName);
+		long horizon = System.currentTimeMillis();
+		// read all watermarks under the engine's lock, so that no sync moves them part way through
+		synchronized (re) {
+			for (Regions target : regions) {
+				for (Regions source : regions) {
+					if (target == source) {
+						continue;
+					}
+					long watermark = re.getWatermark(tableName, target, source);
+					if (watermark == 0 || !re.isWatermarkAdvanced(tableName, target, source)
+							|| re.hasPendingBulkWork(tableName, target, source)) {
+						return 0;
+					}
+					horizon = Math.min(horizon, watermark);
+				}
+			}
+		}
+		return Math.max(horizon - GRACE_PERIOD, 0);
+	}
+
+	/*
+	 * Remove the table's collectable tombstones at every replica.
+	 * Returns the number of tombstones removed.
+	 */
+	public int collect(String tableName) {
+		long horizon = getHorizon(tableName);
+		if (horizon == 0) {
+			return 0;
+		}
+		int numRemoved = 0;
+		for (Regions replica : gmd.listRegions(tableName)) {
+			numRemoved += collectReplica(tableName, replica, horizon);
+		}
+		synchronized (this) {
+			numCollected += numRemoved;
+		}
+		return numRemoved;
+	}
+
+	private int collectReplica(String tableName, Regions replica, long horizon) {
+		Table table = new DynamoDB(ReplicationEngine.getReplicationClient(replica)).getTable(tableName);
+		TableSchema schema = TableSchemaCache.getSharedCache().getSchema(tableName, replica);
+		ReplicationThrottle throttle = new ReplicationThrottle(CAPACITY_FRACTION);
+		throttle.setProvisionedCapacity(schema.getWriteCapacityUnits());
+
+		// Scan for tombstones written before the horizon
+		ScanSpec scanSpec = new ScanSpec()
+				.withConsistentRead(true)
+				.withFilterExpression(SystemAttributes.OLD_TOMBSTONE_FILTER)
+				.withNameMap(SystemAttributes.getOldTombstoneNames())
+				.withValueMap(SystemAttributes.getOldTombstoneValues(horizon));
+		ItemCollection<ScanOutcome> scanResults = table.scan(scanSpec);
+
+		int numRemoved = 0;
+		Iterator<Item> iterator = scanResults.iterator();
+		while (iterator.hasNext()) {
+			Item tombstone = iterator.next();
+			DeleteItemSpec deleteSpec = new DeleteItemSpec()
+					.withPrimaryKey(schema.getPrimaryKey(tombstone))
+					.withConditionExpression(SystemAttributes.getUnchangedCondition(tombstone))
+					.withNameMap(SystemAttributes.getUnchangedNames())
+					.withValueMap(SystemAttributes.getUnchangedValues(tombstone));
+			if (remove(table, deleteSpec, throttle)) {
+				numRemoved++;
+			}
+		}
+		return numRemoved;
+	}
+
+	/*
+	 * Perform the delete at the throttled rate, returning false if the item changed since it was read
+	 */
+	private boolean remove(Table table, DeleteItemSpec deleteSpec, ReplicationThrottle throttle) {
+		for (int attempt = 0; ; attempt++) {
+			throttle.acquire(1);
+			try {
+				table.deleteItem(deleteSpec);
+				throttle.onSuccess();
+				return true;
+			} catch (ConditionalCheckFailedException e) {
+				return false;
+			} catch (AmazonServiceException e) {
+				if (!ReplicationThrottle.isThrottle(e) || attempt >= ReplicationThrottle.MAX_RETRIES) {
+					throw e;
+				}
+				throttle.onThrottle(attempt);
+			}
+		}
+	}
+
+	private synchronized List<String> listTables() {
+		return new ArrayList<String>(tables);
+	}
+
+}
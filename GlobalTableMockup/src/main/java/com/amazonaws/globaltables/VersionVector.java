@@ -62,6 +62,20 @@ public class VersionVector {
 		return this;
 	}
 	
+	/*
+	 * Returns a new version vector with the same counts as this one
+	 */
+	public VersionVector copy() {
+		return new VersionVector().fromMap(new HashMap<String,Integer>(vector));
+	}
+	
+	/*
+	 * Returns true if both version vectors have the same counts
+	 */
+	public boolean equalTo(VersionVector other) {
+		return this.dominates(other) && other.dominates(this);
+	}
+	
 	public boolean dominates(VersionVector other) {
 		// Check that each entry in other version vector is no greater than this one's
 		boolean comparison = true;
@@ -74,6 +88,35 @@ public class VersionVector {
 		return comparison;
 	}
 	
+	/*
+	 * Returns a new version vector that dominates both this one and the other one
+	 */
+	public VersionVector merge(VersionVector other) {
+		Map<String,Integer> merged = new HashMap<String,Integer>(vector);
+		for (String replicaName : other.vector.keySet()) {
+			merged.put(replicaName, Math.max(this.count(replicaName), other.count(replicaName)));
+		}
+		return new VersionVector().fromMap(merged);
+	}
+	
+	/*
+	 * Returns a new version vector without the entries of the given (retired) replicas
+	 */
+	public VersionVector prune(Set<String> replicaNames) {
+		Map<String,Integer> pruned = new HashMap<String,Integer>(vector);
+		pruned.keySet().removeAll(replicaNames);
+		return new VersionVector().fromMap(pruned);
+	}
+	
+	public boolean hasAny(Set<String> replicaNames) {
+		for (String replicaName : replicaNames) {
+			if (vector.containsKey(replicaName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	public Map<String,Integer> toMap() {
 		return vector;
 	}
@@ -0,0 +1,186 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+
+public class VersionVectorCompactor {
+
+	/**
+	 * Rewrites stored version vectors without the entries of retired regions that all replicas
+	 * have acknowledged (see GlobalMetadata.removeRegion), so that vectors stop growing as regions
+	 * come and go. Each replica compacts its own items in the background at a small share of its
+	 * write capacity. Only the vector is rewritten, so compaction does not cause replication.
+	 * Once every replica has been compacted, the retired region's retirement ends.
+	 */
+
+	// time between compaction passes (milliseconds)
+	private static final long COMPACTION_INTERVAL = 1000*60*60L;  // 1 hour
+
+	// fraction of a replica's provisioned write capacity that compaction may use
+	private static final double CAPACITY_FRACTION = 0.1;
+
+	private GlobalMetadata gmd;
+
+	// tables that are compacted in the background
+	private Set<String> tables;
+
+	private ScheduledExecutorService scheduler;
+
+	private long numCompacted;
+
+	public VersionVectorCompactor(GlobalMetadata gmd) {
+		this.gmd = gmd;
+		this.tables = new HashSet<String>();
+		this.scheduler = null;
+		this.numCompacted = 0;
+	}
+
+	public synchronized VersionVectorCompactor withTable(String tableName) {
+		tables.add(tableName);
+		return this;
+	}
+
+	public synchronized long getNumCompacted() {
+		return numCompacted;
+	}
+
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "vector-compaction");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			for (String tableName : listTables()) {
+				try {
+					compact(tableName);
+				} catch (RuntimeException e) {
+					System.out.println("Compaction of " + tableName + " failed: " + e.getMessage());
+				}
+			}
+		}, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/*
+	 * Compact the table's items at every replica.
+	 * Returns the number of items whose version vectors were rewritten.
+	 */
+	public int compact(String tableName) {
+		Set<String> prunable = gmd.getPrunableRegions(tableName);
+		if (prunable.isEmpty()) {
+			return 0;
+		}
+		int numRewritten = 0;
+		for (Regions replica : gmd.listRegions(tableName)) {
+			CompactionPass pass = compactReplica(tableName, replica, new ArrayList<String>(prunable));
+			numRewritten += pass.numRewritten;
+			if (pass.complete) {
+				for (String regionName : prunable) {
+					gmd.markCompacted(tableName, Regions.fromName(regionName), replica);
+				}
+			}
+		}
+		synchronized (this) {
+			numCompacted += numRewritten;
+		}
+		return numRewritten;
+	}
+
+	private CompactionPass compactReplica(String tableName, Regions replica, List<String> prunable) {
+		Table table = new DynamoDB(ReplicationEngine.getReplicationClient(replica)).getTable(tableName);
+		TableSchema schema = TableSchemaCache.getSharedCache().getSchema(tableName, replica);
+		ReplicationThrottle throttle = new ReplicationThrottle(CAPACITY_FRACTION);
+		throttle.setProvisionedCapacity(schema.getWriteCapacityUnits());
+
+		// Scan for items whose vectors still have entries of the prunable regions
+		ScanSpec scanSpec = new ScanSpec()
+				.withFilterExpression(SystemAttributes.getVersionEntriesFilter(prunable))
+				.withNameMap(SystemAttributes.getVersionEntriesNames(prunable));
+		ItemCollection<ScanOutcome> scanResults = table.scan(scanSpec);
+
+		CompactionPass pass = new CompactionPass();
+		Iterator<Item> iterator = scanResults.iterator();
+		while (iterator.hasNext()) {
+			Item item = iterator.next();
+			VersionVector pruned = SystemAttributes.getVersion(item).prune(new HashSet<String>(prunable));
+			UpdateItemSpec updateSpec = new UpdateItemSpec()
+					.withPrimaryKey(schema.getPrimaryKey(item))
+					.withUpdateExpression(SystemAttributes.PRUNE_VERSION_UPDATE)
+					.withConditionExpression(SystemAttributes.getUnchangedCondition(item))
+					.withNameMap(SystemAttributes.getUnchangedNames())
+					.withValueMap(SystemAttributes.getPruneVersionValues(item, pruned));
+			if (rewrite(table, updateSpec, throttle)) {
+				pass.numRewritten++;
+			} else {
+				pass.complete = false;  // changed since it was scanned, so look again next time
+			}
+		}
+		return pass;
+	}
+
+	/*
+	 * Perform the update at the throttled rate, returning false if the item changed since it was read
+	 */
+	private boolean rewrite(Table table, UpdateItemSpec updateSpec, ReplicationThrottle throttle) {
+		for (int attempt = 0; ; attempt++) {
+			throttle.acquire(1);
+			try {
+				table.updateItem(updateSpec);
+				throttle.onSuccess();
+				return true;
+			} catch (ConditionalCheckFailedException e) {
+				return false;
+			} catch (AmazonServiceException e) {
+				if (!ReplicationThrottle.isThrottle(e) || attempt >= ReplicationThrottle.MAX_RETRIES) {
+					throw e;
+				}
+				throttle.onThrottle(attempt);
+			}
+		}
+	}
+
+	private synchronized List<String> listTables() {
+		return new ArrayList<String>(tables);
+	}
+
+	/*
+	 * Outcome of compacting one replica
+	 */
+	private static class CompactionPass {
+		int numRewritten;
+		boolean complete;
+
+		CompactionPass() {
+			this.numRewritten = 0;
+			this.complete = true;
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+package com.amazonaws.globaltables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+public class VersionedItem {
+
+	/**
+	 * An item along with its decoded system attributes.
+	 * Decoding happens once when the item is read, so that conflict resolution can compare
+	 * versions, origins, and timestamps of many items without parsing them again.
+	 */
+
+	private final Item item;
+	private final VersionVector version;
+	private final String origin;
+	private final long timestamp;
+	private final boolean deleted;
+
+	public VersionedItem(Item item) {
+		this(item, Collections.<String>emptySet());
+	}
+
+	/*
+	 * Decode the item, leaving out the version vector entries of pruned (retired) regions
+	 */
+	public VersionedItem(Item item, Set<String> prunedRegions) {
+		VersionVector stored = SystemAttributes.hasVersion(item) ? SystemAttributes.getVersion(item) : new VersionVector();
+		this.item = item;
+		this.version = stored.hasAny(prunedRegions) ? stored.prune(prunedRegions) : stored;
+		this.origin = SystemAttributes.getOrigin(item);
+		this.timestamp = SystemAttributes.getTimestamp(item);
+		this.deleted = SystemAttributes.isDeleted(item);
+	}
+
+	/*
+	 * Returns null if the item is null, e.g. not found at a replica
+	 */
+	public static VersionedItem decode(Item item) {
+		return (item == null) ? null : new VersionedItem(item);
+	}
+
+	public static VersionedItem decode(Item item, Set<String> prunedRegions) {
+		return (item == null) ? null : new VersionedItem(item, prunedRegions);
+	}
+
+	public static List<VersionedItem> decodeAll(List<Item> items) {
+		List<VersionedItem> decoded = new ArrayList<VersionedItem>(items.size());
+		for (Item item : items) {
+			decoded.add(decode(item));
+		}
+		return decoded;
+	}
+
+	public Item getItem() {
+		return item;
+	}
+
+	public VersionVector getVersion() {
+		return version;
+	}
+
+	public String getOrigin() {
+		return origin;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/*
+	 * Returns true if the item is a tombstone of a deleted item
+	 */
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	public boolean dominates(VersionedItem other) {
+		return version.dominates(other.version);
+	}
+
+	/*
+	 * Returns true if the two items are conflicting versions
+	 */
+	public boolean conflictsWith(VersionedItem other) {
+		return other != null && !this.dominates(other) && !other.dominates(this);
+	}
+
+}